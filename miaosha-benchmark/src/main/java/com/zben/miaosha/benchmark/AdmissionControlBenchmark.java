@@ -0,0 +1,108 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.config.RedisScriptConfig;
+import com.zben.miaosha.limit.AdmissionControl;
+import com.zben.miaosha.limit.AdmissionProperties;
+import com.zben.miaosha.limit.LocalAdmissionControl;
+import com.zben.miaosha.limit.RedisAdmissionControl;
+import com.zben.miaosha.service.StockService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * @DESC:准入控制的单次判断开销：local 进程内令牌桶；redis 集群令牌桶（批量预取许可）
+ * 速率和容量设得足够大，测量的是放行路径本身的开销而不是拒绝比例；
+ * redis模式需要一个可访问的redis（-Dmiaosha.benchmark.redis-host / redis-port，默认localhost:6379），
+ * batchSize=1 对应每个请求都访问一次redis，local模式忽略batchSize
+ * @author: zhouben
+ * @date: 2020/11/3 0003 10:30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(8)
+public class AdmissionControlBenchmark {
+
+    private static final int SID_COUNT = 16;
+
+    @Param({"local", "redis"})
+    private String type;
+
+    @Param({"1", "100"})
+    private int batchSize;
+
+    private AnnotationConfigApplicationContext context;
+
+    private AdmissionControl admissionControl;
+
+    @Configuration
+    @EnableConfigurationProperties
+    static class AdmissionConfig {
+    }
+
+    @Setup
+    public void setup() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.admission.type", type);
+        properties.put("miaosha.admission.initial-rate", 1.0e7);
+        properties.put("miaosha.admission.max-rate", 1.0e7);
+        properties.put("miaosha.admission.stock-rate-factor", 0);
+        properties.put("miaosha.admission.redis.rate", 1.0e7);
+        properties.put("miaosha.admission.redis.capacity", 10000000);
+        properties.put("miaosha.admission.redis.batch-size", batchSize);
+        RedisStandaloneConfiguration redis = new RedisStandaloneConfiguration(
+                System.getProperty("miaosha.benchmark.redis-host", "localhost"),
+                Integer.getInteger("miaosha.benchmark.redis-port", 6379));
+
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(redis);
+        context.registerBean("redisConnectionFactory", LettuceConnectionFactory.class, () -> connectionFactory);
+        context.registerBean("stringRedisTemplate", StringRedisTemplate.class, () -> new StringRedisTemplate(connectionFactory));
+        // 本地准入控制调整速率时读取售罄标记，桩对象返回未售罄；stock-rate-factor为0时不按库存限速
+        context.registerBean("stockService", StockService.class, () -> mock(StockService.class, withSettings().stubOnly()));
+        context.register(AdmissionConfig.class, AdmissionProperties.class, RedisScriptConfig.class,
+                LocalAdmissionControl.class, RedisAdmissionControl.class);
+        context.refresh();
+        admissionControl = context.getBean(AdmissionControl.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public boolean tryAcquire() {
+        return admissionControl.tryAcquire("createOrderWithMq", 1 + ThreadLocalRandom.current().nextInt(SID_COUNT));
+    }
+}
@@ -0,0 +1,41 @@
+package com.zben.miaosha.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * @DESC:基准测试入口
+ * 参数与JMH命令行相同（例如 -t 16 -p sidCount=1 CreateOrderByMq）；
+ * 未指定 -rf/-rff 时结果以json写入 results/jmh-时间.json，按时间保留便于对比趋势
+ * @author: zhouben
+ * @date: 2020/10/30 0030 9:30
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include("com\\.zben\\.miaosha\\.benchmark\\..*Benchmark");
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            File dir = new File(System.getProperty("miaosha.benchmark.result-dir", "results"));
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IllegalStateException("创建结果目录失败：" + dir);
+            }
+            String name = "jmh-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+            builder.result(new File(dir, name).getPath());
+        }
+        new Runner(builder.build()).run();
+    }
+}
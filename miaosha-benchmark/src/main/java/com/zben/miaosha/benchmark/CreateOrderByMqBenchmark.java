@@ -0,0 +1,106 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.benchmark.support.OrderOutcomes;
+import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @DESC:mq消费端下单 OrderService.createOrderByMq
+ * 写订单加乐观锁扣库存，版本冲突按miaosha.stock.retry重试；sidCount=1 时所有线程抢同一个商品（同一行），线程数用 -t 调整；
+ * conditional模式依赖mysql的LAST_INSERT_ID(expr)，H2上不能运行，其SQL在mysql上的开销见StockDeductBenchmark，内存库存引擎见InventoryEngineBenchmark
+ * @author: zhouben
+ * @date: 2020/10/30 0030 13:30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class CreateOrderByMqBenchmark {
+
+    @Param({"1", "16"})
+    private int sidCount;
+
+    /**
+     * optimistic模式下版本冲突的最多更新次数，1表示不重试
+     */
+    @Param({"1", "5"})
+    private int maxAttempts;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    private OrderService orderService;
+
+    private final AtomicInteger userIds = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.stock.deduct-mode", "optimistic");
+        properties.put("miaosha.stock.retry.max-attempts", maxAttempts);
+        context = ServiceTestContext.start(properties);
+        dataSource = context.getBean(DataSource.class);
+        orderService = context.getBean(OrderService.class);
+    }
+
+    /**
+     * 每轮重建库存，库存足够大，测的是扣减而不是售罄后的快速失败
+     */
+    @Setup(Level.Iteration)
+    public void resetStock() throws Exception {
+        TestData.resetStock(dataSource, sidCount, Integer.MAX_VALUE / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public OrderStatus createOrderByMq(OrderOutcomes outcomes) {
+        int userId = userIds.incrementAndGet();
+        int sid = 1 + Math.floorMod(userId, sidCount);
+        OrderStatus status;
+        try {
+            status = orderService.createOrderByMq(sid, userId);
+        } catch (RuntimeException e) {
+            // 重试次数耗尽，消费端会记为FAILED
+            status = OrderStatus.FAILED;
+        }
+        if (status == OrderStatus.SUCCESS) {
+            outcomes.success++;
+        } else if (status == OrderStatus.SOLD_OUT) {
+            outcomes.soldOut++;
+        } else {
+            outcomes.failed++;
+        }
+        return status;
+    }
+}
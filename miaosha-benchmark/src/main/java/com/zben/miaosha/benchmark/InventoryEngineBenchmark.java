@@ -0,0 +1,145 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.benchmark.support.OrderOutcomes;
+import com.zben.miaosha.inventory.InventoryEngine;
+import com.zben.miaosha.inventory.InventoryJournal;
+import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @DESC:内存库存引擎
+ * journalAppend：预写日志的组提交，线程越多每次刷盘攒的记录越多；
+ * createOrderByMq：开启引擎后的mq下单，内存扣减加日志刷盘，订单由后台线程写入H2；
+ * 刷盘耗时取决于磁盘，日志目录用 -Dmiaosha.benchmark.dir 指定到与线上相同类型的磁盘上
+ * @author: zhouben
+ * @date: 2020/10/30 0030 15:40
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class InventoryEngineBenchmark {
+
+    private static File createJournalDir() throws IOException {
+        String base = System.getProperty("miaosha.benchmark.dir", System.getProperty("java.io.tmpdir"));
+        return Files.createTempDirectory(Paths.get(base), "miaosha-inventory").toFile();
+    }
+
+    @State(Scope.Benchmark)
+    public static class JournalState {
+
+        private File dir;
+
+        private InventoryJournal journal;
+
+        private volatile long lastSeq;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = createJournalDir();
+            // 每轮之间推进checkpoint，日志超过1M即清空
+            journal = new InventoryJournal(dir.getPath(), 1000, 1 << 20);
+            journal.open();
+            journal.start(records -> lastSeq = records.get(records.size() - 1).getSeq());
+        }
+
+        @Setup(Level.Iteration)
+        public void checkpoint() throws IOException {
+            journal.checkpoint(lastSeq);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            journal.close();
+            FileSystemUtils.deleteRecursively(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EngineState {
+
+        @Param({"1", "16"})
+        private int sidCount;
+
+        private File dir;
+
+        private AnnotationConfigApplicationContext context;
+
+        private OrderService orderService;
+
+        private final AtomicInteger userIds = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            dir = createJournalDir();
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("miaosha.inventory.enabled", true);
+            properties.put("miaosha.inventory.journal-dir", dir.getPath());
+            context = ServiceTestContext.start(properties);
+            // 引擎加载后不再读取数据库库存，整个测试只建一次
+            TestData.resetStock(context.getBean(DataSource.class), sidCount, Integer.MAX_VALUE / 2);
+            orderService = context.getBean(OrderService.class);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            InventoryEngine engine = context.getBean(InventoryEngine.class);
+            if (engine.getUnpersistedCount() > 0) {
+                System.out.println("尚未写入数据库的扣减记录：" + engine.getUnpersistedCount());
+            }
+            context.close();
+            FileSystemUtils.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public long journalAppend(JournalState state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return state.journal.append(1 + random.nextInt(16), random.nextInt(Integer.MAX_VALUE)).join();
+    }
+
+    @Benchmark
+    public OrderStatus createOrderByMq(EngineState state, OrderOutcomes outcomes) {
+        int userId = state.userIds.incrementAndGet();
+        OrderStatus status = state.orderService.createOrderByMq(1 + Math.floorMod(userId, state.sidCount), userId);
+        if (status == OrderStatus.SUCCESS) {
+            outcomes.success++;
+        } else if (status == OrderStatus.SOLD_OUT) {
+            outcomes.soldOut++;
+        } else {
+            outcomes.failed++;
+        }
+        return status;
+    }
+}
@@ -0,0 +1,92 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessageConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:下单消息编解码：二进制格式与原来的fastjson格式
+ * @author: zhouben
+ * @date: 2020/10/30 0030 11:00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderMessageCodecBenchmark {
+
+    /**
+     * 与miaosha.order.message.format一致：binary 或 json
+     */
+    @Param({"binary", "json"})
+    private String format;
+
+    private OrderMessageConverter converter;
+
+    private OrderMessage orderMessage;
+
+    private Message message;
+
+    private byte[] bytes;
+
+    private String json;
+
+    @Setup
+    public void setup() {
+        converter = new OrderMessageConverter(format);
+        orderMessage = OrderMessage.of(1001, 123456789);
+        message = converter.toMessage(orderMessage, new MessageProperties());
+        bytes = OrderMessageConverter.encode(orderMessage);
+        json = OrderMessageConverter.toJson(orderMessage);
+    }
+
+    /**
+     * 发送端：转换为amqp消息
+     */
+    @Benchmark
+    public Message toMessage() {
+        return converter.toMessage(orderMessage, new MessageProperties());
+    }
+
+    /**
+     * 消费端：解析amqp消息
+     */
+    @Benchmark
+    public OrderMessage toOrderMessage() {
+        return converter.toOrderMessage(message);
+    }
+
+    /**
+     * 完整往返，对应消息从发送到消费的编解码开销
+     */
+    @Benchmark
+    public OrderMessage roundTrip() {
+        return converter.toOrderMessage(converter.toMessage(orderMessage, new MessageProperties()));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return "json".equals(format) ? OrderMessageConverter.toJson(orderMessage).getBytes() : OrderMessageConverter.encode(orderMessage);
+    }
+
+    @Benchmark
+    public OrderMessage decode() {
+        return "json".equals(format) ? OrderMessageConverter.parseJson(json) : OrderMessageConverter.decode(bytes);
+    }
+}
@@ -0,0 +1,131 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.OrderMessagePublisher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:下单消息发送吞吐：unconfirmed 逐条发送不等确认（旧实现，broker异常时会丢消息）；
+ * confirmed 逐条发送并等待publisher confirm；batched OrderMessagePublisher攒批发送、异步确认
+ * 每次调用都等到消息被确认（或落盘）才返回，对应下单接口的语义；
+ * 需要一个可访问的rabbitmq（-Dmiaosha.benchmark.rabbitmq-host / rabbitmq-port，默认localhost:5672，guest/guest），
+ * 队列设置了最大长度，压测期间旧消息被丢弃
+ * @author: zhouben
+ * @date: 2020/11/4 0004 14:00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(32)
+public class OrderPublishBenchmark {
+
+    private static final String QUEUE = "benchmark.orderQueue";
+
+    @Param({"unconfirmed", "confirmed", "batched"})
+    private String mode;
+
+    private CachingConnectionFactory connectionFactory;
+
+    private RabbitTemplate rabbitTemplate;
+
+    private AnnotationConfigApplicationContext context;
+
+    private OrderMessagePublisher publisher;
+
+    private File journalDir;
+
+    @Setup
+    public void setup() throws Exception {
+        connectionFactory = new CachingConnectionFactory(
+                System.getProperty("miaosha.benchmark.rabbitmq-host", "localhost"),
+                Integer.getInteger("miaosha.benchmark.rabbitmq-port", 5672));
+        connectionFactory.setUsername(System.getProperty("miaosha.benchmark.rabbitmq-username", "guest"));
+        connectionFactory.setPassword(System.getProperty("miaosha.benchmark.rabbitmq-password", "guest"));
+        connectionFactory.setPublisherConfirms(!"unconfirmed".equals(mode));
+        connectionFactory.setChannelCacheSize(64);
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("x-max-length", 100000);
+        new RabbitAdmin(connectionFactory).declareQueue(new Queue(QUEUE, false, false, false, arguments));
+        rabbitTemplate = new RabbitTemplate(connectionFactory);
+        rabbitTemplate.setMessageConverter(new OrderMessageConverter("binary"));
+
+        if ("batched".equals(mode)) {
+            journalDir = Files.createTempDirectory("order-publish").toFile();
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("miaosha.order.publisher.journal-path", new File(journalDir, "order-publish.journal").getPath());
+            context = new AnnotationConfigApplicationContext();
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+            context.registerBean("rabbitTemplate", RabbitTemplate.class, () -> rabbitTemplate);
+            context.register(OrderMessagePublisher.class);
+            context.refresh();
+            publisher = context.getBean(OrderMessagePublisher.class);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+        connectionFactory.destroy();
+        if (journalDir != null) {
+            File[] files = journalDir.listFiles();
+            if (files != null && files.length > 0) {
+                // 有消息落盘说明发送失败过，本轮结果不能代表正常发送的吞吐
+                System.out.println("警告：有消息写入了本地日志：" + journalDir);
+            } else {
+                journalDir.delete();
+            }
+        }
+    }
+
+    @Benchmark
+    public void publish() throws Exception {
+        OrderMessage message = OrderMessage.of(1, ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+        switch (mode) {
+            case "unconfirmed":
+                rabbitTemplate.convertAndSend("", QUEUE, message);
+                break;
+            case "confirmed":
+                CorrelationData correlation = new CorrelationData(UUID.randomUUID().toString());
+                rabbitTemplate.convertAndSend("", QUEUE, message, correlation);
+                if (!correlation.getFuture().get(5, TimeUnit.SECONDS).isAck()) {
+                    throw new IllegalStateException("消息被nack");
+                }
+                break;
+            default:
+                publisher.publish("", QUEUE, message).get(5, TimeUnit.SECONDS);
+        }
+    }
+}
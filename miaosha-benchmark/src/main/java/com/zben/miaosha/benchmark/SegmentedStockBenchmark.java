@@ -0,0 +1,89 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.benchmark.support.OrderOutcomes;
+import com.zben.miaosha.service.StockSegmentService;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import com.zben.miaosha.support.TestMysql;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:分段库存：同一个商品的库存拆成K段后的扣减吞吐（TPS随K的变化）
+ * 所有线程抢同一个商品，segments=1 相当于不分段的按条件扣减；
+ * 在docker启动的mysql上通过StockSegmentService拆分和扣减，执行StockSegmentMapper中的真实SQL，选段方式由miaosha.stock.segment.route决定
+ * @author: zhouben
+ * @date: 2020/10/30 0030 15:00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(16)
+public class SegmentedStockBenchmark {
+
+    private static final int SID = 1;
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int segments;
+
+    @Param({"random", "round-robin"})
+    private String route;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    private StockSegmentService stockSegmentService;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<String, Object> properties = TestMysql.start();
+        properties.put("miaosha.stock.segment.enabled", true);
+        properties.put("miaosha.stock.segment.route", route);
+        context = ServiceTestContext.start(properties);
+        dataSource = context.getBean(DataSource.class);
+        stockSegmentService = context.getBean(StockSegmentService.class);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetStock() throws SQLException {
+        TestData.resetStock(dataSource, 1, Integer.MAX_VALUE / 2);
+        stockSegmentService.split(SID, segments);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public boolean deduct(OrderOutcomes outcomes) {
+        if (stockSegmentService.deduct(SID, 1) >= 0) {
+            outcomes.success++;
+            return true;
+        }
+        outcomes.soldOut++;
+        return false;
+    }
+}
@@ -0,0 +1,121 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.benchmark.support.OrderOutcomes;
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.OptimisticRetryPolicy;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import com.zben.miaosha.support.TestMysql;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:扣库存的SQL：乐观锁（先读再按版本号更新，冲突后退避重试）与单条语句按条件扣减
+ * 只测stock表这一行的更新，不开事务，每条语句自动提交；
+ * 在docker启动的mysql上通过StockService执行mapper中的真实SQL（按条件扣减用LAST_INSERT_ID(expr)返回剩余库存），
+ * 需要本机有docker，见TestMysql
+ * @author: zhouben
+ * @date: 2020/10/30 0030 14:30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class StockDeductBenchmark {
+
+    @Param({"1", "16"})
+    private int sidCount;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    private StockService stockService;
+
+    private OptimisticRetryPolicy retryPolicy;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = ServiceTestContext.start(TestMysql.start());
+        dataSource = context.getBean(DataSource.class);
+        stockService = context.getBean(StockService.class);
+        retryPolicy = context.getBean(OptimisticRetryPolicy.class);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetStock() throws SQLException {
+        TestData.resetStock(dataSource, sidCount, Integer.MAX_VALUE / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    private int nextSid() {
+        return 1 + ThreadLocalRandom.current().nextInt(sidCount);
+    }
+
+    /**
+     * 每次重试重新读取，StockService.updateStockByOptimistic按版本号更新，退避和重试次数与下单相同
+     */
+    @Benchmark
+    public boolean optimistic(OrderOutcomes outcomes) {
+        int sid = nextSid();
+        for (int attempt = 1; ; attempt++) {
+            Stock stock = stockService.getStockById(sid);
+            if (stock.getSale() >= stock.getCount()) {
+                outcomes.soldOut++;
+                return false;
+            }
+            retryPolicy.recordAttempt(sid);
+            if (stockService.updateStockByOptimistic(stock) > 0) {
+                retryPolicy.recordSuccess(sid, attempt);
+                outcomes.success++;
+                return true;
+            }
+            retryPolicy.recordConflict(sid);
+            if (attempt >= retryPolicy.getMaxAttempts()) {
+                retryPolicy.recordGiveUp(sid);
+                outcomes.failed++;
+                return false;
+            }
+            retryPolicy.backoff(attempt);
+        }
+    }
+
+    /**
+     * StockMapper.deductStock
+     */
+    @Benchmark
+    public boolean conditional(OrderOutcomes outcomes) {
+        if (stockService.deductStock(nextSid(), 1) >= 0) {
+            outcomes.success++;
+            return true;
+        }
+        outcomes.soldOut++;
+        return false;
+    }
+}
@@ -0,0 +1,91 @@
+package com.zben.miaosha.benchmark;
+
+import com.zben.miaosha.service.UserService;
+import com.zben.miaosha.service.utils.VerifyTokenSigner;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:获取抢购验证值：redis模式（md5后写入redis）与hmac模式（无状态签名）
+ * 用户查询走H2，商品信息命中本地缓存，redis写入为桩对象，对比的是两种模式在进程内的开销
+ * @author: zhouben
+ * @date: 2020/10/30 0030 11:20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(8)
+public class VerifyHashBenchmark {
+
+    private static final int USER_COUNT = 10000;
+
+    private static final int SID = 1;
+
+    @Param({"redis", "hmac"})
+    private String mode;
+
+    private AnnotationConfigApplicationContext context;
+
+    private UserService userService;
+
+    private VerifyTokenSigner verifyTokenSigner;
+
+    private String token;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.verify.mode", mode);
+        properties.put("miaosha.verify.active-key-id", "k1");
+        properties.put("miaosha.verify.keys.k1", "benchmark-secret");
+        context = ServiceTestContext.start(properties);
+        DataSource dataSource = context.getBean(DataSource.class);
+        TestData.resetStock(dataSource, 1, 1000);
+        TestData.insertUsers(dataSource, USER_COUNT);
+        userService = context.getBean(UserService.class);
+        verifyTokenSigner = context.getBean(VerifyTokenSigner.class);
+        token = verifyTokenSigner.sign(SID, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String getVerifyHash() throws Exception {
+        int userId = 1 + ThreadLocalRandom.current().nextInt(USER_COUNT);
+        return userService.getVerifyHash(SID, userId);
+    }
+
+    /**
+     * hmac模式下单时的校验，redis模式对应的是一次redis读取，不在进程内
+     */
+    @Benchmark
+    public boolean verifyToken() {
+        return verifyTokenSigner.verify(SID, 1, token);
+    }
+}
@@ -0,0 +1,207 @@
+package com.zben.miaosha.benchmark.load;
+
+import com.zben.miaosha.MiaoshaWebApplication;
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.service.StockService;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @DESC:下单接口压测：阻塞的servlet接口与非阻塞接口在同样并发连接数下的延迟分位数和服务端线程数
+ * 在同一个jvm中启动完整的应用（需要可访问的mysql、redis和rabbitmq，连接配置与应用相同，可用--spring.redis.host=...覆盖），
+ * 每个接口用concurrency个连接闭环请求：预热warmup-seconds秒后统计duration-seconds秒；
+ * 服务端线程数每100ms采样一次：tomcat工作线程（http-nio-*-exec-*）和除压测客户端以外的存活线程；
+ * 把--server.tomcat.max-threads调小（例如20）可以看出两种接口在线程受限时的差别
+ * 参数：--concurrency=500 --duration-seconds=30 --warmup-seconds=10 --sid=1，其余参数传给spring boot；
+ * 商品需要在数据库中存在，每个接口开始前按数据库剩余库存重新预热，压测期间的订单会真实写入数据库；
+ * 运行：java -cp target/benchmarks.jar com.zben.miaosha.benchmark.load.OrderEndpointLoadRunner --concurrency=500 ...
+ * @author: zhouben
+ * @date: 2020/11/4 0004 10:00
+ */
+public class OrderEndpointLoadRunner {
+
+    private static final List<String> ENDPOINTS = Arrays.asList("/createUserOrderWithMq", "/async/createUserOrderWithMq");
+
+    private static final String CLIENT_THREAD_PREFIX = "load-client-";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "500"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration-seconds", "30"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup-seconds", "10"));
+        int sid = Integer.parseInt(options.getOrDefault("sid", "1"));
+        // HttpURLConnection默认每个地址只保留5个keep-alive连接，其余请求会反复建连
+        System.setProperty("http.maxConnections", String.valueOf(concurrency));
+
+        SpringApplication application = new SpringApplication(MiaoshaWebApplication.class);
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("server.port", 0);
+        // 压测的是接口本身，准入控制放到足够大
+        defaults.put("miaosha.admission.initial-rate", 1.0e7);
+        defaults.put("miaosha.admission.max-rate", 1.0e7);
+        defaults.put("miaosha.admission.stock-rate-factor", 0);
+        application.setDefaultProperties(defaults);
+        try (ConfigurableApplicationContext context = application.run(args)) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            StockService stockService = context.getBean(StockService.class);
+            AtomicInteger userIds = new AtomicInteger(1000000000);
+            System.out.println(String.format("%-32s %10s %10s %8s %8s %8s %8s %8s %8s",
+                    "endpoint", "requests", "req/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "tomcat", "threads"));
+            for (String endpoint : ENDPOINTS) {
+                Stock stock = stockService.getStockById(sid);
+                if (stock == null) {
+                    throw new IllegalStateException("商品不存在：" + sid);
+                }
+                stockService.clearSoldOut(sid);
+                stockService.warmUpForSale(stock);
+                String url = "http://127.0.0.1:" + port + endpoint + "?sid=" + sid + "&userId=";
+                run(url, concurrency, warmupSeconds, userIds, false);
+                Result result = run(url, concurrency, durationSeconds, userIds, true);
+                System.out.println(String.format("%-32s %10d %10.0f %8.2f %8.2f %8.2f %8.2f %8d %8d",
+                        endpoint, result.latencies.length, result.latencies.length / (double) durationSeconds,
+                        percentile(result.latencies, 0.50), percentile(result.latencies, 0.99),
+                        percentile(result.latencies, 0.999), percentile(result.latencies, 1.0),
+                        result.peakTomcatThreads, result.peakServerThreads));
+            }
+        }
+    }
+
+    /**
+     * concurrency个客户端线程各自保持一个连接，收到响应后立即发下一个请求
+     */
+    private static Result run(String url, int concurrency, int seconds, AtomicInteger userIds, boolean sample) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<long[]> perThread = new ArrayList<>(concurrency);
+        int[] counts = new int[concurrency];
+        CountDownLatch done = new CountDownLatch(concurrency);
+        AtomicLong errors = new AtomicLong();
+        Result result = new Result();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, CLIENT_THREAD_PREFIX + "sampler"));
+        if (sample) {
+            sampler.scheduleAtFixedRate(result::sampleThreads, 0, 100, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < concurrency; i++) {
+            long[] latencies = new long[1 << 12];
+            perThread.add(latencies);
+            int index = i;
+            Thread client = new Thread(() -> {
+                try {
+                    long[] buffer = latencies;
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        if (!request(url + userIds.incrementAndGet())) {
+                            errors.incrementAndGet();
+                        }
+                        if (counts[index] == buffer.length) {
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                            perThread.set(index, buffer);
+                        }
+                        buffer[counts[index]++] = System.nanoTime() - start;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, CLIENT_THREAD_PREFIX + i);
+            client.start();
+        }
+        done.await();
+        sampler.shutdownNow();
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        result.latencies = new long[total];
+        int offset = 0;
+        for (int i = 0; i < concurrency; i++) {
+            System.arraycopy(perThread.get(i), 0, result.latencies, offset, counts[i]);
+            offset += counts[i];
+        }
+        Arrays.sort(result.latencies);
+        if (errors.get() > 0) {
+            System.out.println("请求失败：" + errors.get());
+        }
+        return result;
+    }
+
+    private static boolean request(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(30000);
+            int status = connection.getResponseCode();
+            // 读完响应体，连接才会被keep-alive复用
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    byte[] buffer = new byte[1024];
+                    while (in.read(buffer) != -1) {
+                        // 丢弃响应体
+                    }
+                }
+            }
+            return status == 200;
+        } catch (Exception e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        return options;
+    }
+
+    private static class Result {
+        private long[] latencies;
+        private volatile int peakTomcatThreads;
+        private volatile int peakServerThreads;
+
+        private void sampleThreads() {
+            int tomcat = 0;
+            int server = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                String name = thread.getName();
+                if (name.startsWith(CLIENT_THREAD_PREFIX)) {
+                    continue;
+                }
+                server++;
+                if (name.startsWith("http-nio-") && name.contains("-exec-")) {
+                    tomcat++;
+                }
+            }
+            peakTomcatThreads = Math.max(peakTomcatThreads, tomcat);
+            peakServerThreads = Math.max(peakServerThreads, server);
+        }
+    }
+}
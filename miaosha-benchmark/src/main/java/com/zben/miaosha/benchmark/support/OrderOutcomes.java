@@ -0,0 +1,30 @@
+package com.zben.miaosha.benchmark.support;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * @DESC:每次下单的结果计数，随吞吐量一起输出到json，冲突多时能看出有多少请求是失败的
+ * @author: zhouben
+ * @date: 2020/10/30 0030 11:40
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class OrderOutcomes {
+
+    public long success;
+
+    public long soldOut;
+
+    public long failed;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        success = 0;
+        soldOut = 0;
+        failed = 0;
+    }
+}
@@ -0,0 +1,118 @@
+package com.zben.miaosha.cache;
+
+import com.zben.miaosha.service.StockService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @DESC:延时双删调度器
+ * 固定线程数的定时线程池，延时窗口内同一商品的多次再删除请求合并为一次，积压超过上限时交给delCache队列处理
+ * @author: zhouben
+ * @date: 2020/10/19 0019 9:40
+ */
+@Component
+@Slf4j
+public class DelayedCacheDeleter {
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    /**
+     * 延时时间：预估读数据库数据业务逻辑的耗时，用来做缓存再删除
+     */
+    @Value("${miaosha.cache.double-delete.delay-millis:1000}")
+    private long delayMillis;
+
+    @Value("${miaosha.cache.double-delete.max-pending:10000}")
+    private int maxPending;
+
+    @Value("${miaosha.cache.double-delete.threads:2}")
+    private int threads;
+
+    /**
+     * 等待再删除的商品
+     */
+    private final Map<Integer, Boolean> pending = new ConcurrentHashMap<>();
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger index = new AtomicInteger();
+        scheduler = new ScheduledThreadPoolExecutor(threads,
+                r -> new Thread(r, "delayed-cache-delete-" + index.incrementAndGet()));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * 延时指定时间后再次删除缓存
+     *
+     * @param sid
+     */
+    public void schedule(int sid) {
+        if (pending.putIfAbsent(sid, Boolean.TRUE) != null) {
+            // 该商品已有等待中的再删除，合并
+            return;
+        }
+        if (pending.size() > maxPending) {
+            pending.remove(sid);
+            log.warn("延时双删积压超过上限：[{}]，商品id：[{}] 交给消息队列删除", maxPending, sid);
+            sendToDelCache(sid);
+            return;
+        }
+        try {
+            scheduler.schedule(() -> delete(sid), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.remove(sid);
+            sendToDelCache(sid);
+        }
+    }
+
+    private void delete(int sid) {
+        // 先移出等待集合，删除期间新的更新会重新调度一次再删除
+        pending.remove(sid);
+        try {
+            boolean b = stockService.delStockCountCache(sid);
+            if (!b) {
+                sendToDelCache(sid);
+            }
+            log.info("再次删除商品id：[{}] 缓存", sid);
+        } catch (Exception e) {
+            log.error("延时双删执行出错", e);
+            sendToDelCache(sid);
+        }
+    }
+
+    /**
+     * 向消息队列delCache发送消息
+     *
+     * @param sid
+     */
+    private void sendToDelCache(int sid) {
+        try {
+            log.info("这就去通知消息队列开始重试删除缓存：[{}]", sid);
+            rabbitTemplate.convertAndSend("delCache", String.valueOf(sid));
+        } catch (Exception e) {
+            log.error("通知消息队列删除商品id：[{}] 缓存失败", sid, e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.zben.miaosha.config;
+
+import lombok.Data;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * @DESC:消费者配置
+ * @author: zhouben
+ * @date: 2020/10/23 0023 9:20
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "miaosha.consumer")
+public class ConsumerProperties {
+
+    /**
+     * 下单队列（每个分片队列分别生效）
+     */
+    private Listener order = new Listener();
+
+    /**
+     * 删除缓存队列
+     */
+    private Listener delCache = new Listener();
+
+    /**
+     * 检查队列积压的间隔
+     */
+    private long monitorIntervalMillis = 1000;
+
+    /**
+     * 积压每增加该数量的消息，消费者增加一个（不超过maxConsumers）
+     */
+    private int scaleUpDepth = 1000;
+
+    /**
+     * 下单队列总积压超过该值时，下单接口直接返回繁忙
+     */
+    private long backpressureDepth = 100000;
+
+    /**
+     * 触发背压后，总积压降到该值以下才恢复接收下单
+     */
+    private long backpressureResumeDepth = 50000;
+
+    @Data
+    public static class Listener {
+
+        private int concurrentConsumers = 1;
+
+        /**
+         * 最大消费者数，大于concurrentConsumers时根据积压自动扩容
+         */
+        private int maxConsumers = 1;
+
+        private int prefetch = 250;
+
+        /**
+         * 每批ack的消息数
+         */
+        private int txSize = 1;
+
+        /**
+         * ack模式：AUTO 处理完成后自动ack；NONE 投递即ack
+         */
+        private AcknowledgeMode acknowledgeMode = AcknowledgeMode.AUTO;
+
+        /**
+         * 下单和删除缓存的消费者是普通的MessageListener，拿不到channel，MANUAL模式下消息永远不会被ack
+         */
+        public void setAcknowledgeMode(AcknowledgeMode acknowledgeMode) {
+            if (acknowledgeMode == AcknowledgeMode.MANUAL) {
+                throw new IllegalArgumentException("acknowledge-mode不支持MANUAL，只能是AUTO或NONE");
+            }
+            this.acknowledgeMode = acknowledgeMode;
+        }
+    }
+}
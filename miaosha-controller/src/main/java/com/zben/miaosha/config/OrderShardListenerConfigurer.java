@@ -0,0 +1,136 @@
+package com.zben.miaosha.config;
+
+import com.zben.miaosha.inventory.InventoryEngine;
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.OrderShardRouter;
+import com.zben.miaosha.message.ProcessedOrderFilter;
+import com.zben.miaosha.receiver.OrderBatchReceiver;
+import com.zben.miaosha.receiver.OrderMqReceiver;
+import com.zben.miaosha.service.OrderResultService;
+import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockService;
+import org.springframework.amqp.rabbit.annotation.RabbitListenerConfigurer;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistrar;
+import org.springframework.amqp.rabbit.listener.SimpleRabbitListenerEndpoint;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @DESC:为每个下单分片队列注册一个消费者
+ * 每个分片只有一个消费者线程，同一商品的下单串行执行，乐观锁不再互相冲突；
+ * 旧的orderQueue也注册一个消费者，消费滚动发布期间旧版本发送的消息
+ * @author: zhouben
+ * @date: 2020/10/22 0022 10:00
+ */
+@Configuration
+public class OrderShardListenerConfigurer implements RabbitListenerConfigurer, DisposableBean {
+
+    private static final String LEGACY_QUEUE = "orderQueue";
+
+    @Autowired
+    private OrderShardRouter orderShardRouter;
+
+    @Autowired
+    private OrderService orderService;
+
+    @Autowired
+    private OrderResultService orderResultService;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private OrderMessageConverter orderMessageConverter;
+
+    @Autowired
+    private ProcessedOrderFilter processedOrderFilter;
+
+    @Autowired
+    private InventoryEngine inventoryEngine;
+
+    @Autowired(required = false)
+    private OrderMqReceiver orderMqReceiver;
+
+    @Autowired
+    @Qualifier("orderListenerContainerFactory")
+    private SimpleRabbitListenerContainerFactory orderListenerContainerFactory;
+
+    @Autowired(required = false)
+    @Qualifier("orderBatchListenerContainerFactory")
+    private SimpleRabbitListenerContainerFactory orderBatchListenerContainerFactory;
+
+    @Value("${miaosha.order.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${miaosha.order.batch.size:200}")
+    private int batchSize;
+
+    @Value("${miaosha.order.batch.timeout-millis:50}")
+    private long batchTimeoutMillis;
+
+    @Value("${miaosha.order.batch.max-redeliveries:3}")
+    private int batchMaxRedeliveries;
+
+    private final List<OrderBatchReceiver> batchReceivers = new ArrayList<>();
+
+    @Override
+    public void configureRabbitListeners(RabbitListenerEndpointRegistrar registrar) {
+        for (String queueName : orderQueueNames()) {
+            SimpleRabbitListenerEndpoint endpoint = new SimpleRabbitListenerEndpoint();
+            endpoint.setId(endpointId(queueName));
+            endpoint.setQueueNames(queueName);
+            if (batchEnabled) {
+                OrderBatchReceiver receiver = new OrderBatchReceiver(orderService, orderResultService, stockService,
+                        orderMessageConverter, processedOrderFilter, batchSize, batchTimeoutMillis, batchMaxRedeliveries, queueName);
+                receiver.init();
+                batchReceivers.add(receiver);
+                endpoint.setMessageListener(receiver);
+                registrar.registerEndpoint(endpoint, orderBatchListenerContainerFactory);
+            } else {
+                endpoint.setMessageListener(orderMqReceiver);
+                registrar.registerEndpoint(endpoint, orderListenerContainerFactory);
+            }
+        }
+    }
+
+    /**
+     * 下单队列对应的监听容器id
+     *
+     * @param queueName
+     * @return
+     */
+    public static String endpointId(String queueName) {
+        return "order-consumer-" + queueName;
+    }
+
+    /**
+     * 本节点消费的下单队列：各分片队列和旧的orderQueue；
+     * 开启内存库存引擎时只消费本节点负责的分片，旧的orderQueue中的商品不一定属于本节点，不再消费
+     *
+     * @return
+     */
+    public List<String> orderQueueNames() {
+        List<String> queueNames = new ArrayList<>();
+        for (int shard = 0; shard < orderShardRouter.getShardCount(); shard++) {
+            if (!inventoryEngine.isEnabled() || inventoryEngine.ownsShard(shard)) {
+                queueNames.add(orderShardRouter.queueName(shard));
+            }
+        }
+        if (!inventoryEngine.isEnabled()) {
+            queueNames.add(LEGACY_QUEUE);
+        }
+        return queueNames;
+    }
+
+    @Override
+    public void destroy() {
+        batchReceivers.forEach(OrderBatchReceiver::destroy);
+    }
+}
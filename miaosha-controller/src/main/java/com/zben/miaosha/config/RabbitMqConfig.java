@@ -1,20 +1,154 @@
 package com.zben.miaosha.config;
 
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.OrderShardRouter;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Declarable;
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.FanoutExchange;
 import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 @Configuration
 public class RabbitMqConfig {
 
+    public static final String ORDER_DEAD_LETTER_QUEUE = "orderQueue.dead";
+
+    /**
+     * 消息转换器，RabbitTemplate和监听容器都会使用
+     */
+    @Bean
+    public OrderMessageConverter orderMessageConverter(@Value("${miaosha.order.message.format:binary}") String format) {
+        return new OrderMessageConverter(format);
+    }
+
     @Bean
     public Queue delCacheQueue() {
         return new Queue("delCache");
     }
 
+    /**
+     * 分片前的下单队列，保留用于消费滚动发布期间旧版本发送的消息
+     */
     @Bean
     public Queue orderQueue() {
         return new Queue("orderQueue");
     }
 
+    /**
+     * 下单死信队列：批量消费者多次处理失败的消息不再入队，转到这里等待人工处理
+     */
+    @Bean
+    public Queue orderDeadLetterQueue() {
+        return new Queue(ORDER_DEAD_LETTER_QUEUE);
+    }
+
+    /**
+     * 下单分片：direct交换机按分片号路由到orderQueue.0 ~ orderQueue.N-1
+     * 多节点部署时开启single-active-consumer，保证每个分片同一时刻只有一个消费者在消费；
+     * 开启dead-letter时被拒绝且不再入队的消息经默认交换机转入死信队列
+     */
+    @Bean
+    public Declarables orderShardDeclarables(OrderShardRouter orderShardRouter,
+                                             @Value("${miaosha.order.shard.single-active-consumer:false}") boolean singleActiveConsumer,
+                                             @Value("${miaosha.order.shard.dead-letter:true}") boolean deadLetter) {
+        DirectExchange exchange = new DirectExchange(OrderShardRouter.EXCHANGE);
+        List<Declarable> declarables = new ArrayList<>();
+        declarables.add(exchange);
+        Map<String, Object> arguments = new HashMap<>();
+        if (singleActiveConsumer) {
+            arguments.put("x-single-active-consumer", true);
+        }
+        if (deadLetter) {
+            arguments.put("x-dead-letter-exchange", "");
+            arguments.put("x-dead-letter-routing-key", ORDER_DEAD_LETTER_QUEUE);
+        }
+        for (int shard = 0; shard < orderShardRouter.getShardCount(); shard++) {
+            Queue queue = new Queue(orderShardRouter.queueName(shard), true, false, false, arguments);
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchange).with(String.valueOf(shard)));
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 逐条下单消费者，每个分片队列一个容器
+     * 分片内多于一个消费者时同一商品的下单会重新出现乐观锁冲突，扩容优先增加分片数
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory orderListenerContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                              ConnectionFactory connectionFactory,
+                                                                              ConsumerProperties consumerProperties) {
+        return listenerContainerFactory(configurer, connectionFactory, consumerProperties.getOrder());
+    }
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory delCacheListenerContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                                 ConnectionFactory connectionFactory,
+                                                                                 ConsumerProperties consumerProperties) {
+        return listenerContainerFactory(configurer, connectionFactory, consumerProperties.getDelCache());
+    }
+
+    private SimpleRabbitListenerContainerFactory listenerContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                          ConnectionFactory connectionFactory,
+                                                                          ConsumerProperties.Listener listener) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setConcurrentConsumers(listener.getConcurrentConsumers());
+        factory.setMaxConcurrentConsumers(Math.max(listener.getConcurrentConsumers(), listener.getMaxConsumers()));
+        factory.setPrefetchCount(listener.getPrefetch());
+        factory.setTxSize(listener.getTxSize());
+        factory.setAcknowledgeMode(listener.getAcknowledgeMode());
+        return factory;
+    }
+
+    /**
+     * 批量下单消费者：手动ack，prefetch不小于批量大小，每个分片一个消费者
+     */
+    @Bean
+    @ConditionalOnProperty(name = "miaosha.order.batch.enabled", havingValue = "true")
+    public SimpleRabbitListenerContainerFactory orderBatchListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                                   @Value("${miaosha.order.batch.size:200}") int batchSize) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(batchSize);
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        return factory;
+    }
+
+    /**
+     * 售罄标记清除广播，每个节点绑定一个匿名队列
+     */
+    @Bean
+    public FanoutExchange soldOutClearExchange() {
+        return new FanoutExchange("soldOutClear");
+    }
+
+    @Bean
+    public Queue soldOutClearQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Binding soldOutClearBinding(FanoutExchange soldOutClearExchange, Queue soldOutClearQueue) {
+        return BindingBuilder.bind(soldOutClearQueue).to(soldOutClearExchange);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.zben.miaosha.controller;
+
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessagePublisher;
+import com.zben.miaosha.message.OrderShardRouter;
+import com.zben.miaosha.receiver.QueueDepthMonitor;
+import com.zben.miaosha.service.OrderResultService;
+import com.zben.miaosha.service.ReactiveStockService;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.service.utils.PreDeductStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+/**
+ * @DESC:非阻塞下单接口
+ * 请求线程只负责发起redis和mq调用，结果就绪后由servlet异步机制写回，不占用tomcat线程等待
+ * @author: zhouben
+ * @date: 2020/10/20 0020 10:10
+ */
+@RestController
+@Slf4j
+public class AsyncMiaoshaController {
+
+    @Autowired
+    StockService stockService;
+
+    @Autowired
+    ReactiveStockService reactiveStockService;
+
+    @Autowired
+    OrderResultService orderResultService;
+
+    @Autowired
+    OrderMessagePublisher orderMessagePublisher;
+
+    @Autowired
+    OrderShardRouter orderShardRouter;
+
+    @Autowired
+    QueueDepthMonitor queueDepthMonitor;
+
+    /**
+     * 下单接口：异步处理订单（非阻塞）
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    @GetMapping("/async/createUserOrderWithMq")
+    public Mono<String> createUserOrderWithMq(@RequestParam(value = "sid") Integer sid,
+                                              @RequestParam(value = "userId") Integer userId) {
+        // 本地预扣售罄标记，秒杀库存预扣完后直接返回，不再访问redis
+        if (stockService.isPreDeductSoldOut(sid)) {
+            return Mono.just("秒杀请求失败，库存不足.....");
+        }
+        // 下单队列积压过多，直接拒绝，不再预扣库存
+        if (queueDepthMonitor.isOrderBackpressure()) {
+            return Mono.just("系统繁忙，请稍后再试.....");
+        }
+        return reactiveStockService.preDeductStock(sid, userId)
+                .flatMap(status -> {
+                    if (status == PreDeductStatus.REPEATED) {
+                        return Mono.just("你已经抢购过了，不要太贪心.....");
+                    }
+                    if (status == PreDeductStatus.SOLD_OUT) {
+                        return Mono.just("秒杀请求失败，库存不足.....");
+                    }
+                    if (status == PreDeductStatus.NOT_READY) {
+                        return Mono.just("秒杀请求失败，秒杀尚未开始.....");
+                    }
+                    // 先记录排队中，再发送消息，避免覆盖消费者写入的结果
+                    return orderResultService.saveStatusReactive(sid, userId, OrderStatus.PENDING)
+                            .then(Mono.defer(() -> sendToOrderQueue(sid, userId)))
+                            .thenReturn("秒杀请求提交成功")
+                            // 消息发送失败，归还预扣的库存
+                            .onErrorResume(e -> reactiveStockService.rollbackPreDeductStock(sid, userId)
+                                    .then(orderResultService.deleteStatusReactive(sid, userId))
+                                    .then(Mono.error(e)));
+                })
+                .onErrorResume(e -> {
+                    log.error("下单接口：异步处理订单异常：", e);
+                    return Mono.just("秒杀请求失败，服务器正忙.....");
+                });
+    }
+
+    /**
+     * 向消息队列发送下单请求消息，broker确认后完成
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    private Mono<Void> sendToOrderQueue(Integer sid, Integer userId) {
+        return Mono.fromFuture(orderMessagePublisher.publish(OrderShardRouter.EXCHANGE,
+                orderShardRouter.routingKey(sid), OrderMessage.of(sid, userId)));
+    }
+}
@@ -1,19 +1,37 @@
 package com.zben.miaosha.controller;
 
-import com.alibaba.fastjson.JSONObject;
-import com.google.common.util.concurrent.RateLimiter;
+import com.zben.miaosha.cache.DelayedCacheDeleter;
+import com.zben.miaosha.domain.StockSegment;
+import com.zben.miaosha.inventory.InventoryEngine;
+import com.zben.miaosha.job.SaleWarmUpJob;
+import com.zben.miaosha.limit.AdmissionControl;
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessagePublisher;
+import com.zben.miaosha.message.OrderShardRouter;
+import com.zben.miaosha.receiver.QueueDepthMonitor;
+import com.zben.miaosha.service.IdBloomFilterService;
+import com.zben.miaosha.service.OrderResultService;
 import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockSegmentService;
 import com.zben.miaosha.service.StockService;
 import com.zben.miaosha.service.UserService;
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.service.utils.PreDeductStatus;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @DESC:
@@ -33,19 +51,56 @@ public class MiaoshaController {
     @Autowired
     StockService stockService;
 
+    @Autowired
+    StockSegmentService stockSegmentService;
+
+    @Autowired
+    InventoryEngine inventoryEngine;
+
     @Autowired
     RabbitTemplate rabbitTemplate;
 
+    @Autowired
+    OrderMessagePublisher orderMessagePublisher;
+
+    @Autowired
+    OrderShardRouter orderShardRouter;
+
+    @Autowired
+    QueueDepthMonitor queueDepthMonitor;
+
+    @Autowired
+    OrderResultService orderResultService;
+
+    @Autowired
+    IdBloomFilterService idBloomFilterService;
+
+    @Autowired
+    SaleWarmUpJob saleWarmUpJob;
+
     /**
-     * 令牌桶限流 每秒放行10个请求
+     * 长轮询等待下单结果的最长时间
      */
-    RateLimiter rateLimiter = RateLimiter.create(10);
+    @Value("${miaosha.order.result.long-poll-timeout-millis:10000}")
+    private long longPollTimeoutMillis;
 
-    // 延时时间：预估读数据库数据业务逻辑的耗时，用来做缓存再删除
-    private static final int DELAY_MILLSECONDS = 1000;
+    /**
+     * 等待下单消息被broker确认的时间
+     */
+    @Value("${miaosha.order.publisher.confirm-timeout-millis:1000}")
+    private long confirmTimeoutMillis;
 
-    // 延时双删线程池
-    private static ExecutorService cachedThreadPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    /**
+     * 准入控制：按商品和接口限流，速率根据耗时和剩余库存自适应调整
+     */
+    @Autowired
+    AdmissionControl admissionControl;
+
+    /**
+     * 延时双删调度器
+     */
+    @Autowired
+    DelayedCacheDeleter delayedCacheDeleter;
 
 
     /**
@@ -112,20 +167,25 @@ public class MiaoshaController {
      */
     @GetMapping("/createOptimisticOrder/{sid}")
     public String createOptimisticOrder(@PathVariable int sid) {
-        //阻塞式获取令牌
-        //log.info("等待时间" + rateLimiter.acquire());
+        // 本地售罄标记，售罄后直接返回，不再访问redis和数据库
+        if (stockService.isSoldOut(sid)) {
+            return "购买失败，库存不足";
+        }
         //非阻塞式获取令牌
-        if (!rateLimiter.tryAcquire(1000, TimeUnit.MILLISECONDS)) {
+        if (!admissionControl.tryAcquire("createOptimisticOrder", sid)) {
             log.warn("你被限流了，真不幸，直接返回失败");
             return "购买失败，库存不足";
         }
         int id;
+        long start = System.currentTimeMillis();
         try {
             id = orderService.createOptimisticOrder(sid);
             log.info("购买成功，剩余库存为: [{}]", id);
         } catch (Exception e) {
             log.error("购买失败：[{}]", e.getMessage());
             return "购买失败，库存不足";
+        } finally {
+            admissionControl.record("createOptimisticOrder", sid, System.currentTimeMillis() - start);
         }
         return String.format("购买成功，剩余库存为：%d", id);
     }
@@ -140,6 +200,10 @@ public class MiaoshaController {
     public String createOrderWithVerifiedUrl(@RequestParam(value = "sid") Integer sid,
                                              @RequestParam(value = "userId") Integer userId,
                                              @RequestParam(value = "verifyHash") String verifyHash) {
+        // 本地售罄标记，售罄后直接返回，不再访问redis和数据库
+        if (stockService.isSoldOut(sid)) {
+            return "购买失败，库存不足";
+        }
         int stockLeft;
         try {
             stockLeft = orderService.createVerifiedOrder(sid, userId, verifyHash);
@@ -161,12 +225,17 @@ public class MiaoshaController {
     public String createOrderWithVerifiedUrlAndLimit(@RequestParam(value = "sid") Integer sid,
                                                      @RequestParam(value = "userId") Integer userId,
                                                      @RequestParam(value = "verifyHash") String verifyHash) {
+        // 本地售罄标记，售罄后直接返回，不再访问redis和数据库
+        if (stockService.isSoldOut(sid)) {
+            return "购买失败，库存不足";
+        }
         //非阻塞式获取令牌
-        if (!rateLimiter.tryAcquire(1000, TimeUnit.MILLISECONDS)) {
+        if (!admissionControl.tryAcquire("createOrderWithVerifiedUrlAndLimit", sid)) {
             log.warn("你被限流了，真不幸，直接返回失败");
             return "购买失败，库存不足";
         }
         int stockLeft;
+        long start = System.currentTimeMillis();
         try {
             boolean isBanned = userService.addUserCount(userId);
             if (isBanned) {
@@ -178,6 +247,8 @@ public class MiaoshaController {
         } catch (Exception e) {
             log.error("购买失败：[{}]", e.getMessage());
             return e.getMessage();
+        } finally {
+            admissionControl.record("createOrderWithVerifiedUrlAndLimit", sid, System.currentTimeMillis() - start);
         }
         return String.format("购买成功，剩余库存为：%d", stockLeft);
     }
@@ -204,21 +275,16 @@ public class MiaoshaController {
     /**
      * 查询库存：通过缓存查询库存
      * 缓存命中：返回库存
-     * 缓存未命中：查询数据库写入缓存并返回
+     * 缓存未命中：查询数据库写入缓存并返回，同一商品并发的未命中只查询一次数据库
      *
      * @param sid
      * @return
      */
     @RequestMapping("/getStockByCache/{sid}")
     public String getStockByCache(@PathVariable int sid) {
-        Integer count;
+        int count;
         try {
-            count = stockService.getStockCountByCache(sid);
-            if (count == null) {
-                count = stockService.getStockCountByDB(sid);
-                log.info("缓存未命中，查询数据库，并写入缓存");
-                stockService.setStockCountToCache(sid, count);
-            }
+            count = stockService.getStockCountWithLoader(sid);
         } catch (Exception e) {
             log.error("查询库存失败：[{}]", e.getMessage());
             return "查询库存失败";
@@ -227,6 +293,73 @@ public class MiaoshaController {
         return String.format("商品Id: %d 剩余库存为：%d", sid, count);
     }
 
+    /**
+     * 查询库存缓存未命中加载的统计
+     *
+     * @return
+     */
+    @RequestMapping("/getStockLoadMetrics")
+    public Map<String, Long> getStockLoadMetrics() {
+        return stockService.getStockLoadMetrics();
+    }
+
+    /**
+     * 就绪检查：即将开始和进行中的秒杀全部预热完成前返回503，负载均衡只把流量转到就绪的节点
+     *
+     * @return
+     */
+    @RequestMapping("/ready")
+    public ResponseEntity<String> ready() {
+        if (saleWarmUpJob.isReady()) {
+            return ResponseEntity.ok("READY");
+        }
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("WARMING_UP");
+    }
+
+    /**
+     * 查询布隆过滤器的元素数、误判率和内存占用
+     *
+     * @return
+     */
+    @RequestMapping("/getBloomFilterReport")
+    public Map<String, Object> getBloomFilterReport() {
+        return idBloomFilterService.getReport();
+    }
+
+    /**
+     * 查询本节点内存库存引擎的剩余库存和尚未写入数据库的记录数
+     *
+     * @return
+     */
+    @RequestMapping("/getInventoryEngineReport")
+    public Map<String, Object> getInventoryEngineReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("enabled", inventoryEngine.isEnabled());
+        report.put("remaining", inventoryEngine.getRemainingSnapshot());
+        report.put("unpersisted", inventoryEngine.getUnpersistedCount());
+        return report;
+    }
+
+    /**
+     * 查询各商品的乐观锁冲突统计
+     *
+     * @return
+     */
+    @RequestMapping("/getStockConflictMetrics")
+    public Map<Integer, Map<String, Object>> getStockConflictMetrics() {
+        return orderService.getStockConflictMetrics();
+    }
+
+    /**
+     * 查询各队列最近一次检查到的积压消息数
+     *
+     * @return
+     */
+    @RequestMapping("/getQueueDepths")
+    public Map<String, Long> getQueueDepths() {
+        return queueDepthMonitor.getDepths();
+    }
+
     /**
      * 下单接口：先删除缓存 在更新数据库
      *
@@ -235,6 +368,10 @@ public class MiaoshaController {
      */
     @RequestMapping("/createOrderWithCacheV1/{sid}")
     public String createOrderWithCacheV1(@PathVariable int sid) {
+        // 本地售罄标记，售罄后直接返回，不再访问redis和数据库
+        if (stockService.isSoldOut(sid)) {
+            return "购买失败，库存不足";
+        }
         int count = 0;
         try {
             // 删除库存缓存
@@ -257,6 +394,10 @@ public class MiaoshaController {
      */
     @RequestMapping("/createOrderWithCacheV2/{sid}")
     public String createOrderWithCacheV2(@PathVariable int sid) {
+        // 本地售罄标记，售罄后直接返回，不再访问redis和数据库
+        if (stockService.isSoldOut(sid)) {
+            return "购买失败，库存不足";
+        }
         int count = 0;
         try {
             // 完成扣库存下单事务
@@ -279,6 +420,10 @@ public class MiaoshaController {
      */
     @RequestMapping("/createOrderWithCacheV3/{sid}")
     public String createOrderWithCacheV3(@PathVariable int sid) {
+        // 本地售罄标记，售罄后直接返回，不再访问redis和数据库
+        if (stockService.isSoldOut(sid)) {
+            return "购买失败，库存不足";
+        }
         int count;
         try {
             // 删除库存缓存
@@ -286,7 +431,7 @@ public class MiaoshaController {
             // 完成扣库存下单事务
             count = orderService.createPessimisticOrder(sid);
             // 延时指定时间后再次删除缓存
-            cachedThreadPool.execute(new delCacheByThread(sid));
+            delayedCacheDeleter.schedule(sid);
         } catch (Exception e) {
             log.error("购买失败：[{}]", e.getMessage());
             return "购买失败，库存不足";
@@ -303,6 +448,10 @@ public class MiaoshaController {
      */
     @RequestMapping("/createOrderWithCacheV4/{sid}")
     public String createOrderWithCacheV4(@PathVariable int sid) {
+        // 本地售罄标记，售罄后直接返回，不再访问redis和数据库
+        if (stockService.isSoldOut(sid)) {
+            return "购买失败，库存不足";
+        }
         int count;
         boolean b = false;
         try {
@@ -311,7 +460,7 @@ public class MiaoshaController {
             // 删除库存缓存
             b = stockService.delStockCountCache(sid);
             // 延时指定时间后再次删除缓存
-            cachedThreadPool.execute(new delCacheByThread(sid));
+            delayedCacheDeleter.schedule(sid);
         } catch (Exception e) {
             log.error("购买失败：[{}]", e.getMessage());
             if (!b) {
@@ -334,27 +483,41 @@ public class MiaoshaController {
     @ResponseBody
     public String createUserOrderWithMq(@RequestParam(value = "sid") Integer sid,
                                         @RequestParam(value = "userId") Integer userId) {
+        // 本地预扣售罄标记，秒杀库存预扣完后直接返回，不再访问redis
+        if (stockService.isPreDeductSoldOut(sid)) {
+            return "秒杀请求失败，库存不足.....";
+        }
+        // 下单队列积压过多，直接拒绝，不再预扣库存
+        if (queueDepthMonitor.isOrderBackpressure()) {
+            return "系统繁忙，请稍后再试.....";
+        }
         try {
-            // 检查缓存中该用户是否已经下单过
-            Boolean hasOrder = orderService.checkUserOrderInfoInCache(sid, userId);
-            if (hasOrder != null && hasOrder) {
+            // 在缓存中原子地校验用户是否已经下单过、扣减库存并记录用户，只有预扣成功的请求才会进入消息队列
+            PreDeductStatus status = stockService.preDeductStock(sid, userId);
+            if (status == PreDeductStatus.REPEATED) {
                 log.info("该用户已经抢购过");
                 return "你已经抢购过了，不要太贪心.....";
             }
-            // 没有下单过，检查缓存中商品是否还有库存
-            log.info("没有抢购过，检查缓存中商品是否还有库存");
-            Integer count = stockService.getStockCountByCache(sid);
-            if (count <= 0) {
+            if (status == PreDeductStatus.SOLD_OUT) {
                 return "秒杀请求失败，库存不足.....";
             }
+            if (status == PreDeductStatus.NOT_READY) {
+                log.warn("商品id：[{}] 秒杀库存未预热", sid);
+                return "秒杀请求失败，秒杀尚未开始.....";
+            }
 
-            // 有库存，则将用户id和商品id封装为消息体传给消息队列处理
-            // 注意这里的有库存和已经下单都是缓存中的结论，存在不可靠性，在消息队列中会查表再次验证
-            log.info("有库存：[{}]", count);
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put("sid", sid);
-            jsonObject.put("userId", userId);
-            sendToOrderQueue(jsonObject.toJSONString());
+            // 预扣成功，则将用户id和商品id封装为消息体传给消息队列处理
+            // 消息队列中仍会查表再次验证库存
+            // 先记录排队中，再发送消息，避免覆盖消费者写入的结果
+            orderResultService.saveStatus(sid, userId, OrderStatus.PENDING);
+            try {
+                sendToOrderQueue(OrderMessage.of(sid, userId));
+            } catch (Exception e) {
+                // 消息发送失败，归还预扣的库存
+                stockService.rollbackPreDeductStock(sid, userId);
+                orderResultService.deleteStatus(sid, userId);
+                throw e;
+            }
             return "秒杀请求提交成功";
         } catch (Exception e) {
             log.error("下单接口：异步处理订单异常：", e);
@@ -363,70 +526,136 @@ public class MiaoshaController {
     }
 
     /**
-     * 向消息队列发送下单请求消息
+     * 补货后重新加载秒杀库存，并广播清除所有节点的售罄标记
      *
-     * @param message
+     * @param sid
+     * @return
      */
-    public void sendToOrderQueue(String message) {
-        log.info("这就去通知消息队列开始下单：[{}]", message);
-        this.rabbitTemplate.convertAndSend("orderQueue", message);
+    @RequestMapping("/clearSoldOut/{sid}")
+    public String clearSoldOut(@PathVariable int sid) {
+        try {
+            stockService.refreshSeckillStock(sid);
+            log.info("广播清除商品id：[{}] 售罄标记", sid);
+            this.rabbitTemplate.convertAndSend("soldOutClear", "", String.valueOf(sid));
+        } catch (Exception e) {
+            log.error("清除售罄标记失败：[{}]", e.getMessage());
+            return "清除售罄标记失败";
+        }
+        return String.format("商品Id: %d 已清除售罄标记", sid);
     }
 
     /**
-     * 向消息队列delCache发送消息
+     * 拆分商品库存为多个分段（需开启miaosha.stock.segment.enabled，并在秒杀开始前执行）
      *
-     * @param message
+     * @param sid
+     * @param segments
+     * @return
      */
-    private void sendToDelCache(String message) {
-        log.info("这就去通知消息队列开始重试删除缓存：[{}]", message);
-        this.rabbitTemplate.convertAndSend("delCache", message);
+    @RequestMapping("/splitStock/{sid}")
+    public String splitStock(@PathVariable int sid, @RequestParam(value = "segments") Integer segments) {
+        if (!stockSegmentService.isEnabled()) {
+            return "未开启分段库存";
+        }
+        try {
+            int count = stockSegmentService.split(sid, segments);
+            stockService.delStockCountCache(sid);
+            return String.format("商品Id: %d 剩余库存 %d 已拆分为 %d 段", sid, count, segments);
+        } catch (Exception e) {
+            log.error("拆分库存失败：[{}]", e.getMessage());
+            return "拆分库存失败";
+        }
     }
 
-
     /**
-     * 缓存再删除线程
+     * 合并商品库存分段
+     *
+     * @param sid
+     * @return
      */
-    private class delCacheByThread implements Runnable {
-        private int sid;
-
-        public delCacheByThread(int sid) {
-            this.sid = sid;
-        }
-
-        public void run() {
-            try {
-                log.info("异步执行缓存再删除，商品id：[{}]， 首先休眠：[{}] 毫秒", sid, DELAY_MILLSECONDS);
-                Thread.sleep(DELAY_MILLSECONDS);
-                boolean b = stockService.delStockCountCache(sid);
-                if (!b) {
-                    sendToDelCache(String.valueOf(sid));
-                }
-                log.info("再次删除商品id：[{}] 缓存", sid);
-            } catch (Exception e) {
-                log.error("delCacheByThread执行出错", e);
-            }
+    @RequestMapping("/mergeStock/{sid}")
+    public String mergeStock(@PathVariable int sid) {
+        try {
+            int count = stockSegmentService.merge(sid);
+            stockService.delStockCountCache(sid);
+            return String.format("商品Id: %d 已合并分段，剩余库存 %d", sid, count);
+        } catch (Exception e) {
+            log.error("合并库存分段失败：[{}]", e.getMessage());
+            return "合并库存分段失败";
         }
     }
-}
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
 
+    /**
+     * 查询商品库存分段
+     *
+     * @param sid
+     * @return
+     */
+    @RequestMapping("/getStockSegments/{sid}")
+    public List<StockSegment> getStockSegments(@PathVariable int sid) {
+        return stockSegmentService.getSegments(sid);
+    }
 
+    /**
+     * 查询异步下单结果
+     * PENDING 排队中；SUCCESS 下单成功；SOLD_OUT 库存不足；FAILED 下单失败；NOT_FOUND 没有提交过下单请求
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    @GetMapping("/getOrderStatus")
+    public String getOrderStatus(@RequestParam(value = "sid") Integer sid,
+                                 @RequestParam(value = "userId") Integer userId) {
+        OrderStatus status = orderResultService.getStatus(sid, userId);
+        return status == null ? "NOT_FOUND" : status.name();
+    }
 
+    /**
+     * 长轮询异步下单结果：已有最终结果时立即返回，否则等待结果通知，超时返回当前结果
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    @GetMapping("/waitOrderStatus")
+    public DeferredResult<String> waitOrderStatus(@RequestParam(value = "sid") Integer sid,
+                                                  @RequestParam(value = "userId") Integer userId) {
+        DeferredResult<String> result = new DeferredResult<>(longPollTimeoutMillis);
+        OrderStatus status = orderResultService.getStatus(sid, userId);
+        if (status == null || status.isFinal()) {
+            result.setResult(status == null ? "NOT_FOUND" : status.name());
+            return result;
+        }
+        CompletableFuture<OrderStatus> future = orderResultService.awaitFinalStatus(sid, userId);
+        future.thenAccept(finalStatus -> result.setResult(finalStatus.name()));
+        result.onTimeout(() -> result.setResult(OrderStatus.PENDING.name()));
+        result.onCompletion(() -> orderResultService.cancelAwait(sid, userId, future));
+        return result;
+    }
 
+    /**
+     * 向消息队列发送下单请求消息
+     *
+     * @param message
+     */
+    public void sendToOrderQueue(OrderMessage message) throws Exception {
+        log.info("这就去通知消息队列开始下单：[{}]", message);
+        try {
+            orderMessagePublisher.publish(OrderShardRouter.EXCHANGE, orderShardRouter.routingKey(message.getSid()), message).get(confirmTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // 消息仍在发送队列中，最终会被确认或写入本地日志，不算失败
+            log.warn("等待下单消息确认超时：[{}]", message);
+        }
+    }
 
+    /**
+     * 向消息队列delCache发送消息
+     *
+     * @param message
+     */
+    private void sendToDelCache(String message) {
+        log.info("这就去通知消息队列开始重试删除缓存：[{}]", message);
+        this.rabbitTemplate.convertAndSend("delCache", message);
+    }
 
+}
@@ -0,0 +1,27 @@
+package com.zben.miaosha.limit;
+
+/**
+ * @DESC:下单准入控制
+ * @author: zhouben
+ * @date: 2020/10/12 0012 9:30
+ */
+public interface AdmissionControl {
+
+    /**
+     * 非阻塞地尝试获取许可
+     *
+     * @param endpoint 接口名
+     * @param sid      商品id
+     * @return 是否放行
+     */
+    boolean tryAcquire(String endpoint, int sid);
+
+    /**
+     * 上报一次放行请求的耗时，用于调整许可速率
+     *
+     * @param endpoint   接口名
+     * @param sid        商品id
+     * @param costMillis 耗时
+     */
+    void record(String endpoint, int sid, long costMillis);
+}
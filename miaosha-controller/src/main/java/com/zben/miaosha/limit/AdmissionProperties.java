@@ -0,0 +1,86 @@
+package com.zben.miaosha.limit;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * @DESC:准入控制配置
+ * @author: zhouben
+ * @date: 2020/10/12 0012 9:35
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "miaosha.admission")
+public class AdmissionProperties {
+
+    /**
+     * 实现类型：local 单节点自适应限流；redis 集群共享令牌桶
+     */
+    private String type = "local";
+
+    /**
+     * 每个商品每个接口的初始许可速率（每秒）
+     */
+    private double initialRate = 10;
+
+    private double minRate = 1;
+
+    private double maxRate = 1000;
+
+    /**
+     * 目标耗时，平均耗时超过该值时降低速率
+     */
+    private long targetLatencyMillis = 50;
+
+    /**
+     * 耗时正常时每次调整增加的速率
+     */
+    private double increaseStep = 5;
+
+    /**
+     * 耗时超标时速率乘以该系数
+     */
+    private double decreaseFactor = 0.7;
+
+    /**
+     * 速率上限为剩余库存乘以该系数，小于等于0不按库存限制
+     */
+    private double stockRateFactor = 2;
+
+    /**
+     * 速率调整间隔
+     */
+    private long adjustIntervalMillis = 1000;
+
+    /**
+     * 空闲超过该时间的限流器会被回收
+     */
+    private long idleEvictMillis = 600000;
+
+    private Redis redis = new Redis();
+
+    @Data
+    public static class Redis {
+
+        /**
+         * 集群内每个商品每个接口的许可速率（每秒）
+         */
+        private double rate = 100;
+
+        /**
+         * 令牌桶容量
+         */
+        private int capacity = 100;
+
+        /**
+         * 每次从redis预取的许可数，减少redis访问次数
+         */
+        private int batchSize = 10;
+
+        /**
+         * 预取的许可在本地的有效期，过期未用完的许可作废
+         */
+        private long leaseMillis = 200;
+    }
+}
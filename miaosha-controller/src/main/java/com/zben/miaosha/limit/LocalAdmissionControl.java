@@ -0,0 +1,128 @@
+package com.zben.miaosha.limit;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.zben.miaosha.service.StockService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @DESC:单节点自适应准入控制
+ * 每个商品每个接口一个令牌桶，根据请求耗时（加性增、乘性减）和剩余库存定时调整速率，获取不到令牌立即拒绝
+ * @author: zhouben
+ * @date: 2020/10/12 0012 9:48
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(prefix = "miaosha.admission", name = "type", havingValue = "local", matchIfMissing = true)
+public class LocalAdmissionControl implements AdmissionControl {
+
+    @Autowired
+    private AdmissionProperties properties;
+
+    @Autowired
+    private StockService stockService;
+
+    private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService adjustExecutor;
+
+    @PostConstruct
+    public void init() {
+        adjustExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "admission-adjust"));
+        adjustExecutor.scheduleWithFixedDelay(this::adjust, properties.getAdjustIntervalMillis(),
+                properties.getAdjustIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        adjustExecutor.shutdown();
+    }
+
+    @Override
+    public boolean tryAcquire(String endpoint, int sid) {
+        Limiter limiter = limiters.computeIfAbsent(endpoint + "_" + sid, k -> new Limiter(sid, properties.getInitialRate()));
+        limiter.lastAccessMillis = System.currentTimeMillis();
+        return limiter.rateLimiter.tryAcquire();
+    }
+
+    @Override
+    public void record(String endpoint, int sid, long costMillis) {
+        Limiter limiter = limiters.get(endpoint + "_" + sid);
+        if (limiter != null) {
+            limiter.costSum.add(costMillis);
+            limiter.costCount.increment();
+        }
+    }
+
+    /**
+     * 定时调整各限流器速率
+     */
+    private void adjust() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Limiter>> iterator = limiters.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Limiter> entry = iterator.next();
+            Limiter limiter = entry.getValue();
+            if (now - limiter.lastAccessMillis > properties.getIdleEvictMillis()) {
+                iterator.remove();
+                continue;
+            }
+            try {
+                double rate = nextRate(limiter);
+                if (rate != limiter.rateLimiter.getRate()) {
+                    limiter.rateLimiter.setRate(rate);
+                    log.info("准入控制[{}] 速率调整为：[{}]", entry.getKey(), rate);
+                }
+            } catch (Exception e) {
+                log.error("准入控制[{}] 调整速率失败：[{}]", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private double nextRate(Limiter limiter) {
+        double rate = limiter.rateLimiter.getRate();
+        long count = limiter.costCount.sumThenReset();
+        long sum = limiter.costSum.sumThenReset();
+        if (count > 0) {
+            if (sum / count > properties.getTargetLatencyMillis()) {
+                rate = rate * properties.getDecreaseFactor();
+            } else {
+                rate = rate + properties.getIncreaseStep();
+            }
+        }
+        if (stockService.isSoldOut(limiter.sid)) {
+            rate = properties.getMinRate();
+        } else if (properties.getStockRateFactor() > 0) {
+            Integer stockCount = stockService.getStockCountByCache(limiter.sid);
+            if (stockCount != null) {
+                rate = Math.min(rate, stockCount * properties.getStockRateFactor());
+            }
+        }
+        return Math.max(properties.getMinRate(), Math.min(properties.getMaxRate(), rate));
+    }
+
+    private static class Limiter {
+        private final int sid;
+        private final RateLimiter rateLimiter;
+        private final LongAdder costSum = new LongAdder();
+        private final LongAdder costCount = new LongAdder();
+        private volatile long lastAccessMillis;
+
+        private Limiter(int sid, double rate) {
+            this.sid = sid;
+            this.rateLimiter = RateLimiter.create(rate);
+        }
+    }
+}
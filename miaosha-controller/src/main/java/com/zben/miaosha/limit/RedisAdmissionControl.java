@@ -0,0 +1,80 @@
+package com.zben.miaosha.limit;
+
+import com.zben.miaosha.service.utils.CacheKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @DESC:集群准入控制
+ * 所有节点共享redis中的令牌桶，每次lua调用批量预取许可到本地，本地许可用完或过期后再访问redis
+ * @author: zhouben
+ * @date: 2020/10/13 0013 10:05
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(prefix = "miaosha.admission", name = "type", havingValue = "redis")
+public class RedisAdmissionControl implements AdmissionControl {
+
+    @Autowired
+    private AdmissionProperties properties;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisScript<Long> tokenBucketScript;
+
+    private final Map<String, LocalPermits> localPermits = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean tryAcquire(String endpoint, int sid) {
+        String key = CacheKey.RATE_LIMIT.getKey() + "_" + endpoint + "_" + sid;
+        LocalPermits permits = localPermits.computeIfAbsent(key, k -> new LocalPermits());
+        synchronized (permits) {
+            long now = System.currentTimeMillis();
+            if (permits.count > 0 && now < permits.expireAtMillis) {
+                permits.count--;
+                return true;
+            }
+            int granted = fetch(key);
+            if (granted <= 0) {
+                permits.count = 0;
+                return false;
+            }
+            permits.count = granted - 1;
+            permits.expireAtMillis = now + properties.getRedis().getLeaseMillis();
+            return true;
+        }
+    }
+
+    @Override
+    public void record(String endpoint, int sid, long costMillis) {
+        // 集群令牌桶按配置的固定速率放行，不根据耗时调整
+    }
+
+    private int fetch(String key) {
+        AdmissionProperties.Redis redis = properties.getRedis();
+        try {
+            Long granted = stringRedisTemplate.execute(tokenBucketScript, Collections.singletonList(key),
+                    String.valueOf(redis.getRate()), String.valueOf(redis.getCapacity()),
+                    String.valueOf(redis.getBatchSize()));
+            return granted == null ? 0 : granted.intValue();
+        } catch (Exception e) {
+            log.error("从redis获取许可失败，拒绝请求：[{}]", e.getMessage());
+            return 0;
+        }
+    }
+
+    private static class LocalPermits {
+        private int count;
+        private long expireAtMillis;
+    }
+}
@@ -0,0 +1,36 @@
+package com.zben.miaosha.message;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @DESC:下单消息
+ * @author: zhouben
+ * @date: 2020/10/21 0021 15:30
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderMessage {
+
+    private int sid;
+
+    private int userId;
+
+    /**
+     * 请求id，同一次下单请求重发时保持不变
+     */
+    private long requestId;
+
+    /**
+     * 下单请求时间（毫秒）
+     */
+    private long timestamp;
+
+    public static OrderMessage of(int sid, int userId) {
+        return new OrderMessage(sid, userId, ThreadLocalRandom.current().nextLong(), System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,150 @@
+package com.zben.miaosha.message;
+
+import com.alibaba.fastjson.JSONObject;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @DESC:下单消息转换器
+ * 下单消息使用定长二进制格式：magic(2) version(1) sid(4) userId(4) requestId(8) timestamp(8)，共27字节，大端序；
+ * 兼容旧版本发送的json字符串消息，其他消息（删除缓存、售罄广播等字符串）交给SimpleMessageConverter
+ * @author: zhouben
+ * @date: 2020/10/21 0021 15:40
+ */
+public class OrderMessageConverter implements MessageConverter {
+
+    public static final String CONTENT_TYPE_BINARY = "application/x-miaosha-order";
+
+    public static final short MAGIC = 0x4D53;
+
+    public static final byte VERSION = 1;
+
+    public static final int LENGTH = 27;
+
+    private final SimpleMessageConverter delegate = new SimpleMessageConverter();
+
+    /**
+     * 发送格式：binary 二进制；json 与旧版本消费者兼容的json字符串，滚动发布期间使用
+     */
+    private final boolean binary;
+
+    public OrderMessageConverter(String format) {
+        this.binary = !"json".equalsIgnoreCase(format);
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        if (!(object instanceof OrderMessage)) {
+            return delegate.toMessage(object, messageProperties);
+        }
+        OrderMessage orderMessage = (OrderMessage) object;
+        if (!binary) {
+            return delegate.toMessage(toJson(orderMessage), messageProperties);
+        }
+        messageProperties.setContentType(CONTENT_TYPE_BINARY);
+        messageProperties.setContentLength(LENGTH);
+        return new Message(encode(orderMessage), messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        if (CONTENT_TYPE_BINARY.equals(message.getMessageProperties().getContentType())) {
+            return decode(message.getBody());
+        }
+        return delegate.fromMessage(message);
+    }
+
+    /**
+     * 将消息体解析为下单消息，兼容二进制和json两种格式
+     *
+     * @param message
+     * @return
+     */
+    public OrderMessage toOrderMessage(Message message) {
+        Object payload = fromMessage(message);
+        if (payload instanceof OrderMessage) {
+            return (OrderMessage) payload;
+        }
+        if (payload instanceof byte[]) {
+            payload = new String((byte[]) payload, StandardCharsets.UTF_8);
+        }
+        if (payload instanceof String) {
+            return parseJson((String) payload);
+        }
+        throw new MessageConversionException("无法识别的下单消息：" + message.getMessageProperties().getContentType());
+    }
+
+    public static byte[] encode(OrderMessage message) {
+        byte[] bytes = new byte[LENGTH];
+        bytes[0] = (byte) (MAGIC >>> 8);
+        bytes[1] = (byte) MAGIC;
+        bytes[2] = VERSION;
+        putInt(bytes, 3, message.getSid());
+        putInt(bytes, 7, message.getUserId());
+        putLong(bytes, 11, message.getRequestId());
+        putLong(bytes, 19, message.getTimestamp());
+        return bytes;
+    }
+
+    public static OrderMessage decode(byte[] bytes) {
+        // 新版本只允许在尾部追加字段，旧版本按已知长度读取
+        if (bytes == null || bytes.length < LENGTH) {
+            throw new MessageConversionException("下单消息长度错误：" + (bytes == null ? 0 : bytes.length));
+        }
+        short magic = (short) (((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF));
+        if (magic != MAGIC || bytes[2] < VERSION) {
+            throw new MessageConversionException("下单消息头错误：magic=" + magic + " version=" + bytes[2]);
+        }
+        return new OrderMessage(getInt(bytes, 3), getInt(bytes, 7), getLong(bytes, 11), getLong(bytes, 19));
+    }
+
+    public static String toJson(OrderMessage message) {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("sid", message.getSid());
+        jsonObject.put("userId", message.getUserId());
+        jsonObject.put("requestId", message.getRequestId());
+        jsonObject.put("timestamp", message.getTimestamp());
+        return jsonObject.toJSONString();
+    }
+
+    public static OrderMessage parseJson(String json) {
+        JSONObject jsonObject = JSONObject.parseObject(json);
+        Integer sid = jsonObject.getInteger("sid");
+        Integer userId = jsonObject.getInteger("userId");
+        if (sid == null || userId == null) {
+            throw new MessageConversionException("下单消息缺少sid或userId：" + json);
+        }
+        // 旧版本消息没有requestId和timestamp
+        Long requestId = jsonObject.getLong("requestId");
+        Long timestamp = jsonObject.getLong("timestamp");
+        return new OrderMessage(sid, userId, requestId == null ? 0L : requestId, timestamp == null ? 0L : timestamp);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        putInt(bytes, offset, (int) (value >>> 32));
+        putInt(bytes, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,108 @@
+package com.zben.miaosha.message;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * @DESC:本地磁盘消息日志，发送失败的消息落盘，之后由发送器重放
+ * 每行一条消息：exchange \t routingKey \t contentType \t base64(body)
+ * @author: zhouben
+ * @date: 2020/10/21 0021 10:20
+ */
+public class OrderMessageJournal {
+
+    private final File journalFile;
+
+    private final File replayFile;
+
+    public OrderMessageJournal(String path) {
+        this.journalFile = new File(path);
+        this.replayFile = new File(path + ".replay");
+        File parent = journalFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IllegalStateException("创建消息日志目录失败：" + parent);
+        }
+    }
+
+    /**
+     * 追加一条消息并刷盘
+     */
+    public synchronized void append(String exchange, String routingKey, Message message) throws IOException {
+        String contentType = message.getMessageProperties().getContentType();
+        String line = exchange + "\t" + routingKey + "\t" + (contentType == null ? "" : contentType) + "\t"
+                + Base64.getEncoder().encodeToString(message.getBody()) + "\n";
+        try (FileOutputStream out = new FileOutputStream(journalFile, true);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.write(line);
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * 取出待重放的消息：上次未重放完的文件优先，否则把当前日志转为重放文件
+     * 重放全部完成后调用{@link #finishReplay()}删除重放文件，进程中途退出时下次启动会再次重放
+     */
+    public synchronized List<Entry> startReplay() throws IOException {
+        if (!replayFile.exists()) {
+            if (!journalFile.exists() || journalFile.length() == 0) {
+                return new ArrayList<>();
+            }
+            Files.move(journalFile.toPath(), replayFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(replayFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t", -1);
+            if (parts.length != 4) {
+                // 写到一半的行
+                continue;
+            }
+            MessageProperties properties = new MessageProperties();
+            if (!parts[2].isEmpty()) {
+                properties.setContentType(parts[2]);
+            }
+            entries.add(new Entry(parts[0], parts[1], new Message(Base64.getDecoder().decode(parts[3]), properties)));
+        }
+        return entries;
+    }
+
+    public synchronized void finishReplay() throws IOException {
+        Files.deleteIfExists(replayFile.toPath());
+    }
+
+    public static class Entry {
+        private final String exchange;
+        private final String routingKey;
+        private final Message message;
+
+        public Entry(String exchange, String routingKey, Message message) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.message = message;
+        }
+
+        public String getExchange() {
+            return exchange;
+        }
+
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+}
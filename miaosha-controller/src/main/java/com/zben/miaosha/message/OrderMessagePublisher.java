@@ -0,0 +1,225 @@
+package com.zben.miaosha.message;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:批量发送下单消息
+ * 消息先进入内存队列，发送线程攒几毫秒后在同一个channel上连续发送，publisher confirm异步确认后完成调用方的future；
+ * nack或发送异常时重试，超过重试次数写入本地磁盘日志，由定时任务重放
+ * @author: zhouben
+ * @date: 2020/10/21 0021 9:50
+ */
+@Component
+@Slf4j
+public class OrderMessagePublisher {
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Value("${miaosha.order.publisher.batch-size:100}")
+    private int batchSize;
+
+    @Value("${miaosha.order.publisher.linger-millis:5}")
+    private long lingerMillis;
+
+    @Value("${miaosha.order.publisher.queue-capacity:100000}")
+    private int queueCapacity;
+
+    @Value("${miaosha.order.publisher.max-retries:3}")
+    private int maxRetries;
+
+    @Value("${miaosha.order.publisher.journal-path:data/order-publish.journal}")
+    private String journalPath;
+
+    @Value("${miaosha.order.publisher.replay-interval-millis:10000}")
+    private long replayIntervalMillis;
+
+    private BlockingQueue<PendingMessage> queue;
+
+    private OrderMessageJournal journal;
+
+    private volatile boolean running;
+
+    private Thread sender;
+
+    private ScheduledExecutorService replayExecutor;
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        journal = new OrderMessageJournal(journalPath);
+        running = true;
+        sender = new Thread(this::sendLoop, "order-publisher");
+        sender.start();
+        replayExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "order-publisher-replay"));
+        replayExecutor.scheduleWithFixedDelay(this::replayJournal, replayIntervalMillis, replayIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        replayExecutor.shutdown();
+        running = false;
+        sender.join(5000);
+        // 未发送的消息落盘，下次启动重放
+        PendingMessage pending;
+        while ((pending = queue.poll()) != null) {
+            spill(pending);
+        }
+    }
+
+    /**
+     * 发送消息
+     *
+     * @return broker确认或已落盘后完成；内存队列已满时异常完成
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, Object payload) {
+        Message message = rabbitTemplate.getMessageConverter().toMessage(payload, new MessageProperties());
+        return publish(exchange, routingKey, message);
+    }
+
+    private CompletableFuture<Void> publish(String exchange, String routingKey, Message message) {
+        PendingMessage pending = new PendingMessage(exchange, routingKey, message);
+        if (!running || !queue.offer(pending)) {
+            pending.future.completeExceptionally(new IllegalStateException("消息发送队列已满"));
+        }
+        return pending.future;
+    }
+
+    private void sendLoop() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                sendBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void sendBatch(List<PendingMessage> batch) {
+        try {
+            rabbitTemplate.invoke(operations -> {
+                for (PendingMessage pending : batch) {
+                    operations.send(pending.exchange, pending.routingKey, pending.message, pending.newCorrelation());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("批量发送下单消息失败，数量：[{}]", batch.size(), e);
+            for (PendingMessage pending : batch) {
+                retryOrSpill(pending);
+            }
+            return;
+        }
+        for (PendingMessage pending : batch) {
+            pending.correlation.getFuture().addCallback(confirm -> {
+                if (confirm != null && confirm.isAck()) {
+                    pending.future.complete(null);
+                } else {
+                    log.warn("下单消息被nack：[{}]", confirm == null ? null : confirm.getReason());
+                    retryOrSpill(pending);
+                }
+            }, ex -> retryOrSpill(pending));
+        }
+    }
+
+    private void retryOrSpill(PendingMessage pending) {
+        pending.attempts++;
+        if (pending.attempts <= maxRetries && running && queue.offer(pending)) {
+            return;
+        }
+        spill(pending);
+    }
+
+    private void spill(PendingMessage pending) {
+        try {
+            journal.append(pending.exchange, pending.routingKey, pending.message);
+            log.warn("下单消息发送失败，已写入本地日志等待重放");
+            pending.future.complete(null);
+        } catch (Exception e) {
+            log.error("下单消息写入本地日志失败", e);
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 重放本地日志中的消息
+     */
+    private void replayJournal() {
+        try {
+            List<OrderMessageJournal.Entry> entries = journal.startReplay();
+            if (entries.isEmpty()) {
+                return;
+            }
+            log.info("重放本地日志中的下单消息：[{}] 条", entries.size());
+            List<CompletableFuture<Void>> futures = new ArrayList<>(entries.size());
+            for (OrderMessageJournal.Entry entry : entries) {
+                futures.add(publish(entry.getExchange(), entry.getRoutingKey(), entry.getMessage()));
+            }
+            // 每条消息要么被确认，要么重新写入日志，全部完成后才删除重放文件
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            journal.finishReplay();
+        } catch (Exception e) {
+            log.error("重放本地日志失败", e);
+        }
+    }
+
+    private static class PendingMessage {
+        private final String exchange;
+        private final String routingKey;
+        private final Message message;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private CorrelationData correlation;
+        private int attempts;
+
+        private PendingMessage(String exchange, String routingKey, Message message) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.message = message;
+        }
+
+        private CorrelationData newCorrelation() {
+            correlation = new CorrelationData(UUID.randomUUID().toString());
+            return correlation;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.zben.miaosha.message;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * @DESC:下单消息分片路由
+ * 按商品id把下单消息路由到固定的分片队列，每个分片只有一个消费者，同一商品的库存更新天然串行
+ * @author: zhouben
+ * @date: 2020/10/22 0022 9:30
+ */
+@Component
+public class OrderShardRouter {
+
+    public static final String EXCHANGE = "orderExchange";
+
+    public static final String QUEUE_PREFIX = "orderQueue.";
+
+    @Value("${miaosha.order.shard.count:4}")
+    private int shardCount;
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int shardOf(int sid) {
+        return Math.floorMod(sid, shardCount);
+    }
+
+    /**
+     * 商品对应的routingKey，即分片号
+     *
+     * @param sid
+     * @return
+     */
+    public String routingKey(int sid) {
+        return String.valueOf(shardOf(sid));
+    }
+
+    public String queueName(int shard) {
+        return QUEUE_PREFIX + shard;
+    }
+}
@@ -0,0 +1,134 @@
+package com.zben.miaosha.message;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zben.miaosha.service.utils.CacheKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:已处理下单消息过滤器
+ * 按请求id记录已处理的消息，本地缓存 + redis两级，重复投递的消息在访问数据库之前被丢弃；
+ * 只是加速手段，最终由stock_order的唯一索引(sid, user_id)保证幂等。没有请求id的旧消息（requestId=0）不过滤
+ * @author: zhouben
+ * @date: 2020/10/22 0022 15:00
+ */
+@Component
+@Slf4j
+public class ProcessedOrderFilter {
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${miaosha.order.dedupe.local-size:100000}")
+    private long localSize;
+
+    @Value("${miaosha.order.dedupe.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    private Cache<Long, Boolean> processed;
+
+    @PostConstruct
+    public void init() {
+        processed = CacheBuilder.newBuilder()
+                .maximumSize(localSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public boolean isProcessed(OrderMessage message) {
+        long requestId = message.getRequestId();
+        if (requestId == 0) {
+            return false;
+        }
+        if (processed.getIfPresent(requestId) != null) {
+            return true;
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key(requestId)))) {
+            processed.put(requestId, Boolean.TRUE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 过滤掉已处理的消息，redis只查询一次
+     *
+     * @param messages
+     * @return 未处理的消息
+     */
+    public List<OrderMessage> filter(List<OrderMessage> messages) {
+        List<OrderMessage> candidates = new ArrayList<>(messages.size());
+        List<String> keys = new ArrayList<>(messages.size());
+        List<OrderMessage> result = new ArrayList<>(messages.size());
+        for (OrderMessage message : messages) {
+            if (message.getRequestId() == 0) {
+                result.add(message);
+            } else if (processed.getIfPresent(message.getRequestId()) == null) {
+                candidates.add(message);
+                keys.add(key(message.getRequestId()));
+            }
+        }
+        if (candidates.isEmpty()) {
+            return result;
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        for (int i = 0; i < candidates.size(); i++) {
+            OrderMessage message = candidates.get(i);
+            if (values != null && values.get(i) != null) {
+                processed.put(message.getRequestId(), Boolean.TRUE);
+            } else {
+                result.add(message);
+            }
+        }
+        if (result.size() < messages.size()) {
+            log.info("丢弃重复投递的下单消息：[{}] 条", messages.size() - result.size());
+        }
+        return result;
+    }
+
+    /**
+     * 下单事务提交后标记为已处理
+     *
+     * @param messages
+     */
+    public void markProcessed(List<OrderMessage> messages) {
+        List<OrderMessage> marking = new ArrayList<>(messages.size());
+        for (OrderMessage message : messages) {
+            if (message.getRequestId() != 0) {
+                processed.put(message.getRequestId(), Boolean.TRUE);
+                marking.add(message);
+            }
+        }
+        if (marking.isEmpty()) {
+            return;
+        }
+        try {
+            RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+            byte[] value = serializer.serialize("1");
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (OrderMessage message : marking) {
+                    connection.setEx(serializer.serialize(key(message.getRequestId())), ttlSeconds, value);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 标记失败不影响下单结果，重复消息由唯一索引兜底
+            log.warn("标记下单消息已处理失败：", e);
+        }
+    }
+
+    private String key(long requestId) {
+        return CacheKey.ORDER_PROCESSED.getKey() + "_" + requestId;
+    }
+}
@@ -9,9 +9,11 @@ import org.springframework.stereotype.Component;
 
 @Component
 @Slf4j
-@RabbitListener(queues = "delCache")
+@RabbitListener(id = DelCacheReceiver.ENDPOINT_ID, queues = "delCache", containerFactory = "delCacheListenerContainerFactory")
 public class DelCacheReceiver {
 
+    public static final String ENDPOINT_ID = "delCache-consumer";
+
     @Autowired
     private StockService stockService;
 
@@ -0,0 +1,271 @@
+package com.zben.miaosha.receiver;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.rabbitmq.client.Channel;
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.ProcessedOrderFilter;
+import com.zben.miaosha.service.OrderResultService;
+import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.OrderStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量下单消费者：攒够batchSize条或等待timeoutMillis后批量下单，事务提交后再批量ack；
+ * 整批失败时逐条重试，多次失败的消息转入死信队列
+ * 每个分片队列一个实例，由OrderShardListenerConfigurer创建
+ */
+@Slf4j
+public class OrderBatchReceiver implements ChannelAwareMessageListener {
+
+    private final OrderService orderService;
+
+    private final OrderResultService orderResultService;
+
+    private final StockService stockService;
+
+    private final OrderMessageConverter orderMessageConverter;
+
+    private final ProcessedOrderFilter processedOrderFilter;
+
+    private final int batchSize;
+
+    private final long timeoutMillis;
+
+    private final String queueName;
+
+    private final int maxRedeliveries;
+
+    /**
+     * 逐条重试时每条消息的失败次数，重新入队的消息由同一个分片消费者再次处理
+     */
+    private final Cache<String, AtomicInteger> failures = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .build();
+
+    private final List<Message> buffer = new ArrayList<>();
+
+    private Channel channel;
+
+    private long firstArrivalMillis;
+
+    private ScheduledExecutorService flushExecutor;
+
+    public OrderBatchReceiver(OrderService orderService, OrderResultService orderResultService, StockService stockService,
+                              OrderMessageConverter orderMessageConverter, ProcessedOrderFilter processedOrderFilter,
+                              int batchSize, long timeoutMillis, int maxRedeliveries, String queueName) {
+        this.orderService = orderService;
+        this.orderResultService = orderResultService;
+        this.stockService = stockService;
+        this.orderMessageConverter = orderMessageConverter;
+        this.processedOrderFilter = processedOrderFilter;
+        this.batchSize = batchSize;
+        this.timeoutMillis = timeoutMillis;
+        this.maxRedeliveries = maxRedeliveries;
+        this.queueName = queueName;
+    }
+
+    public void init() {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "order-batch-flush-" + queueName));
+        flushExecutor.scheduleWithFixedDelay(this::flushIfTimeout, timeoutMillis, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() {
+        flushExecutor.shutdown();
+    }
+
+    @Override
+    public synchronized void onMessage(Message message, Channel channel) throws Exception {
+        if (this.channel != channel) {
+            // 消费者重建了channel，旧channel上未ack的消息会被重新投递
+            buffer.clear();
+            this.channel = channel;
+        }
+        if (buffer.isEmpty()) {
+            firstArrivalMillis = System.currentTimeMillis();
+        }
+        buffer.add(message);
+        if (buffer.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private synchronized void flushIfTimeout() {
+        if (!buffer.isEmpty() && System.currentTimeMillis() - firstArrivalMillis >= timeoutMillis) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        List<Message> messages = new ArrayList<>(buffer);
+        buffer.clear();
+        long lastDeliveryTag = messages.get(messages.size() - 1).getMessageProperties().getDeliveryTag();
+        // 与messages一一对应，无法解析的消息为null，随批次ack丢弃
+        List<OrderMessage> orderMessages = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            try {
+                orderMessages.add(orderMessageConverter.toOrderMessage(message));
+            } catch (Exception e) {
+                log.error("无法解析的下单消息，丢弃：", e);
+                orderMessages.add(null);
+            }
+        }
+        try {
+            List<OrderMessage> parsed = new ArrayList<>(orderMessages);
+            parsed.removeIf(Objects::isNull);
+            log.info("OrderBatchReceiver[{}]开始批量下单，消息数：[{}]", queueName, messages.size());
+            createOrders(parsed);
+        } catch (Exception e) {
+            // 整批回滚，逐条重试找出导致失败的消息，其他消息正常下单
+            log.error("批量下单异常，逐条重试：", e);
+            flushOneByOne(messages, orderMessages);
+            return;
+        }
+        ack(lastDeliveryTag, true);
+    }
+
+    /**
+     * 批量下单：丢弃重复投递的消息，按商品分组后一个事务内下单
+     *
+     * @param orderMessages
+     */
+    private void createOrders(List<OrderMessage> orderMessages) {
+        // 丢弃重复投递的消息，数据库唯一索引兜底
+        List<OrderMessage> unprocessed = processedOrderFilter.filter(orderMessages);
+        Map<Integer, List<Integer>> userIdsBySid = new LinkedHashMap<>();
+        for (OrderMessage orderMessage : unprocessed) {
+            userIdsBySid.computeIfAbsent(orderMessage.getSid(), k -> new ArrayList<>()).add(orderMessage.getUserId());
+        }
+        if (userIdsBySid.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<Integer>> soldOutUserIds = orderService.createOrderByMqBatch(userIdsBySid);
+        processedOrderFilter.markProcessed(unprocessed);
+        releaseSoldOutUsers(soldOutUserIds);
+        saveStatus(userIdsBySid, soldOutUserIds);
+    }
+
+    /**
+     * 逐条下单，每条消息单独ack；失败的消息重新入队，
+     * 同一条消息失败maxRedeliveries次后不再入队，转入死信队列并归还缓存预扣，避免一条异常消息让整批无限重投
+     *
+     * @param messages
+     * @param orderMessages
+     */
+    private void flushOneByOne(List<Message> messages, List<OrderMessage> orderMessages) {
+        for (int i = 0; i < messages.size(); i++) {
+            long deliveryTag = messages.get(i).getMessageProperties().getDeliveryTag();
+            OrderMessage orderMessage = orderMessages.get(i);
+            if (orderMessage == null) {
+                ack(deliveryTag, false);
+                continue;
+            }
+            try {
+                createOrders(Collections.singletonList(orderMessage));
+            } catch (Exception e) {
+                reject(deliveryTag, orderMessage, e);
+                continue;
+            }
+            failures.invalidate(failureKey(orderMessage));
+            ack(deliveryTag, false);
+        }
+    }
+
+    private void reject(long deliveryTag, OrderMessage orderMessage, Exception e) {
+        String key = failureKey(orderMessage);
+        int attempts = failures.asMap().computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        if (attempts < maxRedeliveries) {
+            log.warn("下单消息第 [{}] 次处理失败，重新入队：{}", attempts, orderMessage, e);
+            nack(deliveryTag, true);
+            return;
+        }
+        log.error("下单消息处理失败 [{}] 次，转入死信队列：{}", attempts, orderMessage, e);
+        failures.invalidate(key);
+        try {
+            stockService.rollbackPreDeductStock(orderMessage.getSid(), orderMessage.getUserId());
+            orderResultService.saveStatus(orderMessage.getSid(), orderMessage.getUserId(), OrderStatus.FAILED);
+        } catch (Exception ex) {
+            log.error("补偿缓存预扣失败：" + orderMessage, ex);
+        }
+        nack(deliveryTag, false);
+    }
+
+    /**
+     * 失败次数按请求id计数，没有请求id的旧消息按商品和用户计数
+     */
+    private String failureKey(OrderMessage orderMessage) {
+        if (orderMessage.getRequestId() != 0) {
+            return String.valueOf(orderMessage.getRequestId());
+        }
+        return orderMessage.getSid() + "_" + orderMessage.getUserId();
+    }
+
+    private void ack(long deliveryTag, boolean multiple) {
+        try {
+            channel.basicAck(deliveryTag, multiple);
+        } catch (Exception e) {
+            // channel已关闭，未ack的消息会被重新投递，由已处理过滤器和唯一索引去重
+            log.error("ack失败：", e);
+        }
+    }
+
+    private void nack(long deliveryTag, boolean requeue) {
+        try {
+            channel.basicNack(deliveryTag, false, requeue);
+        } catch (Exception e) {
+            log.error("nack失败：", e);
+        }
+    }
+
+    /**
+     * 库存不足的用户移出已抢购set，否则这些用户既没有订单也不能再次抢购
+     *
+     * @param soldOutUserIds
+     */
+    private void releaseSoldOutUsers(Map<Integer, List<Integer>> soldOutUserIds) {
+        for (Map.Entry<Integer, List<Integer>> entry : soldOutUserIds.entrySet()) {
+            try {
+                stockService.releasePreDeductUsers(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                log.error("商品id：[{}] 移出库存不足的用户失败：", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * 写入下单结果，下单失败时消息重新入队，结果保持排队中；写入失败不影响ack
+     *
+     * @param userIdsBySid
+     * @param soldOutUserIds
+     */
+    private void saveStatus(Map<Integer, List<Integer>> userIdsBySid, Map<Integer, List<Integer>> soldOutUserIds) {
+        try {
+            for (Map.Entry<Integer, List<Integer>> entry : userIdsBySid.entrySet()) {
+                List<Integer> soldOut = soldOutUserIds.getOrDefault(entry.getKey(), Collections.emptyList());
+                List<Integer> success = new ArrayList<>(entry.getValue());
+                success.removeAll(new HashSet<>(soldOut));
+                orderResultService.saveStatus(entry.getKey(), success, OrderStatus.SUCCESS);
+                orderResultService.saveStatus(entry.getKey(), soldOut, OrderStatus.SOLD_OUT);
+            }
+        } catch (Exception e) {
+            log.error("写入下单结果失败：", e);
+        }
+    }
+}
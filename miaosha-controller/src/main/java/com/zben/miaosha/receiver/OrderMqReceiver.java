@@ -1,29 +1,96 @@
 package com.zben.miaosha.receiver;
 
-import com.alibaba.fastjson.JSONObject;
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.ProcessedOrderFilter;
+import com.zben.miaosha.service.OrderResultService;
 import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.OrderStatus;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.amqp.rabbit.annotation.RabbitHandler;
-import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
+
+/**
+ * 逐条下单消费者，由OrderShardListenerConfigurer为每个分片队列注册一个消费者
+ */
 @Component
-@RabbitListener(queues = "orderQueue")
+@ConditionalOnProperty(name = "miaosha.order.batch.enabled", havingValue = "false", matchIfMissing = true)
 @Slf4j
-public class OrderMqReceiver {
+public class OrderMqReceiver implements MessageListener {
 
     @Autowired
     private OrderService orderService;
 
-    @RabbitHandler
-    public void process(String message) {
+    @Autowired
+    private OrderResultService orderResultService;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private OrderMessageConverter orderMessageConverter;
+
+    @Autowired
+    private ProcessedOrderFilter processedOrderFilter;
+
+    @Override
+    public void onMessage(Message message) {
+        OrderMessage orderMessage;
+        try {
+            orderMessage = orderMessageConverter.toOrderMessage(message);
+        } catch (Exception e) {
+            log.error("无法解析的下单消息，丢弃：", e);
+            return;
+        }
+        process(orderMessage);
+    }
+
+    public void process(OrderMessage message) {
         log.info("OrderMqReceiver收到消息开始用户下单流程: " + message);
-        JSONObject jsonObject = JSONObject.parseObject(message);
+        if (processedOrderFilter.isProcessed(message)) {
+            log.info("丢弃重复投递的下单消息: " + message);
+            return;
+        }
+        OrderStatus status;
         try {
-            orderService.createOrderByMq(jsonObject.getInteger("sid"),jsonObject.getInteger("userId"));
+            status = orderService.createOrderByMq(message.getSid(), message.getUserId());
+            processedOrderFilter.markProcessed(Collections.singletonList(message));
         } catch (Exception e) {
             log.error("消息处理异常：", e);
+            status = stockService.isSoldOut(message.getSid()) ? OrderStatus.SOLD_OUT : OrderStatus.FAILED;
+        }
+        if (status != OrderStatus.SUCCESS) {
+            compensatePreDeduct(message, status);
+        }
+        try {
+            orderResultService.saveStatus(message.getSid(), message.getUserId(), status);
+        } catch (Exception e) {
+            log.error("写入下单结果失败：", e);
+        }
+    }
+
+    /**
+     * 下单未成功时补偿接口层的缓存预扣，否则这件库存和这个用户的抢购资格都会永久丢失：
+     * 库存不足时数据库已没有库存可以归还，只把用户移出已抢购set；其他失败在一次lua调用中归还库存并移出用户
+     *
+     * @param message
+     * @param status
+     */
+    private void compensatePreDeduct(OrderMessage message, OrderStatus status) {
+        try {
+            if (status == OrderStatus.SOLD_OUT) {
+                stockService.releasePreDeductUsers(message.getSid(), Collections.singletonList(message.getUserId()));
+            } else {
+                stockService.rollbackPreDeductStock(message.getSid(), message.getUserId());
+            }
+        } catch (Exception e) {
+            log.error("补偿缓存预扣失败：" + message, e);
         }
     }
-}
\ No newline at end of file
+}
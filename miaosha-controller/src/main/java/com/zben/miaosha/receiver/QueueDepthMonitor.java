@@ -0,0 +1,141 @@
+package com.zben.miaosha.receiver;
+
+import com.zben.miaosha.config.ConsumerProperties;
+import com.zben.miaosha.config.OrderShardListenerConfigurer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:队列积压监控
+ * 定时查询各队列的消息数，按积压调整消费者数量；下单队列总积压超过阈值时打开背压开关，下单接口直接返回繁忙
+ * @author: zhouben
+ * @date: 2020/10/23 0023 10:00
+ */
+@Component
+@Slf4j
+public class QueueDepthMonitor {
+
+    @Autowired
+    private AmqpAdmin amqpAdmin;
+
+    @Autowired
+    private RabbitListenerEndpointRegistry endpointRegistry;
+
+    @Autowired
+    private OrderShardListenerConfigurer orderShardListenerConfigurer;
+
+    @Autowired
+    private ConsumerProperties consumerProperties;
+
+    /**
+     * 最近一次查询到的队列积压
+     */
+    private final Map<String, Long> depths = new ConcurrentHashMap<>();
+
+    private volatile boolean orderBackpressure;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "queue-depth-monitor"));
+        executor.scheduleWithFixedDelay(this::check, consumerProperties.getMonitorIntervalMillis(),
+                consumerProperties.getMonitorIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 下单队列是否积压过多，需要拒绝新的下单请求
+     *
+     * @return
+     */
+    public boolean isOrderBackpressure() {
+        return orderBackpressure;
+    }
+
+    public Map<String, Long> getDepths() {
+        return depths;
+    }
+
+    private void check() {
+        try {
+            long orderDepth = 0;
+            for (String queueName : orderShardListenerConfigurer.orderQueueNames()) {
+                long depth = depth(queueName);
+                orderDepth += depth;
+                scale(OrderShardListenerConfigurer.endpointId(queueName), depth, consumerProperties.getOrder());
+            }
+            scale(DelCacheReceiver.ENDPOINT_ID, depth("delCache"), consumerProperties.getDelCache());
+            updateBackpressure(orderDepth);
+        } catch (Exception e) {
+            log.warn("查询队列积压失败：", e);
+        }
+    }
+
+    private long depth(String queueName) {
+        Properties properties = amqpAdmin.getQueueProperties(queueName);
+        long depth = 0;
+        if (properties != null) {
+            Object count = properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT);
+            depth = count == null ? 0 : ((Number) count).longValue();
+        }
+        depths.put(queueName, depth);
+        return depth;
+    }
+
+    /**
+     * 按积压计算消费者数，扩容立即生效，缩容每次只减少一个
+     *
+     * @param endpointId
+     * @param depth
+     * @param listener
+     */
+    private void scale(String endpointId, long depth, ConsumerProperties.Listener listener) {
+        int min = listener.getConcurrentConsumers();
+        int max = Math.max(min, listener.getMaxConsumers());
+        if (max == min) {
+            return;
+        }
+        MessageListenerContainer container = endpointRegistry.getListenerContainer(endpointId);
+        if (!(container instanceof SimpleMessageListenerContainer)) {
+            return;
+        }
+        SimpleMessageListenerContainer simpleContainer = (SimpleMessageListenerContainer) container;
+        int current = simpleContainer.getActiveConsumerCount();
+        int desired = (int) Math.min(max, min + depth / Math.max(1, consumerProperties.getScaleUpDepth()));
+        int target = desired >= current ? desired : current - 1;
+        if (target != current) {
+            log.info("队列积压：[{}] 消费者：[{}] 调整消费者数：[{}] -> [{}]", depth, endpointId, current, target);
+            simpleContainer.setConcurrentConsumers(target);
+        }
+    }
+
+    private void updateBackpressure(long orderDepth) {
+        if (!orderBackpressure && orderDepth > consumerProperties.getBackpressureDepth()) {
+            orderBackpressure = true;
+            log.warn("下单队列积压：[{}] 超过阈值，暂停接收下单请求", orderDepth);
+        } else if (orderBackpressure && orderDepth < consumerProperties.getBackpressureResumeDepth()) {
+            orderBackpressure = false;
+            log.info("下单队列积压：[{}] 已恢复，继续接收下单请求", orderDepth);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.zben.miaosha.receiver;
+
+import com.zben.miaosha.inventory.InventoryEngine;
+import com.zben.miaosha.service.StockService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitHandler;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Component
+@Slf4j
+@RabbitListener(queues = "#{soldOutClearQueue.name}")
+public class SoldOutClearReceiver {
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private InventoryEngine inventoryEngine;
+
+    @RabbitHandler
+    public void process(String message) {
+        log.info("SoldOutClearReceiver收到消息: " + message);
+        int sid = Integer.parseInt(message);
+        if (inventoryEngine.owns(sid)) {
+            // 补货后重新从数据库加载内存库存，还有未写入数据库的扣减时抛异常，消息重新投递后重试
+            inventoryEngine.reload(sid);
+        }
+        stockService.clearSoldOut(sid);
+    }
+}
@@ -0,0 +1,36 @@
+package com.zben.miaosha.config;
+
+import org.junit.Test;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.boot.context.properties.bind.BindException;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @DESC:消费者配置：消费者不手动ack，MANUAL模式在启动时拒绝
+ * @author: zhouben
+ * @date: 2020/11/5 0005 11:00
+ */
+public class ConsumerPropertiesTest {
+
+    @Test(expected = BindException.class)
+    public void manualAcknowledgeModeRejected() {
+        bind("miaosha.consumer.order.acknowledge-mode", "MANUAL");
+    }
+
+    @Test
+    public void noneAcknowledgeModeAccepted() {
+        ConsumerProperties properties = bind("miaosha.consumer.del-cache.acknowledge-mode", "NONE");
+        assertEquals(AcknowledgeMode.NONE, properties.getDelCache().getAcknowledgeMode());
+        assertEquals(AcknowledgeMode.AUTO, properties.getOrder().getAcknowledgeMode());
+    }
+
+    private static ConsumerProperties bind(String name, String value) {
+        Binder binder = new Binder(new MapConfigurationPropertySource(Collections.singletonMap(name, value)));
+        return binder.bind("miaosha.consumer", ConsumerProperties.class).get();
+    }
+}
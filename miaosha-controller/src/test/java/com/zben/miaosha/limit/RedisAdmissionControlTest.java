@@ -0,0 +1,114 @@
+package com.zben.miaosha.limit;
+
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:集群准入控制：多个节点共享redis令牌桶，并发请求放行的总数不超过桶容量加上期间生成的令牌
+ * @author: zhouben
+ * @date: 2020/11/3 0003 10:00
+ */
+public class RedisAdmissionControlTest {
+
+    private static final String ENDPOINT = "createOrderWithMq";
+
+    private static final int SID = 1;
+
+    private static final int NODES = 3;
+
+    private static final int REQUESTS = 1000;
+
+    private static final int RATE = 1;
+
+    private static final int CAPACITY = 100;
+
+    private static final int BATCH_SIZE = 10;
+
+    private final List<AnnotationConfigApplicationContext> nodes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        RedisStandaloneConfiguration redis = TestRedis.start();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.admission.type", "redis");
+        properties.put("miaosha.admission.redis.rate", RATE);
+        properties.put("miaosha.admission.redis.capacity", CAPACITY);
+        properties.put("miaosha.admission.redis.batch-size", BATCH_SIZE);
+        properties.put("miaosha.admission.redis.lease-millis", 60000);
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(ServiceTestContext.start(properties, redis, AdmissionProperties.class, RedisAdmissionControl.class));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        nodes.forEach(AnnotationConfigApplicationContext::close);
+    }
+
+    @Test
+    public void clusterAdmitsNoMoreThanBucket() throws Exception {
+        List<AdmissionControl> controls = new ArrayList<>();
+        for (AnnotationConfigApplicationContext node : nodes) {
+            controls.add(node.getBean(AdmissionControl.class));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(64);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger admitted = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            AdmissionControl control = controls.get(i % NODES);
+            futures.add(executor.submit(() -> {
+                start.await();
+                if (control.tryAcquire(ENDPOINT, SID)) {
+                    admitted.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        long startMillis = System.currentTimeMillis();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        executor.shutdown();
+
+        long refilled = (long) Math.ceil(elapsedMillis * RATE / 1000.0);
+        assertTrue("放行超过令牌桶容量：" + admitted.get(), admitted.get() <= CAPACITY + refilled);
+        // 每个节点最多有一批预取的许可还没用完
+        assertTrue("放行过少：" + admitted.get(), admitted.get() >= CAPACITY - NODES * BATCH_SIZE);
+    }
+
+    @Test
+    public void rejectsOnceBucketIsEmpty() {
+        AdmissionControl control = nodes.get(0).getBean(AdmissionControl.class);
+        int admitted = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (control.tryAcquire(ENDPOINT, SID)) {
+                admitted++;
+            }
+        }
+        assertTrue(admitted > CAPACITY - BATCH_SIZE);
+        // 令牌桶已空，其他节点也拿不到许可
+        assertFalse(nodes.get(1).getBean(AdmissionControl.class).tryAcquire(ENDPOINT, SID));
+    }
+}
@@ -0,0 +1,123 @@
+package com.zben.miaosha.receiver;
+
+import com.rabbitmq.client.Channel;
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.ProcessedOrderFilter;
+import com.zben.miaosha.service.OrderResultService;
+import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.OrderStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @DESC:批量下单消费者：整批失败时逐条重试，异常消息多次失败后转入死信队列，其他消息正常ack
+ * @author: zhouben
+ * @date: 2020/11/2 0002 14:00
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class OrderBatchReceiverTest {
+
+    private static final int SID = 1;
+
+    private static final int POISON_USER_ID = 13;
+
+    private static final int MAX_REDELIVERIES = 2;
+
+    @Mock
+    private OrderService orderService;
+
+    @Mock
+    private OrderResultService orderResultService;
+
+    @Mock
+    private StockService stockService;
+
+    @Mock
+    private ProcessedOrderFilter processedOrderFilter;
+
+    @Mock
+    private Channel channel;
+
+    private final OrderMessageConverter orderMessageConverter = new OrderMessageConverter("binary");
+
+    private OrderBatchReceiver receiver;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        receiver = new OrderBatchReceiver(orderService, orderResultService, stockService, orderMessageConverter,
+                processedOrderFilter, 3, 50, MAX_REDELIVERIES, "orderQueue.0");
+        when(processedOrderFilter.filter(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+        // 包含异常用户的批次整体失败
+        when(orderService.createOrderByMqBatch(anyMap())).thenAnswer(invocation -> {
+            Map<Integer, List<Integer>> userIdsBySid = invocation.getArgument(0);
+            if (userIdsBySid.get(SID).contains(POISON_USER_ID)) {
+                throw new RuntimeException("Data truncation");
+            }
+            return Collections.emptyMap();
+        });
+    }
+
+    @Test
+    public void successfulBatchAckedTogether() throws Exception {
+        deliver(1, 10);
+        deliver(2, 11);
+        deliver(3, 12);
+
+        verify(channel).basicAck(3, true);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    public void poisonMessageDeadLetteredAfterMaxRedeliveries() throws Exception {
+        OrderMessage poison = OrderMessage.of(SID, POISON_USER_ID);
+        deliver(1, 10);
+        deliver(2, poison);
+        deliver(3, 11);
+
+        verify(channel).basicAck(1, false);
+        verify(channel).basicNack(2, false, true);
+        verify(channel).basicAck(3, false);
+        verify(stockService, never()).rollbackPreDeductStock(anyInt(), anyInt());
+
+        // 重新入队后和其他消息一起再次投递
+        deliver(4, poison);
+        deliver(5, 12);
+        deliver(6, 14);
+
+        verify(channel).basicNack(4, false, false);
+        verify(channel).basicAck(5, false);
+        verify(channel).basicAck(6, false);
+        verify(stockService).rollbackPreDeductStock(SID, POISON_USER_ID);
+        verify(orderResultService).saveStatus(SID, POISON_USER_ID, OrderStatus.FAILED);
+    }
+
+    private void deliver(long deliveryTag, int userId) throws Exception {
+        deliver(deliveryTag, OrderMessage.of(SID, userId));
+    }
+
+    private void deliver(long deliveryTag, OrderMessage orderMessage) throws Exception {
+        MessageProperties properties = new MessageProperties();
+        properties.setDeliveryTag(deliveryTag);
+        receiver.onMessage(orderMessageConverter.toMessage(orderMessage, properties), channel);
+    }
+}
@@ -0,0 +1,129 @@
+package com.zben.miaosha.receiver;
+
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.ProcessedOrderFilter;
+import com.zben.miaosha.service.OrderResultService;
+import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.OrderStatus;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Collections;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * @DESC:逐条下单消费者：下单未成功时补偿缓存预扣
+ * @author: zhouben
+ * @date: 2020/11/2 0002 11:00
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class OrderMqReceiverTest {
+
+    private static final int SID = 1;
+
+    private static final int USER_ID = 100;
+
+    @Mock
+    private OrderService orderService;
+
+    @Mock
+    private OrderResultService orderResultService;
+
+    @Mock
+    private StockService stockService;
+
+    @Mock
+    private OrderMessageConverter orderMessageConverter;
+
+    @Mock
+    private ProcessedOrderFilter processedOrderFilter;
+
+    @InjectMocks
+    private OrderMqReceiver receiver;
+
+    @Test
+    public void successKeepsPreDeduct() {
+        when(orderService.createOrderByMq(SID, USER_ID)).thenReturn(OrderStatus.SUCCESS);
+
+        receiver.process(OrderMessage.of(SID, USER_ID));
+
+        verify(orderResultService).saveStatus(SID, USER_ID, OrderStatus.SUCCESS);
+        verify(stockService, never()).rollbackPreDeductStock(anyInt(), anyInt());
+        verify(stockService, never()).releasePreDeductUsers(anyInt(), anyList());
+    }
+
+    @Test
+    public void failureReturnsStockAndUser() {
+        when(orderService.createOrderByMq(SID, USER_ID)).thenThrow(new RuntimeException("并发更新库存失败，version不匹配"));
+
+        receiver.process(OrderMessage.of(SID, USER_ID));
+
+        verify(stockService).rollbackPreDeductStock(SID, USER_ID);
+        verify(stockService, never()).releasePreDeductUsers(anyInt(), anyList());
+        verify(orderResultService).saveStatus(SID, USER_ID, OrderStatus.FAILED);
+    }
+
+    @Test
+    public void failedStatusReturnsStockAndUser() {
+        when(orderService.createOrderByMq(SID, USER_ID)).thenReturn(OrderStatus.FAILED);
+
+        receiver.process(OrderMessage.of(SID, USER_ID));
+
+        verify(stockService).rollbackPreDeductStock(SID, USER_ID);
+        verify(orderResultService).saveStatus(SID, USER_ID, OrderStatus.FAILED);
+    }
+
+    @Test
+    public void soldOutReleasesUserOnly() {
+        when(orderService.createOrderByMq(SID, USER_ID)).thenReturn(OrderStatus.SOLD_OUT);
+
+        receiver.process(OrderMessage.of(SID, USER_ID));
+
+        verify(stockService).releasePreDeductUsers(SID, Collections.singletonList(USER_ID));
+        verify(stockService, never()).rollbackPreDeductStock(anyInt(), anyInt());
+        verify(orderResultService).saveStatus(SID, USER_ID, OrderStatus.SOLD_OUT);
+    }
+
+    @Test
+    public void soldOutExceptionReleasesUserOnly() {
+        when(orderService.createOrderByMq(SID, USER_ID)).thenThrow(new RuntimeException("库存不足"));
+        when(stockService.isSoldOut(SID)).thenReturn(true);
+
+        receiver.process(OrderMessage.of(SID, USER_ID));
+
+        verify(stockService).releasePreDeductUsers(SID, Collections.singletonList(USER_ID));
+        verify(stockService, never()).rollbackPreDeductStock(anyInt(), anyInt());
+    }
+
+    @Test
+    public void compensationFailureStillSavesStatus() {
+        when(orderService.createOrderByMq(SID, USER_ID)).thenReturn(OrderStatus.FAILED);
+        doThrow(new RuntimeException("redis连接失败")).when(stockService).rollbackPreDeductStock(SID, USER_ID);
+
+        receiver.process(OrderMessage.of(SID, USER_ID));
+
+        verify(orderResultService).saveStatus(SID, USER_ID, OrderStatus.FAILED);
+    }
+
+    @Test
+    public void duplicateMessageIsNotCompensated() {
+        when(processedOrderFilter.isProcessed(any())).thenReturn(true);
+
+        receiver.process(OrderMessage.of(SID, USER_ID));
+
+        verifyZeroInteractions(orderService, stockService, orderResultService);
+    }
+}
@@ -0,0 +1,137 @@
+package com.zben.miaosha.receiver;
+
+import com.zben.miaosha.message.OrderMessage;
+import com.zben.miaosha.message.OrderMessageConverter;
+import com.zben.miaosha.message.ProcessedOrderFilter;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.impl.OrderResultServiceImpl;
+import com.zben.miaosha.service.utils.CacheKey;
+import com.zben.miaosha.service.utils.PreDeductStatus;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import com.zben.miaosha.support.TestRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:缓存预扣 + mq消费下单的并发测试（真实redis执行lua脚本，数据库为H2）
+ * 乐观锁只尝试一次，并发冲突的消息下单失败；结束后检查：不超卖，失败的预扣都已归还，已抢购set中的用户都有订单
+ * @author: zhouben
+ * @date: 2020/11/2 0002 11:20
+ */
+public class PreDeductOrderFlowTest {
+
+    private static final int SID = 1;
+
+    private static final int STOCK = 200;
+
+    private static final int USERS = 3000;
+
+    private static final int PRODUCERS = 16;
+
+    private static final int CONSUMERS = 8;
+
+    private AnnotationConfigApplicationContext context;
+
+    @Configuration
+    static class ReceiverConfig {
+
+        @Bean
+        public OrderMessageConverter orderMessageConverter() {
+            return new OrderMessageConverter("binary");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.stock.deduct-mode", "optimistic");
+        properties.put("miaosha.stock.retry.max-attempts", 1);
+        context = ServiceTestContext.start(properties, TestRedis.start(), ReceiverConfig.class,
+                OrderMqReceiver.class, ProcessedOrderFilter.class, OrderResultServiceImpl.class);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void noOversellAndNoLeakedPreDeduct() throws Exception {
+        DataSource dataSource = context.getBean(DataSource.class);
+        StockService stockService = context.getBean(StockService.class);
+        OrderMqReceiver receiver = context.getBean(OrderMqReceiver.class);
+        StringRedisTemplate redis = context.getBean(StringRedisTemplate.class);
+        TestData.resetStock(dataSource, 1, STOCK);
+        stockService.warmUpForSale(stockService.getStockById(SID));
+
+        BlockingQueue<OrderMessage> queue = new LinkedBlockingQueue<>();
+        AtomicInteger userIds = new AtomicInteger();
+        AtomicInteger runningProducers = new AtomicInteger(PRODUCERS);
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS + CONSUMERS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            futures.add(executor.submit(() -> {
+                try {
+                    int userId;
+                    while ((userId = userIds.incrementAndGet()) <= USERS) {
+                        if (stockService.preDeductStock(SID, userId) == PreDeductStatus.SUCCESS) {
+                            queue.add(OrderMessage.of(SID, userId));
+                        }
+                    }
+                } finally {
+                    runningProducers.decrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (int i = 0; i < CONSUMERS; i++) {
+            futures.add(executor.submit(() -> {
+                while (runningProducers.get() > 0 || !queue.isEmpty()) {
+                    OrderMessage message = queue.poll(10, TimeUnit.MILLISECONDS);
+                    if (message != null) {
+                        receiver.process(message);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        long orders = TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID);
+        long sale = TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID);
+        long remaining = Long.parseLong(redis.opsForValue().get(CacheKey.SECKILL_STOCK.getKey() + "_" + SID));
+        long holders = redis.opsForSet().size(CacheKey.USER_HAS_ORDER.getKey() + "_" + SID);
+
+        assertEquals("订单数与已售一致", orders, sale);
+        assertTrue("超卖：已售 " + sale, sale <= STOCK);
+        assertEquals("失败的预扣都已归还：缓存剩余 + 已售 = 库存", STOCK, remaining + sale);
+        assertEquals("已抢购set中的用户都有订单", orders, holders);
+    }
+}
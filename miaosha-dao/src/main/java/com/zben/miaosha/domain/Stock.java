@@ -3,6 +3,7 @@ package com.zben.miaosha.domain;
 import lombok.Data;
 
 import javax.persistence.Id;
+import java.util.Date;
 
 /**
  * @DESC:库存
@@ -27,4 +28,7 @@ public class Stock {
 
     //乐观锁
     private Integer version;
+
+    //秒杀开始时间
+    private Date saleStartTime;
 }
@@ -0,0 +1,21 @@
+package com.zben.miaosha.domain;
+
+import lombok.Data;
+
+/**
+ * @DESC:按条件扣减库存的参数和结果
+ * @author: zhouben
+ * @date: 2020/10/27 0027 9:30
+ */
+@Data
+public class StockDeduction {
+
+    //物品id
+    private Integer id;
+
+    //扣减数量
+    private Integer delta;
+
+    //扣减后的剩余库存，由数据库通过LAST_INSERT_ID返回，剩余为0时不返回
+    private Long remaining;
+}
@@ -0,0 +1,30 @@
+package com.zben.miaosha.domain;
+
+import lombok.Data;
+
+import javax.persistence.Id;
+
+/**
+ * @DESC:库存分段
+ * @author: zhouben
+ * @date: 2020/10/28 0028 10:15
+ */
+@Data
+public class StockSegment {
+
+    //id
+    @Id
+    private Integer id;
+
+    //物品id
+    private Integer sid;
+
+    //段号
+    private Integer segmentNo;
+
+    //分配到该段的库存
+    private Integer count;
+
+    //该段已售
+    private Integer sale;
+}
@@ -0,0 +1,24 @@
+package com.zben.miaosha.domain;
+
+import lombok.Data;
+
+/**
+ * @DESC:扣减库存分段的参数和结果
+ * @author: zhouben
+ * @date: 2020/10/28 0028 10:20
+ */
+@Data
+public class StockSegmentDeduction {
+
+    //物品id
+    private Integer sid;
+
+    //段号
+    private Integer segmentNo;
+
+    //扣减数量，部分扣减时为最多扣减数量
+    private Integer delta;
+
+    //由数据库通过LAST_INSERT_ID返回：按数量扣减时为该段剩余库存，部分扣减时为实际扣减数量，为0时不返回
+    private Long result;
+}
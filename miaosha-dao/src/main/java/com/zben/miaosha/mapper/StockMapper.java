@@ -1,8 +1,13 @@
 package com.zben.miaosha.mapper;
 
 import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.domain.StockDeduction;
+import org.apache.ibatis.annotations.Param;
 import tk.mybatis.mapper.common.Mapper;
 
+import java.util.Date;
+import java.util.List;
+
 /**
  * @DESC:
  * @AUTHOR: zhouben
@@ -17,4 +22,39 @@ public interface StockMapper extends Mapper<Stock> {
      * @return
      */
     int updateByOptimistic(Stock stock);
+
+    /**
+     * 按数量扣减库存，库存不足时不更新
+     *
+     * @param id
+     * @param delta 扣减数量
+     * @return
+     */
+    int updateSaleByDelta(@Param("id") Integer id, @Param("delta") int delta);
+
+    /**
+     * 单条语句按条件扣减库存，无需先读取也不比较版本号
+     *
+     * @param deduction 扣减成功后remaining为剩余库存
+     * @return 更新行数，库存不足为0
+     */
+    int deductStock(StockDeduction deduction);
+
+    /**
+     * 按id分页扫描商品id
+     *
+     * @param lastId 上一页最后一个id
+     * @param limit
+     * @return
+     */
+    List<Integer> selectIdsAfter(@Param("lastId") Integer lastId, @Param("limit") int limit);
+
+    /**
+     * 查询秒杀开始时间在区间内的商品
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    List<Stock> selectBySaleStartTime(@Param("from") Date from, @Param("to") Date to);
 }
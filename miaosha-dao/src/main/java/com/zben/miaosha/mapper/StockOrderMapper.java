@@ -1,12 +1,50 @@
 package com.zben.miaosha.mapper;
 
 import com.zben.miaosha.domain.StockOrder;
+import org.apache.ibatis.annotations.Param;
 import tk.mybatis.mapper.common.Mapper;
 
+import java.util.List;
+
 /**
  * @DESC:
  * @AUTHOR: zhouben
  * @DATE: 2020/9/22 0022 10:25
  */
 public interface StockOrderMapper extends Mapper<StockOrder> {
+
+    /**
+     * 写入订单，同一用户同一商品已有订单时忽略
+     *
+     * @param order
+     * @return 写入行数，重复订单为0
+     */
+    int insertIgnore(StockOrder order);
+
+    /**
+     * 批量写入订单，重复订单被忽略
+     *
+     * @param orders
+     * @return
+     */
+    int insertBatch(@Param("orders") List<StockOrder> orders);
+
+    /**
+     * 查询已经下过单的用户
+     *
+     * @param sid
+     * @param userIds
+     * @return
+     */
+    List<Integer> selectOrderedUserIds(@Param("sid") Integer sid, @Param("userIds") List<Integer> userIds);
+
+    /**
+     * 按订单id分页查询商品的订单（只查询id和user_id）
+     *
+     * @param sid
+     * @param lastId 上一页最后一个订单id
+     * @param limit
+     * @return
+     */
+    List<StockOrder> selectUserOrdersAfter(@Param("sid") Integer sid, @Param("lastId") Integer lastId, @Param("limit") int limit);
 }
@@ -0,0 +1,81 @@
+package com.zben.miaosha.mapper;
+
+import com.zben.miaosha.domain.StockSegment;
+import com.zben.miaosha.domain.StockSegmentDeduction;
+import org.apache.ibatis.annotations.Param;
+import tk.mybatis.mapper.common.Mapper;
+
+import java.util.List;
+
+/**
+ * @DESC:库存分段
+ * @author: zhouben
+ * @date: 2020/10/28 0028 10:25
+ */
+public interface StockSegmentMapper extends Mapper<StockSegment> {
+
+    /**
+     * 按数量扣减一个分段，该段库存不足时不更新
+     *
+     * @param deduction 扣减成功后result为该段剩余库存
+     * @return 更新行数
+     */
+    int deductSegment(StockSegmentDeduction deduction);
+
+    /**
+     * 从一个分段中扣减min(delta, 该段剩余)，该段没有剩余时不更新
+     *
+     * @param deduction 扣减成功后result为实际扣减数量
+     * @return 更新行数
+     */
+    int takeFromSegment(StockSegmentDeduction deduction);
+
+    /**
+     * 查询商品的分段数
+     *
+     * @param sid
+     * @return
+     */
+    int countBySid(@Param("sid") Integer sid);
+
+    /**
+     * 汇总商品各分段的剩余库存
+     *
+     * @param sid
+     * @return
+     */
+    int selectRemainingBySid(@Param("sid") Integer sid);
+
+    /**
+     * 按段号查询并锁定商品的所有分段
+     *
+     * @param sid
+     * @return
+     */
+    List<StockSegment> selectBySidForUpdate(@Param("sid") Integer sid);
+
+    /**
+     * 修改分段分配的库存
+     *
+     * @param id
+     * @param count
+     * @return
+     */
+    int updateCount(@Param("id") Integer id, @Param("count") int count);
+
+    /**
+     * 批量写入分段
+     *
+     * @param segments
+     * @return
+     */
+    int insertBatch(@Param("segments") List<StockSegment> segments);
+
+    /**
+     * 删除商品的所有分段
+     *
+     * @param sid
+     * @return
+     */
+    int deleteBySid(@Param("sid") Integer sid);
+}
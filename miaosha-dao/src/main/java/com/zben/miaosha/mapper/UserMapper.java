@@ -1,12 +1,24 @@
 package com.zben.miaosha.mapper;
 
 import com.zben.miaosha.domain.User;
+import org.apache.ibatis.annotations.Param;
 import tk.mybatis.mapper.common.Mapper;
 
+import java.util.List;
+
 /**
  * @DESC:
  * @AUTHOR: zhouben
  * @DATE: 2020/9/23 0023 10:02
  */
 public interface UserMapper extends Mapper<User> {
+
+    /**
+     * 按id分页扫描用户id
+     *
+     * @param lastId 上一页最后一个id
+     * @param limit
+     * @return
+     */
+    List<Long> selectIdsAfter(@Param("lastId") Long lastId, @Param("limit") int limit);
 }
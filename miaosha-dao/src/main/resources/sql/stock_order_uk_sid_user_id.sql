@@ -0,0 +1,6 @@
+-- 同一用户同一商品只能有一个订单，mq重复投递时依赖该索引保证幂等
+-- 已有重复数据时需要先清理：保留每组最小id的订单
+DELETE o1 FROM stock_order o1
+JOIN stock_order o2 ON o1.sid = o2.sid AND o1.user_id = o2.user_id AND o1.id > o2.id;
+
+ALTER TABLE stock_order ADD UNIQUE KEY uk_sid_user_id (sid, user_id);
@@ -0,0 +1,3 @@
+-- 秒杀开始时间，预热任务在开始前把商品数据加载到缓存
+ALTER TABLE stock ADD COLUMN sale_start_time DATETIME NULL;
+ALTER TABLE stock ADD KEY idx_sale_start_time (sale_start_time);
@@ -0,0 +1,11 @@
+-- 库存分段：一个商品的剩余库存拆成多行，扣库存时分散到不同行，避免所有请求争抢stock表的同一行锁
+-- 分段后stock表的sale等于count，剩余库存全部在分段中
+CREATE TABLE stock_segment (
+  id INT NOT NULL AUTO_INCREMENT,
+  sid INT NOT NULL COMMENT '商品id',
+  segment_no INT NOT NULL COMMENT '段号，从0开始',
+  count INT NOT NULL DEFAULT 0 COMMENT '分配到该段的库存',
+  sale INT NOT NULL DEFAULT 0 COMMENT '该段已售',
+  PRIMARY KEY (id),
+  UNIQUE KEY uk_sid_segment_no (sid, segment_no)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8;
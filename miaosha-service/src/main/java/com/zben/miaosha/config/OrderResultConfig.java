@@ -0,0 +1,31 @@
+package com.zben.miaosha.config;
+
+import com.zben.miaosha.service.OrderResultService;
+import com.zben.miaosha.service.utils.CacheKey;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @DESC:异步下单结果通知
+ * @author: zhouben
+ * @date: 2020/10/23 0023 15:10
+ */
+@Configuration
+public class OrderResultConfig {
+
+    @Bean
+    public RedisMessageListenerContainer orderResultListenerContainer(RedisConnectionFactory redisConnectionFactory,
+                                                                      OrderResultService orderResultService) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener((message, pattern) ->
+                        orderResultService.onStatusNotified(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CacheKey.ORDER_RESULT_CHANNEL.getKey()));
+        return container;
+    }
+}
@@ -0,0 +1,69 @@
+package com.zben.miaosha.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.util.List;
+
+/**
+ * @DESC:redis lua脚本
+ * @author: zhouben
+ * @date: 2020/10/9 0009 10:12
+ */
+@Configuration
+public class RedisScriptConfig {
+
+    /**
+     * 秒杀库存预扣
+     *
+     * @return
+     */
+    @Bean
+    public RedisScript<Long> stockPreDeductScript() {
+        return longScript("lua/stock_pre_deduct.lua");
+    }
+
+    /**
+     * 秒杀库存预扣回滚
+     *
+     * @return
+     */
+    @Bean
+    public RedisScript<Long> stockPreDeductRollbackScript() {
+        return longScript("lua/stock_pre_deduct_rollback.lua");
+    }
+
+    /**
+     * 分布式令牌桶
+     *
+     * @return
+     */
+    @Bean
+    public RedisScript<Long> tokenBucketScript() {
+        return longScript("lua/token_bucket.lua");
+    }
+
+    /**
+     * 用户访问频率计数
+     *
+     * @return
+     */
+    @Bean
+    public RedisScript<List> userLimitScript() {
+        DefaultRedisScript<List> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/user_limit.lua")));
+        script.setResultType(List.class);
+        return script;
+    }
+
+    private RedisScript<Long> longScript(String path) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
@@ -0,0 +1,35 @@
+package com.zben.miaosha.config;
+
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.CacheKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @DESC:库存本地缓存失效通知
+ * @author: zhouben
+ * @date: 2020/10/15 0015 10:30
+ */
+@Configuration
+@Slf4j
+public class StockCacheConfig {
+
+    @Bean
+    public RedisMessageListenerContainer stockCacheListenerContainer(RedisConnectionFactory redisConnectionFactory,
+                                                                     StockService stockService) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener((message, pattern) -> {
+            String sid = new String(message.getBody(), StandardCharsets.UTF_8);
+            log.info("收到库存缓存失效通知，删除商品id：[{}] 本地缓存", sid);
+            stockService.evictLocalStockCache(Integer.parseInt(sid));
+        }, new ChannelTopic(CacheKey.STOCK_CACHE_CHANNEL.getKey()));
+        return container;
+    }
+}
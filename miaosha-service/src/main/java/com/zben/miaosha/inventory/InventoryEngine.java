@@ -0,0 +1,421 @@
+package com.zben.miaosha.inventory;
+
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.domain.StockOrder;
+import com.zben.miaosha.mapper.StockMapper;
+import com.zben.miaosha.mapper.StockOrderMapper;
+import com.zben.miaosha.service.StockSegmentService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @DESC:内存库存引擎
+ * 本节点负责的商品（下单分片号在owned-shards中）剩余库存和已下单用户保存在内存，扣减不访问数据库；
+ * 每次扣减先写本地预写日志（组提交刷盘）再返回，订单和已售由后台线程批量写入数据库，写入成功后推进checkpoint；
+ * 启动时先把checkpoint之后的日志记录写入数据库，再从数据库加载库存，进程崩溃不会丢失或重复订单
+ * @author: zhouben
+ * @date: 2020/10/29 0029 14:00
+ */
+@Component
+@Slf4j
+public class InventoryEngine {
+
+    private static final int USER_ORDER_PAGE_SIZE = 1000;
+
+    @Autowired
+    StockMapper stockMapper;
+
+    @Autowired
+    StockOrderMapper stockOrderMapper;
+
+    @Autowired
+    StockSegmentService stockSegmentService;
+
+    @Autowired
+    InventoryWriter inventoryWriter;
+
+    @Value("${miaosha.inventory.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 本节点负责的下单分片号，逗号分隔，为空表示全部
+     */
+    @Value("${miaosha.inventory.owned-shards:}")
+    private String ownedShards;
+
+    @Value("${miaosha.order.shard.count:4}")
+    private int shardCount;
+
+    @Value("${miaosha.inventory.journal-dir:data/inventory}")
+    private String journalDir;
+
+    @Value("${miaosha.inventory.group-max-records:1000}")
+    private int groupMaxRecords;
+
+    @Value("${miaosha.inventory.journal-roll-bytes:67108864}")
+    private long journalRollBytes;
+
+    @Value("${miaosha.inventory.flush-batch-size:500}")
+    private int flushBatchSize;
+
+    @Value("${miaosha.inventory.flush-interval-millis:50}")
+    private long flushIntervalMillis;
+
+    /**
+     * 等待日志刷盘的最长时间
+     */
+    @Value("${miaosha.inventory.append-timeout-millis:5000}")
+    private long appendTimeoutMillis;
+
+    private final Set<Integer> shards = new HashSet<>();
+
+    private final Map<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * 已刷盘、尚未写入数据库的记录，按seq顺序
+     */
+    private final BlockingQueue<InventoryJournal.Record> unpersisted = new LinkedBlockingQueue<>();
+
+    /**
+     * 上次写入数据库失败的记录，下次先写
+     */
+    private final List<InventoryJournal.Record> failed = new ArrayList<>();
+
+    private InventoryJournal journal;
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void init() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        for (String shard : ownedShards.split(",")) {
+            if (!shard.trim().isEmpty()) {
+                shards.add(Integer.valueOf(shard.trim()));
+            }
+        }
+        journal = new InventoryJournal(journalDir, groupMaxRecords, journalRollBytes);
+        List<InventoryJournal.Record> recovered = journal.open();
+        if (!recovered.isEmpty()) {
+            // 恢复完成之前不能加载库存，否则会漏掉这些已售
+            for (int from = 0; from < recovered.size(); from += flushBatchSize) {
+                List<InventoryJournal.Record> batch = recovered.subList(from, Math.min(from + flushBatchSize, recovered.size()));
+                int inserted = inventoryWriter.persist(batch);
+                journal.checkpoint(batch.get(batch.size() - 1).getSeq());
+                log.info("重放库存日志：[{}] 条，新写入订单：[{}]", batch.size(), inserted);
+            }
+        }
+        journal.start(unpersisted::addAll);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "inventory-write-behind"));
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("内存库存引擎已启动，负责分片：[{}]", shards.isEmpty() ? "全部" : shards);
+    }
+
+    @PreDestroy
+    public void destroy() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        journal.close();
+        flusher.shutdown();
+        flusher.awaitTermination(5, TimeUnit.SECONDS);
+        // 剩下的记录仍在日志中，写入失败时下次启动重放
+        flush();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 商品是否由本节点的内存库存负责
+     *
+     * @param sid
+     * @return
+     */
+    public boolean owns(int sid) {
+        return ownsShard(Math.floorMod(sid, shardCount));
+    }
+
+    /**
+     * 下单分片是否由本节点的内存库存负责
+     *
+     * @param shard
+     * @return
+     */
+    public boolean ownsShard(int shard) {
+        return enabled && (shards.isEmpty() || shards.contains(shard));
+    }
+
+    /**
+     * 内存中扣减一件库存，日志刷盘后返回
+     *
+     * @param sid
+     * @param userId
+     * @return 扣减成功或用户已下过单返回true，库存不足返回false
+     */
+    public boolean deduct(int sid, int userId) {
+        List<Integer> soldOut = deduct(sid, Collections.singletonList(userId));
+        return soldOut.isEmpty();
+    }
+
+    /**
+     * 内存中为一批用户各扣减一件库存，日志全部刷盘后返回
+     *
+     * @param sid
+     * @param userIds
+     * @return 库存不足的用户
+     */
+    public List<Integer> deduct(int sid, List<Integer> userIds) {
+        while (true) {
+            Slot slot = slot(sid);
+            if (slot == null) {
+                throw new RuntimeException("物品不存在");
+            }
+            // 持有读锁直到日志刷盘，重新加载要等进行中的扣减都拿到结果
+            slot.lock.readLock().lock();
+            try {
+                if (slot.retired) {
+                    // 等待期间已被重新加载，使用新加载的库存
+                    continue;
+                }
+                return deduct(sid, slot, userIds);
+            } finally {
+                slot.lock.readLock().unlock();
+            }
+        }
+    }
+
+    private List<Integer> deduct(int sid, Slot slot, List<Integer> userIds) {
+        List<Integer> soldOut = new ArrayList<>();
+        List<Integer> deducted = new ArrayList<>(userIds.size());
+        List<CompletableFuture<Long>> futures = new ArrayList<>(userIds.size());
+        for (Integer userId : userIds) {
+            if (!slot.users.add(userId)) {
+                // 重复消息
+                continue;
+            }
+            if (!slot.tryDecrement()) {
+                slot.users.remove(userId);
+                soldOut.add(userId);
+                continue;
+            }
+            deducted.add(userId);
+            futures.add(journal.append(sid, userId));
+        }
+        // 写入线程对每条记录都会给出结果（刷盘、写入失败或日志关闭），超时只在刷盘卡住时出现
+        int failures = 0;
+        Exception cause = null;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(appendTimeoutMillis);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // 记录之后仍可能落盘，库存不退回内存，宁可少卖到下次重新加载；
+                // 用户移出已下单集合，重新投递时再扣一次，重复的订单由数据库唯一索引忽略
+                slot.users.remove(deducted.get(i));
+                failures++;
+                cause = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                slot.users.remove(deducted.get(i));
+                failures++;
+                cause = e;
+            } catch (ExecutionException e) {
+                slot.remaining.incrementAndGet();
+                slot.users.remove(deducted.get(i));
+                failures++;
+                cause = e;
+            }
+        }
+        if (failures > 0) {
+            throw new RuntimeException("写入库存日志失败：" + failures + " 条", cause);
+        }
+        return soldOut;
+    }
+
+    /**
+     * 内存中的剩余库存，未加载时返回null
+     *
+     * @param sid
+     * @return
+     */
+    public Integer getRemaining(int sid) {
+        Slot slot = slots.get(sid);
+        return slot == null ? null : slot.remaining.get();
+    }
+
+    /**
+     * 补货后重新加载：阻塞该商品的扣减并等进行中的扣减刷盘，写完内存中的扣减后，下次访问时从数据库加载
+     * 该商品还有写入数据库失败的记录时不能丢弃内存库存，否则按数据库加载会把这些已售重新卖出
+     *
+     * @param sid
+     * @throws IllegalStateException 还有未写入数据库的记录，稍后重试
+     */
+    public synchronized void reload(int sid) {
+        Slot slot = slots.get(sid);
+        if (slot == null) {
+            return;
+        }
+        slot.lock.writeLock().lock();
+        try {
+            flush();
+            if (hasUnpersisted(sid)) {
+                throw new IllegalStateException("商品id：" + sid + " 还有未写入数据库的扣减记录，稍后重新加载");
+            }
+            slot.retired = true;
+            slots.remove(sid);
+        } finally {
+            slot.lock.writeLock().unlock();
+        }
+    }
+
+    private boolean hasUnpersisted(int sid) {
+        synchronized (failed) {
+            return failed.stream().anyMatch(record -> record.getSid() == sid)
+                    || unpersisted.stream().anyMatch(record -> record.getSid() == sid);
+        }
+    }
+
+    /**
+     * 尚未写入数据库的记录数
+     *
+     * @return
+     */
+    public int getUnpersistedCount() {
+        synchronized (failed) {
+            return unpersisted.size() + failed.size();
+        }
+    }
+
+    /**
+     * 把已刷盘的记录批量写入数据库，成功后推进checkpoint
+     */
+    void flush() {
+        synchronized (failed) {
+            while (true) {
+                List<InventoryJournal.Record> batch = new ArrayList<>(failed);
+                failed.clear();
+                unpersisted.drainTo(batch, Math.max(flushBatchSize - batch.size(), 0));
+                if (batch.isEmpty()) {
+                    return;
+                }
+                try {
+                    inventoryWriter.persist(batch);
+                    journal.checkpoint(batch.get(batch.size() - 1).getSeq());
+                } catch (Exception e) {
+                    log.error("内存库存写入数据库失败，[{}] 条记录下次重试", batch.size(), e);
+                    failed.addAll(batch);
+                    return;
+                }
+            }
+        }
+    }
+
+    private Slot slot(int sid) {
+        Slot slot = slots.get(sid);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (this) {
+            slot = slots.get(sid);
+            if (slot == null) {
+                slot = load(sid);
+                if (slot != null) {
+                    slots.put(sid, slot);
+                }
+            }
+            return slot;
+        }
+    }
+
+    private Slot load(int sid) {
+        if (stockSegmentService.isSegmented(sid)) {
+            // 内存库存直接更新stock表，分段的剩余先合并回来
+            stockSegmentService.merge(sid);
+        }
+        Stock stock = stockMapper.selectByPrimaryKey(sid);
+        if (stock == null) {
+            return null;
+        }
+        Slot slot = new Slot(Math.max(stock.getCount() - stock.getSale(), 0));
+        Integer lastId = 0;
+        List<StockOrder> orders;
+        do {
+            orders = stockOrderMapper.selectUserOrdersAfter(sid, lastId, USER_ORDER_PAGE_SIZE);
+            for (StockOrder order : orders) {
+                slot.users.add(order.getUserId());
+            }
+            if (!orders.isEmpty()) {
+                lastId = orders.get(orders.size() - 1).getId();
+            }
+        } while (orders.size() == USER_ORDER_PAGE_SIZE);
+        log.info("内存库存加载商品id：[{}] 剩余库存：[{}] 已下单用户：[{}]", sid, slot.remaining.get(), slot.users.size());
+        return slot;
+    }
+
+    /**
+     * 各商品的内存剩余库存
+     *
+     * @return
+     */
+    public Map<Integer, Integer> getRemainingSnapshot() {
+        Map<Integer, Integer> snapshot = new LinkedHashMap<>();
+        slots.forEach((sid, slot) -> snapshot.put(sid, slot.remaining.get()));
+        return snapshot;
+    }
+
+    private static class Slot {
+        private final AtomicInteger remaining;
+        private final Set<Integer> users = ConcurrentHashMap.newKeySet();
+
+        /**
+         * 扣减持有读锁，重新加载持有写锁
+         */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * 已被重新加载替换，等待中的扣减需要重新获取
+         */
+        private volatile boolean retired;
+
+        private Slot(int remaining) {
+            this.remaining = new AtomicInteger(remaining);
+        }
+
+        private boolean tryDecrement() {
+            int current;
+            do {
+                current = remaining.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!remaining.compareAndSet(current, current - 1));
+            return true;
+        }
+    }
+}
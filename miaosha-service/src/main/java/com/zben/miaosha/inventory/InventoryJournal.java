@@ -0,0 +1,341 @@
+package com.zben.miaosha.inventory;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * @DESC:内存库存的预写日志
+ * 每条扣减一条定长记录：seq(8) sid(4) userId(4) timestamp(8) crc32(4)，恢复时遇到crc不符或不完整的记录即视为日志末尾；
+ * 写入线程把同一时间到达的记录攒成一组，一次write加一次force后才通知调用方（组提交）；
+ * 已持久化到数据库的位置记录在checkpoint文件中，日志中的记录都已持久化后清空日志
+ * @author: zhouben
+ * @date: 2020/10/29 0029 10:00
+ */
+@Slf4j
+public class InventoryJournal {
+
+    static final int RECORD_SIZE = 28;
+
+    private final File journalFile;
+
+    private final File checkpointFile;
+
+    private final int groupMaxRecords;
+
+    private final long rollBytes;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    private FileChannel channel;
+
+    private Consumer<List<Record>> listener;
+
+    private long nextSeq;
+
+    private volatile long lastWrittenSeq;
+
+    private volatile long checkpointSeq;
+
+    private volatile boolean running;
+
+    /**
+     * 检查running和放入队列与关闭互斥，关闭之后不会再有记录进入队列
+     */
+    private final Object appendLock = new Object();
+
+    private Thread writer;
+
+    public InventoryJournal(String dir, int groupMaxRecords, long rollBytes) {
+        File parent = new File(dir).getAbsoluteFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IllegalStateException("创建库存日志目录失败：" + parent);
+        }
+        this.journalFile = new File(parent, "inventory.wal");
+        this.checkpointFile = new File(parent, "inventory.checkpoint");
+        this.groupMaxRecords = groupMaxRecords;
+        this.rollBytes = rollBytes;
+    }
+
+    /**
+     * 打开日志，截掉末尾不完整的记录
+     *
+     * @return checkpoint之后尚未持久化到数据库的记录
+     */
+    public synchronized List<Record> open() throws IOException {
+        checkpointSeq = readCheckpoint();
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        List<Record> unpersisted = new ArrayList<>();
+        long maxSeq = checkpointSeq;
+        long validBytes = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        channel.position(0);
+        while (true) {
+            buffer.clear();
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // 读满一条记录
+            }
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            buffer.flip();
+            Record record = decode(buffer);
+            if (record == null) {
+                break;
+            }
+            validBytes += RECORD_SIZE;
+            maxSeq = Math.max(maxSeq, record.seq);
+            if (record.seq > checkpointSeq) {
+                unpersisted.add(record);
+            }
+        }
+        if (channel.size() > validBytes) {
+            log.warn("库存日志末尾有 [{}] 字节不完整的记录，已截断", channel.size() - validBytes);
+            channel.truncate(validBytes);
+        }
+        channel.position(validBytes);
+        nextSeq = maxSeq + 1;
+        lastWrittenSeq = maxSeq;
+        return unpersisted;
+    }
+
+    /**
+     * 启动组提交写入线程
+     *
+     * @param listener 每组记录刷盘后、通知调用方之前按seq顺序回调
+     */
+    public synchronized void start(Consumer<List<Record>> listener) {
+        this.listener = listener;
+        running = true;
+        writer = new Thread(this::writeLoop, "inventory-journal");
+        writer.start();
+    }
+
+    /**
+     * 追加一条扣减记录
+     *
+     * @return 刷盘后完成，返回记录的seq
+     */
+    public CompletableFuture<Long> append(int sid, int userId) {
+        Pending pending = new Pending(sid, userId, System.currentTimeMillis());
+        synchronized (appendLock) {
+            if (running) {
+                queue.offer(pending);
+                return pending.future;
+            }
+        }
+        pending.future.completeExceptionally(new IllegalStateException("库存日志已关闭"));
+        return pending.future;
+    }
+
+    /**
+     * 记录已持久化到数据库的位置
+     *
+     * @param seq 该seq及之前的记录都已持久化
+     */
+    public synchronized void checkpoint(long seq) throws IOException {
+        if (seq <= checkpointSeq) {
+            return;
+        }
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        Files.write(tmp.toPath(), String.valueOf(seq).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        checkpointSeq = seq;
+    }
+
+    /**
+     * 停止写入线程，已提交的记录写完后返回
+     */
+    public void close() throws InterruptedException, IOException {
+        synchronized (appendLock) {
+            running = false;
+        }
+        if (writer != null) {
+            writer.join(5000);
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> group = new ArrayList<>(groupMaxRecords);
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        rollIfPersisted();
+                        continue;
+                    }
+                    group.add(first);
+                    queue.drainTo(group, groupMaxRecords - 1);
+                    writeGroup(group);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    group.clear();
+                }
+            }
+        } finally {
+            // 写入线程无论因何退出都不再接受新记录，队列中剩下的记录通知失败，调用方不会一直等待
+            synchronized (appendLock) {
+                running = false;
+            }
+            Pending pending;
+            while ((pending = queue.poll()) != null) {
+                pending.future.completeExceptionally(new IllegalStateException("库存日志已关闭"));
+            }
+        }
+    }
+
+    private synchronized void writeGroup(List<Pending> group) {
+        List<Record> records = new ArrayList<>(group.size());
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * group.size());
+        long seq = nextSeq;
+        for (Pending pending : group) {
+            Record record = new Record(seq++, pending.sid, pending.userId, pending.timestamp);
+            encode(record, buffer);
+            records.add(record);
+        }
+        buffer.flip();
+        long position = 0;
+        try {
+            position = channel.position();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            log.error("写入库存日志失败，数量：[{}]", group.size(), e);
+            try {
+                // 去掉写了一半的记录
+                channel.truncate(position);
+                channel.position(position);
+            } catch (IOException ex) {
+                log.error("截断库存日志失败", ex);
+            }
+            group.forEach(pending -> pending.future.completeExceptionally(e));
+            return;
+        }
+        nextSeq = seq;
+        lastWrittenSeq = seq - 1;
+        listener.accept(records);
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).future.complete(records.get(i).seq);
+        }
+    }
+
+    /**
+     * 日志中的记录都已持久化到数据库且文件超过上限时清空日志
+     */
+    private synchronized void rollIfPersisted() {
+        try {
+            if (checkpointSeq >= lastWrittenSeq && channel.size() > rollBytes) {
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+                log.info("库存日志已全部持久化，清空日志，checkpoint：[{}]", checkpointSeq);
+            }
+        } catch (IOException e) {
+            log.error("清空库存日志失败", e);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+        String content = new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8).trim();
+        return content.isEmpty() ? 0 : Long.parseLong(content);
+    }
+
+    static void encode(Record record, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putLong(record.seq);
+        buffer.putInt(record.sid);
+        buffer.putInt(record.userId);
+        buffer.putLong(record.timestamp);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start, RECORD_SIZE - 4);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * @return crc不符时返回null
+     */
+    static Record decode(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.position(), RECORD_SIZE - 4);
+        long seq = buffer.getLong();
+        int sid = buffer.getInt();
+        int userId = buffer.getInt();
+        long timestamp = buffer.getLong();
+        if (buffer.getInt() != (int) crc.getValue()) {
+            return null;
+        }
+        return new Record(seq, sid, userId, timestamp);
+    }
+
+    public static class Record {
+        private final long seq;
+        private final int sid;
+        private final int userId;
+        private final long timestamp;
+
+        public Record(long seq, int sid, int userId, long timestamp) {
+            this.seq = seq;
+            this.sid = sid;
+            this.userId = userId;
+            this.timestamp = timestamp;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public int getSid() {
+            return sid;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static class Pending {
+        private final int sid;
+        private final int userId;
+        private final long timestamp;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        private Pending(int sid, int userId, long timestamp) {
+            this.sid = sid;
+            this.userId = userId;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.zben.miaosha.inventory;
+
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.domain.StockOrder;
+import com.zben.miaosha.mapper.StockMapper;
+import com.zben.miaosha.mapper.StockOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @DESC:把内存库存的扣减记录批量写入数据库
+ * 订单用insert ignore写入，已售只增加实际新写入的订单数，同一批记录重复写入（崩溃后重放）不会产生重复订单也不会多扣库存
+ * @author: zhouben
+ * @date: 2020/10/29 0029 11:00
+ */
+@Component
+@Slf4j
+public class InventoryWriter {
+
+    @Autowired
+    StockMapper stockMapper;
+
+    @Autowired
+    StockOrderMapper stockOrderMapper;
+
+    /**
+     * 在一个事务内写入一批扣减记录
+     *
+     * @param records
+     * @return 新写入的订单数
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public int persist(List<InventoryJournal.Record> records) {
+        Map<Integer, List<InventoryJournal.Record>> recordsBySid = new LinkedHashMap<>();
+        for (InventoryJournal.Record record : records) {
+            recordsBySid.computeIfAbsent(record.getSid(), k -> new ArrayList<>()).add(record);
+        }
+        int total = 0;
+        for (Map.Entry<Integer, List<InventoryJournal.Record>> entry : recordsBySid.entrySet()) {
+            Integer sid = entry.getKey();
+            Stock stock = stockMapper.selectByPrimaryKey(sid);
+            if (stock == null) {
+                log.error("商品id：[{}] 不存在，丢弃 [{}] 条扣减记录", sid, entry.getValue().size());
+                continue;
+            }
+            List<StockOrder> orders = new ArrayList<>(entry.getValue().size());
+            for (InventoryJournal.Record record : entry.getValue()) {
+                StockOrder order = new StockOrder();
+                order.setSid(sid);
+                order.setName(stock.getName());
+                order.setUserId(record.getUserId());
+                orders.add(order);
+            }
+            int inserted = stockOrderMapper.insertBatch(orders);
+            if (inserted > 0 && stockMapper.updateSaleByDelta(sid, inserted) == 0) {
+                // 内存库存由数据库加载，正常不会超过；出现说明有其他路径直接扣了数据库库存
+                log.error("商品id：[{}] 数据库库存不足以写入 [{}] 件已售，订单已写入，需人工核对", sid, inserted);
+            }
+            total += inserted;
+        }
+        return total;
+    }
+}
@@ -5,160 +5,277 @@ import com.alibaba.otter.canal.client.CanalConnectors;
 import com.alibaba.otter.canal.protocol.CanalEntry.*;
 import com.alibaba.otter.canal.protocol.Message;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.zben.miaosha.service.IdBloomFilterService;
+import com.zben.miaosha.service.utils.CacheKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-
+import java.util.Map;
+
+/**
+ * 订阅canal中stock表和stock_segment表的binlog，批量删除（或直接写入）库存缓存
+ * 同一批次内同一商品的多次变更只处理最后一次，redis命令pipeline执行，成功后才ack；canal不可用时退避重连
+ */
+@Component
+@ConditionalOnProperty(name = "miaosha.canal.enabled", havingValue = "true")
 public class CanalClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CanalClient.class);
 
-    public static void main(String[] args) {
+    private static final String STOCK_TABLE = "stock";
 
-        // 第一步：与canal进行连接
-        CanalConnector connector = CanalConnectors.newSingleConnector(new InetSocketAddress("127.0.0.1", 11111),
-                "example", "", "");
-        connector.connect();
+    private static final String SEGMENT_TABLE = "stock_segment";
 
-        // 第二步：开启订阅
-        connector.subscribe();
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
 
-        // 第三步：循环订阅
-        while (true) {
-            try {
-                // 每次读取 1000 条
-                Message message = connector.getWithoutAck(1000);
+    @Autowired
+    private IdBloomFilterService idBloomFilterService;
 
-                long batchID = message.getId();
+    @Value("${miaosha.canal.host:127.0.0.1}")
+    private String host;
 
-                int size = message.getEntries().size();
+    @Value("${miaosha.canal.port:11111}")
+    private int port;
 
-                if (batchID == -1 || size == 0) {
-                    LOGGER.info("当前暂时没有数据，休眠1秒");
-                    Thread.sleep(1000);
-                } else {
-                    LOGGER.info("-------------------------- 有数据啦 -----------------------");
-                    printEntry(message.getEntries());
-                }
+    @Value("${miaosha.canal.destination:example}")
+    private String destination;
 
-                connector.ack(batchID);
+    @Value("${miaosha.canal.username:}")
+    private String username;
 
-            } catch (Exception e) {
-                LOGGER.error("处理出错");
-            } finally {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-    }
+    @Value("${miaosha.canal.password:}")
+    private String password;
+
+    @Value("${miaosha.canal.schema:miaosha}")
+    private String schema;
+
+    @Value("${miaosha.canal.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${miaosha.canal.idle-sleep-millis:200}")
+    private long idleSleepMillis;
+
+    @Value("${miaosha.canal.reconnect-backoff-millis:1000}")
+    private long reconnectBackoffMillis;
+
+    @Value("${miaosha.canal.reconnect-max-backoff-millis:30000}")
+    private long reconnectMaxBackoffMillis;
 
     /**
-     * 获取每条打印的记录
+     * delete：删除库存缓存；set：直接写入最新的剩余库存
      */
-    public static void printEntry(List<Entry> entrys) {
+    @Value("${miaosha.canal.mode:delete}")
+    private String mode;
 
-        for (Entry entry : entrys) {
+    private CanalConnector connector;
 
-            // 第一步：拆解entry 实体
-            Header header = entry.getHeader();
-            EntryType entryType = entry.getEntryType();
+    private volatile boolean running;
 
-            // 第二步： 如果当前是RowData，那就是我需要的数据
-            if (entryType == EntryType.ROWDATA) {
+    private Thread worker;
 
-                String tableName = header.getTableName();
-                String schemaName = header.getSchemaName();
+    @PostConstruct
+    public void start() {
+        connector = createConnector();
+        running = true;
+        worker = new Thread(this::process, "canal-stock-cache");
+        worker.setDaemon(true);
+        worker.start();
+    }
 
-                RowChange rowChange = null;
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        worker.interrupt();
+        worker.join(5000);
+    }
 
+    CanalConnector createConnector() {
+        return CanalConnectors.newSingleConnector(new InetSocketAddress(host, port), destination, username, password);
+    }
+
+    /**
+     * 连接失败或连接断开后按指数退避重连，不会因为canal暂时不可用而退出
+     */
+    void process() {
+        long backoffMillis = reconnectBackoffMillis;
+        while (running) {
+            try {
+                // 第一步：与canal进行连接并订阅stock表和分段表
+                connector.connect();
+                connector.subscribe(schema + "\\." + STOCK_TABLE + "," + schema + "\\." + SEGMENT_TABLE);
+                connector.rollback();
+                LOGGER.info("Canal已连接：[{}:{}] destination：[{}]", host, port, destination);
+                backoffMillis = reconnectBackoffMillis;
+                // 第二步：循环拉取
+                consume();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                LOGGER.error("Canal连接异常，[{}]ms后重连", backoffMillis, e);
                 try {
-                    rowChange = RowChange.parseFrom(entry.getStoreValue());
-                } catch (InvalidProtocolBufferException e) {
-                    e.printStackTrace();
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
+                backoffMillis = Math.min(backoffMillis * 2, reconnectMaxBackoffMillis);
+            } finally {
+                disconnectQuietly();
+            }
+        }
+    }
 
-                EventType eventType = rowChange.getEventType();
-
-                LOGGER.info(String.format("当前正在操作表 %s.%s， 执行操作= %s", schemaName, tableName, eventType));
-
-                // 如果是‘查询’ 或者 是 ‘DDL’ 操作，那么sql直接打出来
-                if (eventType == EventType.QUERY || rowChange.getIsDdl()) {
-                    LOGGER.info("执行了查询语句：[{}]", rowChange.getSql());
-                    return;
+    /**
+     * 拉取并处理binlog；缓存更新失败时回滚批次重新拉取，拉取、ack或回滚失败时抛出，由外层重连
+     *
+     * @throws InterruptedException
+     */
+    private void consume() throws InterruptedException {
+        while (running) {
+            Message message = connector.getWithoutAck(batchSize);
+            long batchId = message.getId();
+            if (batchId == -1) {
+                // 只在没有数据时休眠
+                Thread.sleep(idleSleepMillis);
+                continue;
+            }
+            try {
+                Map<Integer, Integer> changes = collectStockChanges(message.getEntries(), schema);
+                if (!changes.isEmpty()) {
+                    // 新增的商品加入布隆过滤器
+                    changes.forEach((sid, remaining) -> {
+                        if (remaining != null) {
+                            idBloomFilterService.putStock(sid);
+                        }
+                    });
+                    applyToCache(changes);
+                    LOGGER.info("Canal批次：[{}] 处理商品库存缓存：[{}] 个", batchId, changes.size());
                 }
+            } catch (Exception e) {
+                LOGGER.error("Canal批次：[{}] 处理出错，回滚后重新拉取", batchId, e);
+                connector.rollback(batchId);
+                Thread.sleep(idleSleepMillis);
+                continue;
+            }
+            connector.ack(batchId);
+        }
+    }
 
-                // 第三步：追踪到 columns 级别
-                rowChange.getRowDatasList().forEach((rowData) -> {
+    private void disconnectQuietly() {
+        try {
+            connector.disconnect();
+        } catch (Exception e) {
+            LOGGER.warn("Canal断开连接失败：[{}]", e.getMessage());
+        }
+    }
 
-                    // 获取更新之前的column情况
-                    List<Column> beforeColumns = rowData.getBeforeColumnsList();
+    /**
+     * 汇总一批binlog中stock表和stock_segment表的变更，同一商品只保留最后一次变更
+     * 分段表的变更只能从所有分段汇总出剩余库存，记为null（删除缓存，下次读取时从数据库汇总）
+     *
+     * @param entries
+     * @param schema
+     * @return 商品id -> stock表中的剩余库存，删除的商品和分段变更为null
+     */
+    public static Map<Integer, Integer> collectStockChanges(List<Entry> entries, String schema) {
+        Map<Integer, Integer> changes = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            // 拆解entry 实体，只处理stock表和分段表的RowData
+            Header header = entry.getHeader();
+            if (entry.getEntryType() != EntryType.ROWDATA || !schema.equals(header.getSchemaName())) {
+                continue;
+            }
+            boolean segment = SEGMENT_TABLE.equals(header.getTableName());
+            if (!segment && !STOCK_TABLE.equals(header.getTableName())) {
+                continue;
+            }
 
-                    // 获取更新之后的 column 情况
-                    List<Column> afterColumns = rowData.getAfterColumnsList();
+            RowChange rowChange;
+            try {
+                rowChange = RowChange.parseFrom(entry.getStoreValue());
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("解析binlog失败", e);
+            }
+            EventType eventType = rowChange.getEventType();
+            if (rowChange.getIsDdl() || eventType == EventType.QUERY) {
+                continue;
+            }
 
-                    // 当前执行的是 删除操作
-                    if (eventType == EventType.DELETE) {
-                        printColumn(beforeColumns);
+            // 追踪到 columns 级别
+            for (RowData rowData : rowChange.getRowDatasList()) {
+                if (segment) {
+                    List<Column> columns = eventType == EventType.DELETE
+                            ? rowData.getBeforeColumnsList() : rowData.getAfterColumnsList();
+                    Integer sid = columnValue(columns, "sid");
+                    if (sid != null) {
+                        changes.put(sid, null);
                     }
-
-                    // 当前执行的是 插入操作
-                    if (eventType == EventType.INSERT) {
-                        printColumn(afterColumns);
+                } else if (eventType == EventType.DELETE) {
+                    Integer id = columnValue(rowData.getBeforeColumnsList(), "id");
+                    if (id != null) {
+                        changes.put(id, null);
                     }
-
-                    // 当前执行的是 更新操作
-                    if (eventType == EventType.UPDATE) {
-                        printColumn(afterColumns);
-                        // 进行删除缓存操作
-                        deleteCache(afterColumns, tableName, schemaName);
+                } else if (eventType == EventType.INSERT || eventType == EventType.UPDATE) {
+                    List<Column> afterColumns = rowData.getAfterColumnsList();
+                    Integer id = columnValue(afterColumns, "id");
+                    Integer count = columnValue(afterColumns, "count");
+                    Integer sale = columnValue(afterColumns, "sale");
+                    if (id != null) {
+                        changes.put(id, count == null || sale == null ? null : count - sale);
                     }
-
-
-                });
+                }
             }
         }
+        return changes;
     }
 
-    /**
-     * 每个row上面的每一个column 的更改情况
-     * @param columns
-     */
-    public static void printColumn(List<Column> columns) {
-
-        columns.forEach((column) -> {
-            String columnName = column.getName();
-            String columnValue = column.getValue();
-            String columnType = column.getMysqlType();
-            // 判断 该字段是否更新
-            boolean isUpdated = column.getUpdated();
-            LOGGER.info(String.format("数据列：columnName=%s, columnValue=%s, columnType=%s, isUpdated=%s", columnName, columnValue, columnType, isUpdated));
-        });
+    private static Integer columnValue(List<Column> columns, String name) {
+        for (Column column : columns) {
+            if (name.equals(column.getName())) {
+                return column.getIsNull() ? null : Integer.valueOf(column.getValue());
+            }
+        }
+        return null;
     }
 
     /**
-     * 秒杀下单接口删除库存缓存
+     * pipeline执行缓存更新，并通知各节点删除本地缓存
+     *
+     * @param changes
      */
-    public static void deleteCache(List<Column> columns, String tableName, String schemaName) {
-        if ("stock".equals(tableName) && "m4a_miaosha".equals(schemaName)) {
-            AtomicInteger id = new AtomicInteger();
-            columns.forEach((column) -> {
-                String columnName = column.getName();
-                String columnValue = column.getValue();
-                if ("id".equals(columnName)) {
-                    id.set(Integer.parseInt(columnValue));
+    private void applyToCache(Map<Integer, Integer> changes) {
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        byte[] channel = serializer.serialize(CacheKey.STOCK_CACHE_CHANNEL.getKey());
+        boolean setMode = "set".equals(mode);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Integer, Integer> change : changes.entrySet()) {
+                byte[] key = serializer.serialize(CacheKey.STOCK_COUNT.getKey() + "_" + change.getKey());
+                // 拆分后stock表的剩余为0，真实剩余在各分段中，剩余为0时只删除缓存，由读取时从数据库汇总
+                if (setMode && change.getValue() != null && change.getValue() > 0) {
+                    connection.stringCommands().set(key, serializer.serialize(String.valueOf(change.getValue())),
+                            Expiration.seconds(3600), RedisStringCommands.SetOption.UPSERT);
+                } else {
+                    connection.keyCommands().del(key);
                 }
-            });
-            // TODO: 删除缓存
-            LOGGER.info("Canal删除stock表id：[{}] 的库存缓存", id);
-
-        }
+                connection.publish(channel, serializer.serialize(String.valueOf(change.getKey())));
+            }
+            return null;
+        });
     }
-
-
 }
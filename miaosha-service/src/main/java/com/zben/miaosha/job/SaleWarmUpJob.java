@@ -0,0 +1,170 @@
+package com.zben.miaosha.job;
+
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.mapper.StockMapper;
+import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.VerifyProperties;
+import com.zben.miaosha.service.utils.VerifyTokenSigner;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:秒杀开始前的预热任务
+ * 定时扫描即将开始（lead-seconds内）和进行中（active-seconds内开始）的秒杀，加载缓存并用只读调用预热代码路径；
+ * 首次扫描完成且所有商品预热成功后才报告就绪，负载均衡据此决定是否把流量转到本节点
+ * @author: zhouben
+ * @date: 2020/10/26 0026 15:00
+ */
+@Component
+@Slf4j
+public class SaleWarmUpJob {
+
+    @Autowired
+    private StockMapper stockMapper;
+
+    @Autowired
+    private StockService stockService;
+
+    @Autowired
+    private OrderService orderService;
+
+    @Autowired
+    private VerifyProperties verifyProperties;
+
+    @Autowired
+    private VerifyTokenSigner verifyTokenSigner;
+
+    @Value("${miaosha.warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${miaosha.warm-up.scan-interval-seconds:30}")
+    private long scanIntervalSeconds;
+
+    /**
+     * 提前多久开始预热
+     */
+    @Value("${miaosha.warm-up.lead-seconds:600}")
+    private long leadSeconds;
+
+    /**
+     * 开始后多久内仍视为进行中，节点重启后需要重新预热
+     */
+    @Value("${miaosha.warm-up.active-seconds:86400}")
+    private long activeSeconds;
+
+    /**
+     * 每个商品预热代码路径的调用次数
+     */
+    @Value("${miaosha.warm-up.prime-iterations:200}")
+    private int primeIterations;
+
+    /**
+     * 已预热的商品 -> 预热时的秒杀开始时间，开始时间修改后重新预热
+     */
+    private final Map<Integer, Long> warmed = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            ready = true;
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "sale-warm-up"));
+        executor.scheduleWithFixedDelay(this::scan, 0, scanIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 本节点是否已完成预热
+     *
+     * @return
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public Map<Integer, Long> getWarmed() {
+        return warmed;
+    }
+
+    private void scan() {
+        long now = System.currentTimeMillis();
+        List<Stock> stocks;
+        try {
+            stocks = stockMapper.selectBySaleStartTime(new Date(now - activeSeconds * 1000),
+                    new Date(now + leadSeconds * 1000));
+        } catch (Exception e) {
+            log.error("查询即将开始的秒杀失败：", e);
+            return;
+        }
+        boolean allWarmed = true;
+        for (Stock stock : stocks) {
+            long startTime = stock.getSaleStartTime().getTime();
+            if (Long.valueOf(startTime).equals(warmed.get(stock.getId()))) {
+                continue;
+            }
+            try {
+                long start = System.currentTimeMillis();
+                stockService.warmUpForSale(stock);
+                prime(stock.getId());
+                warmed.put(stock.getId(), startTime);
+                log.info("商品id：[{}] 预热完成，耗时：[{}]ms，秒杀开始时间：[{}]",
+                        stock.getId(), System.currentTimeMillis() - start, stock.getSaleStartTime());
+            } catch (Exception e) {
+                allWarmed = false;
+                log.error("商品id：[{}] 预热失败，下次扫描重试：", stock.getId(), e);
+            }
+        }
+        // 已结束的秒杀不再记录
+        warmed.keySet().removeIf(sid -> stocks.stream().noneMatch(stock -> stock.getId().equals(sid)));
+        if (ready != allWarmed) {
+            log.info("预热状态变更：[{}]", allWarmed ? "就绪" : "未就绪");
+        }
+        ready = allWarmed;
+    }
+
+    /**
+     * 用只读调用预热mybatis、缓存和验证值的代码路径，触发类加载和JIT编译
+     * 数据库和redis只各访问一次，循环中只调用命中本地缓存的路径，不会对数据库和日志造成压力
+     *
+     * @param sid
+     */
+    private void prime(int sid) {
+        long start = System.nanoTime();
+        stockService.getStockById(sid);
+        orderService.checkUserOrderInfoInCache(sid, 0);
+        for (int i = 0; i < primeIterations; i++) {
+            stockService.getStockInfo(sid);
+            stockService.getStockCountWithLoader(sid);
+            stockService.isSoldOut(sid);
+            if (verifyProperties.isHmac()) {
+                verifyTokenSigner.verify(sid, 0, verifyTokenSigner.sign(sid, 0));
+            }
+        }
+        log.debug("商品id：[{}] 预热代码路径 [{}] 次，耗时：[{}]ms", sid, primeIterations,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}
@@ -0,0 +1,29 @@
+package com.zben.miaosha.job;
+
+import com.zben.miaosha.service.StockService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * @DESC:启动时预热秒杀库存
+ * @author: zhouben
+ * @date: 2020/10/9 0009 11:02
+ */
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "miaosha.stock.warm-up-on-startup", havingValue = "true", matchIfMissing = true)
+public class StockWarmUpRunner implements ApplicationRunner {
+
+    @Autowired
+    private StockService stockService;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        int warmed = stockService.warmUpStock();
+        log.info("秒杀库存预热完成，共预热商品：[{}] 个", warmed);
+    }
+}
@@ -0,0 +1,53 @@
+package com.zben.miaosha.service;
+
+import java.util.Map;
+
+/**
+ * @DESC:用户id和商品id布隆过滤器，在访问缓存和数据库之前拦截不存在的id
+ * @author: zhouben
+ * @date: 2020/10/26 0026 9:30
+ */
+public interface IdBloomFilterService {
+
+    /**
+     * 用户id是否可能存在，过滤器未构建完成时返回true
+     *
+     * @param userId
+     * @return false表示一定不存在
+     */
+    boolean mightContainUser(long userId);
+
+    /**
+     * 商品id是否可能存在，过滤器未构建完成时返回true
+     *
+     * @param sid
+     * @return false表示一定不存在
+     */
+    boolean mightContainStock(int sid);
+
+    /**
+     * 新增用户后加入过滤器
+     *
+     * @param userId
+     */
+    void putUser(long userId);
+
+    /**
+     * 新增商品后加入过滤器
+     *
+     * @param sid
+     */
+    void putStock(int sid);
+
+    /**
+     * 从数据库重新构建过滤器
+     */
+    void rebuild();
+
+    /**
+     * 过滤器的元素数、误判率和内存占用
+     *
+     * @return
+     */
+    Map<String, Object> getReport();
+}
@@ -0,0 +1,95 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.service.utils.OrderStatus;
+
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @DESC:异步下单结果
+ * @author: zhouben
+ * @date: 2020/10/23 0023 14:20
+ */
+public interface OrderResultService {
+
+    /**
+     * 写入下单结果，并通知等待结果的请求
+     *
+     * @param sid
+     * @param userId
+     * @param status
+     */
+    void saveStatus(int sid, int userId, OrderStatus status);
+
+    /**
+     * 批量写入同一商品的下单结果
+     *
+     * @param sid
+     * @param userIds
+     * @param status
+     */
+    void saveStatus(int sid, List<Integer> userIds, OrderStatus status);
+
+    /**
+     * 删除下单结果（下单请求未能提交时）
+     *
+     * @param sid
+     * @param userId
+     */
+    void deleteStatus(int sid, int userId);
+
+    /**
+     * 写入下单结果（非阻塞）
+     *
+     * @param sid
+     * @param userId
+     * @param status
+     * @return
+     */
+    Mono<Void> saveStatusReactive(int sid, int userId, OrderStatus status);
+
+    /**
+     * 删除下单结果（非阻塞）
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    Mono<Void> deleteStatusReactive(int sid, int userId);
+
+    /**
+     * 查询下单结果，先查本地缓存再查redis
+     *
+     * @param sid
+     * @param userId
+     * @return 没有下单记录时返回null
+     */
+    OrderStatus getStatus(int sid, int userId);
+
+    /**
+     * 等待最终下单结果
+     *
+     * @param sid
+     * @param userId
+     * @return 收到最终结果时完成
+     */
+    CompletableFuture<OrderStatus> awaitFinalStatus(int sid, int userId);
+
+    /**
+     * 取消等待
+     *
+     * @param sid
+     * @param userId
+     * @param future
+     */
+    void cancelAwait(int sid, int userId, CompletableFuture<OrderStatus> future);
+
+    /**
+     * 收到其他节点的下单结果通知
+     *
+     * @param message sid_userId_status
+     */
+    void onStatusNotified(String message);
+}
@@ -1,5 +1,10 @@
 package com.zben.miaosha.service;
 
+import com.zben.miaosha.service.utils.OrderStatus;
+
+import java.util.List;
+import java.util.Map;
+
 /**
  * @DESC:
  * @AUTHOR: zhouben
@@ -55,6 +60,22 @@ public interface OrderService {
      *
      * @param sid
      * @param userId
+     * @return 下单结果
+     */
+    OrderStatus createOrderByMq(Integer sid, Integer userId);
+
+    /**
+     * mq批量下单
+     *
+     * @param userIdsBySid 商品id -> 用户id列表
+     * @return 因库存不足未能下单的用户：商品id -> 用户id列表，其余用户均下单成功
+     */
+    Map<Integer, List<Integer>> createOrderByMqBatch(Map<Integer, List<Integer>> userIdsBySid);
+
+    /**
+     * 各商品的乐观锁冲突统计
+     *
+     * @return 商品id -> 统计项
      */
-    void createOrderByMq(Integer sid, Integer userId);
+    Map<Integer, Map<String, Object>> getStockConflictMetrics();
 }
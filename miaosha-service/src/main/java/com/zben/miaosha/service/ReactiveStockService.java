@@ -0,0 +1,30 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.service.utils.PreDeductStatus;
+import reactor.core.publisher.Mono;
+
+/**
+ * @DESC:非阻塞库存服务
+ * @AUTHOR: zhouben
+ * @DATE: 2020/10/20 0020 9:30
+ */
+public interface ReactiveStockService {
+
+    /**
+     * 缓存预扣库存
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    Mono<PreDeductStatus> preDeductStock(Integer sid, Integer userId);
+
+    /**
+     * 回滚缓存预扣的库存
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    Mono<Void> rollbackPreDeductStock(Integer sid, Integer userId);
+}
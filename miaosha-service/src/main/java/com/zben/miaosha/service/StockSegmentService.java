@@ -0,0 +1,96 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.domain.StockSegment;
+
+import java.util.List;
+
+/**
+ * @DESC:库存分段：把一个商品的剩余库存拆到多行，扣库存的行锁分散到各段
+ * @author: zhouben
+ * @date: 2020/10/28 0028 10:40
+ */
+public interface StockSegmentService {
+
+    /**
+     * 是否开启分段库存
+     *
+     * @return
+     */
+    boolean isEnabled();
+
+    /**
+     * 商品是否已分段
+     *
+     * @param sid
+     * @return
+     */
+    boolean isSegmented(int sid);
+
+    /**
+     * 把商品剩余库存平均拆到多个分段，stock表的剩余清零
+     *
+     * @param sid
+     * @param segments 分段数
+     * @return 拆分的库存数量
+     */
+    int split(int sid, int segments);
+
+    /**
+     * 把各分段的剩余库存合并回stock表并删除分段
+     *
+     * @param sid
+     * @return 合并的库存数量
+     */
+    int merge(int sid);
+
+    /**
+     * 按剩余库存重新平均分配各分段
+     *
+     * @param sid
+     * @return 重新分配的库存数量
+     */
+    int rebalance(int sid);
+
+    /**
+     * 从某一个分段按数量扣减库存，各段都不足但总量足够时重新分配后再试，分段已被其他节点合并时从stock表扣减
+     * 在事务内调用时事务需要是READ COMMITTED，否则扣减失败的分段一直被锁定，从不同分段开始查找的请求会死锁
+     *
+     * @param sid
+     * @param delta
+     * @return 扣减成功后的剩余库存：所扣分段还有剩余时为该段剩余（商品总剩余不少于该值），该段扣完时为各段汇总；
+     * 0表示扣减后已售罄，-1表示库存不足
+     */
+    int deduct(int sid, int delta);
+
+    /**
+     * 依次从各分段扣减，最多扣减want件，分段已被其他节点合并时从stock表扣减
+     *
+     * @param sid
+     * @param want
+     * @return 实际扣减数量
+     */
+    int deductUpTo(int sid, int want);
+
+    /**
+     * 汇总各分段的剩余库存
+     *
+     * @param sid
+     * @return
+     */
+    int getRemaining(int sid);
+
+    /**
+     * 查询商品的所有分段
+     *
+     * @param sid
+     * @return
+     */
+    List<StockSegment> getSegments(int sid);
+
+    /**
+     * 重新读取商品的分段数，其他节点拆分或合并后调用
+     *
+     * @param sid
+     */
+    void refresh(int sid);
+}
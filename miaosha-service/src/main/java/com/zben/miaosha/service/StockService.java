@@ -1,6 +1,10 @@
 package com.zben.miaosha.service;
 
 import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.service.utils.PreDeductStatus;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * @DESC:
@@ -33,6 +37,24 @@ public interface StockService {
      */
     int updateStockByOptimistic(Stock stock);
 
+    /**
+     * 按数量扣减库存，库存不足时不更新
+     *
+     * @param sid
+     * @param delta
+     * @return
+     */
+    int updateStockSaleByDelta(int sid, int delta);
+
+    /**
+     * 单条语句按条件扣减库存
+     *
+     * @param sid
+     * @param delta
+     * @return 扣减后的剩余库存，库存不足时返回-1
+     */
+    int deductStock(int sid, int delta);
+
     /**
      * 查询数据库
      *
@@ -49,6 +71,21 @@ public interface StockService {
      */
     Integer getStockCountByCache(int sid);
 
+    /**
+     * 查询库存：缓存未命中时合并并发的数据库查询并写入缓存
+     *
+     * @param sid
+     * @return
+     */
+    int getStockCountWithLoader(int sid);
+
+    /**
+     * 缓存未命中加载的统计
+     *
+     * @return
+     */
+    Map<String, Long> getStockLoadMetrics();
+
     /**
      * 写入缓存
      *
@@ -69,4 +106,103 @@ public interface StockService {
      * @return
      */
     Integer getStockCount(Integer sid);
+
+    /**
+     * 预热秒杀库存：将商品剩余库存写入缓存（已存在的不覆盖）
+     *
+     * @return 预热的商品数量
+     */
+    int warmUpStock();
+
+    /**
+     * 秒杀开始前预热单个商品：库存缓存、秒杀库存、已下单用户、商品信息和售罄标记
+     *
+     * @param stock
+     */
+    void warmUpForSale(Stock stock);
+
+    /**
+     * 缓存预扣库存：校验用户是否抢购过、扣减库存、记录用户在一次lua调用中原子完成
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    PreDeductStatus preDeductStock(Integer sid, Integer userId);
+
+    /**
+     * 回滚缓存预扣的库存
+     *
+     * @param sid
+     * @param userId
+     */
+    void rollbackPreDeductStock(Integer sid, Integer userId);
+
+    /**
+     * 下单因库存不足失败时，把用户移出已抢购set，不归还库存（数据库中已经没有库存）
+     *
+     * @param sid
+     * @param userIds
+     */
+    void releasePreDeductUsers(Integer sid, List<Integer> userIds);
+
+    /**
+     * 重新从数据库加载秒杀库存（覆盖缓存，补货时使用）
+     *
+     * @param sid
+     */
+    void refreshSeckillStock(int sid);
+
+    /**
+     * 本地售罄标记：商品是否已售罄
+     *
+     * @param sid
+     * @return
+     */
+    boolean isSoldOut(int sid);
+
+    /**
+     * 本地售罄标记：标记商品已售罄
+     *
+     * @param sid
+     */
+    void markSoldOut(int sid);
+
+    /**
+     * 本地售罄标记：清除商品售罄标记（包括预扣售罄标记）
+     *
+     * @param sid
+     */
+    void clearSoldOut(int sid);
+
+    /**
+     * 预扣售罄标记：缓存中的秒杀库存是否已预扣完，只用于预扣下单接口快速失败；
+     * 此时预扣成功的请求可能还在队列中排队，消费端必须使用以数据库为准的isSoldOut
+     *
+     * @param sid
+     * @return
+     */
+    boolean isPreDeductSoldOut(int sid);
+
+    /**
+     * 预扣售罄标记：标记缓存中的秒杀库存已预扣完
+     *
+     * @param sid
+     */
+    void markPreDeductSoldOut(int sid);
+
+    /**
+     * 查询商品信息（多级缓存，不可用于扣库存）
+     *
+     * @param sid
+     * @return
+     */
+    Stock getStockInfo(int sid);
+
+    /**
+     * 删除本节点的一级缓存
+     *
+     * @param sid
+     */
+    void evictLocalStockCache(int sid);
 }
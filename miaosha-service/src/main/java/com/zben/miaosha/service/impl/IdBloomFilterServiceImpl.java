@@ -0,0 +1,234 @@
+package com.zben.miaosha.service.impl;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.domain.User;
+import com.zben.miaosha.mapper.StockMapper;
+import com.zben.miaosha.mapper.UserMapper;
+import com.zben.miaosha.service.IdBloomFilterService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:进程内布隆过滤器
+ * 启动后在后台线程按id分页扫描user和stock表构建，构建完成前放行所有请求；
+ * 构建期间新增的id同时写入新旧两个过滤器，构建完成后替换。
+ * 所需内存 m = -n*ln(p)/(ln2)^2 位：1亿用户、误判率1%约114MB，误判率0.1%约171MB
+ * @author: zhouben
+ * @date: 2020/10/26 0026 9:40
+ */
+@Service
+@Slf4j
+public class IdBloomFilterServiceImpl implements IdBloomFilterService {
+
+    @Autowired
+    UserMapper userMapper;
+
+    @Autowired
+    StockMapper stockMapper;
+
+    @Value("${miaosha.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${miaosha.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 预计元素数，实际数量更多时按实际数量的1.2倍分配
+     */
+    @Value("${miaosha.bloom.user-expected-insertions:1000000}")
+    private long userExpectedInsertions;
+
+    @Value("${miaosha.bloom.stock-expected-insertions:10000}")
+    private long stockExpectedInsertions;
+
+    @Value("${miaosha.bloom.page-size:10000}")
+    private int pageSize;
+
+    /**
+     * 定时重建间隔，用于收录其他系统新增的id（用户注册不经过本系统），小于等于0不重建
+     */
+    @Value("${miaosha.bloom.rebuild-interval-seconds:300}")
+    private long rebuildIntervalSeconds;
+
+    private volatile BloomFilter<Long> userFilter;
+
+    private volatile BloomFilter<Integer> stockFilter;
+
+    /**
+     * 正在构建的过滤器
+     */
+    private volatile BloomFilter<Long> buildingUserFilter;
+
+    private volatile BloomFilter<Integer> buildingStockFilter;
+
+    private volatile long userCapacity;
+
+    private volatile long stockCapacity;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-bloom-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::rebuild);
+        if (rebuildIntervalSeconds > 0) {
+            executor.scheduleWithFixedDelay(this::rebuild, rebuildIntervalSeconds, rebuildIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean mightContainUser(long userId) {
+        BloomFilter<Long> filter = userFilter;
+        return filter == null || filter.mightContain(userId);
+    }
+
+    @Override
+    public boolean mightContainStock(int sid) {
+        BloomFilter<Integer> filter = stockFilter;
+        return filter == null || filter.mightContain(sid);
+    }
+
+    @Override
+    public synchronized void putUser(long userId) {
+        if (userFilter != null) {
+            userFilter.put(userId);
+        }
+        if (buildingUserFilter != null) {
+            buildingUserFilter.put(userId);
+        }
+    }
+
+    @Override
+    public synchronized void putStock(int sid) {
+        if (stockFilter != null) {
+            stockFilter.put(sid);
+        }
+        if (buildingStockFilter != null) {
+            buildingStockFilter.put(sid);
+        }
+    }
+
+    @Override
+    public void rebuild() {
+        try {
+            long start = System.currentTimeMillis();
+            buildStockFilter();
+            buildUserFilter();
+            log.info("布隆过滤器构建完成，耗时：[{}]ms 报告：[{}]", System.currentTimeMillis() - start, getReport());
+        } catch (Exception e) {
+            log.error("布隆过滤器构建失败，继续使用旧的过滤器：", e);
+            buildingUserFilter = null;
+            buildingStockFilter = null;
+        }
+    }
+
+    private void buildUserFilter() {
+        long capacity = capacity(userExpectedInsertions, userMapper.selectCount(new User()));
+        BloomFilter<Long> filter = BloomFilter.create(Funnels.longFunnel(), capacity, fpp);
+        buildingUserFilter = filter;
+        Long lastId = 0L;
+        List<Long> ids;
+        do {
+            ids = userMapper.selectIdsAfter(lastId, pageSize);
+            synchronized (this) {
+                ids.forEach(filter::put);
+            }
+            if (!ids.isEmpty()) {
+                lastId = ids.get(ids.size() - 1);
+            }
+        } while (ids.size() == pageSize);
+        synchronized (this) {
+            userFilter = filter;
+            userCapacity = capacity;
+            buildingUserFilter = null;
+        }
+    }
+
+    private void buildStockFilter() {
+        long capacity = capacity(stockExpectedInsertions, stockMapper.selectCount(new Stock()));
+        BloomFilter<Integer> filter = BloomFilter.create(Funnels.integerFunnel(), capacity, fpp);
+        buildingStockFilter = filter;
+        Integer lastId = 0;
+        List<Integer> ids;
+        do {
+            ids = stockMapper.selectIdsAfter(lastId, pageSize);
+            synchronized (this) {
+                ids.forEach(filter::put);
+            }
+            if (!ids.isEmpty()) {
+                lastId = ids.get(ids.size() - 1);
+            }
+        } while (ids.size() == pageSize);
+        synchronized (this) {
+            stockFilter = filter;
+            stockCapacity = capacity;
+            buildingStockFilter = null;
+        }
+    }
+
+    private long capacity(long expectedInsertions, long count) {
+        return Math.max(expectedInsertions, (long) (count * 1.2));
+    }
+
+    @Override
+    public Map<String, Object> getReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("enabled", enabled);
+        report.put("fpp", fpp);
+        BloomFilter<Long> users = userFilter;
+        if (users != null) {
+            report.put("userCapacity", userCapacity);
+            report.put("userCount", users.approximateElementCount());
+            report.put("userExpectedFpp", users.expectedFpp());
+            report.put("userBytes", estimateBytes(userCapacity, fpp));
+        }
+        BloomFilter<Integer> stocks = stockFilter;
+        if (stocks != null) {
+            report.put("stockCapacity", stockCapacity);
+            report.put("stockCount", stocks.approximateElementCount());
+            report.put("stockExpectedFpp", stocks.expectedFpp());
+            report.put("stockBytes", estimateBytes(stockCapacity, fpp));
+        }
+        report.put("bytesFor100MUsers", estimateBytes(100_000_000L, fpp));
+        return report;
+    }
+
+    /**
+     * 布隆过滤器位数组大小：m = -n*ln(p)/(ln2)^2
+     *
+     * @param n 元素数
+     * @param p 误判率
+     * @return 字节数
+     */
+    public static long estimateBytes(long n, double p) {
+        long bits = (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        return (bits + 7) / 8;
+    }
+}
@@ -0,0 +1,179 @@
+package com.zben.miaosha.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zben.miaosha.service.OrderResultService;
+import com.zben.miaosha.service.utils.CacheKey;
+import com.zben.miaosha.service.utils.OrderStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @DESC:异步下单结果
+ * 结果存在redis中（miaosha_order_result_sid_userId），写入最终结果后在频道中广播；
+ * 各节点收到广播后把最终结果放入本地缓存，并唤醒本节点上等待该结果的长轮询请求
+ * @author: zhouben
+ * @date: 2020/10/23 0023 14:30
+ */
+@Service
+@Slf4j
+public class OrderResultServiceImpl implements OrderResultService {
+
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    @Value("${miaosha.order.result.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    @Value("${miaosha.order.result.local-size:100000}")
+    private long localSize;
+
+    /**
+     * 本地只缓存最终结果，排队中的结果每次都查redis
+     */
+    private Cache<String, OrderStatus> finalStatusCache;
+
+    /**
+     * 等待结果的请求
+     */
+    private final Map<String, Set<CompletableFuture<OrderStatus>>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void initLocalCache() {
+        finalStatusCache = Caffeine.newBuilder()
+                .maximumSize(localSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Override
+    public void saveStatus(int sid, int userId, OrderStatus status) {
+        String key = key(sid, userId);
+        stringRedisTemplate.opsForValue().set(CacheKey.ORDER_RESULT.getKey() + "_" + key, status.name(), ttlSeconds, TimeUnit.SECONDS);
+        if (status.isFinal()) {
+            stringRedisTemplate.convertAndSend(CacheKey.ORDER_RESULT_CHANNEL.getKey(), key + "_" + status.name());
+        }
+    }
+
+    @Override
+    public void saveStatus(int sid, List<Integer> userIds, OrderStatus status) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        byte[] channel = serializer.serialize(CacheKey.ORDER_RESULT_CHANNEL.getKey());
+        byte[] value = serializer.serialize(status.name());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Integer userId : userIds) {
+                String key = key(sid, userId);
+                connection.setEx(serializer.serialize(CacheKey.ORDER_RESULT.getKey() + "_" + key), ttlSeconds, value);
+                if (status.isFinal()) {
+                    connection.publish(channel, serializer.serialize(key + "_" + status.name()));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteStatus(int sid, int userId) {
+        stringRedisTemplate.delete(CacheKey.ORDER_RESULT.getKey() + "_" + key(sid, userId));
+    }
+
+    @Override
+    public Mono<Void> saveStatusReactive(int sid, int userId, OrderStatus status) {
+        String key = key(sid, userId);
+        Mono<Boolean> save = reactiveStringRedisTemplate.opsForValue()
+                .set(CacheKey.ORDER_RESULT.getKey() + "_" + key, status.name(), Duration.ofSeconds(ttlSeconds));
+        if (!status.isFinal()) {
+            return save.then();
+        }
+        return save.then(reactiveStringRedisTemplate.convertAndSend(CacheKey.ORDER_RESULT_CHANNEL.getKey(), key + "_" + status.name()))
+                .then();
+    }
+
+    @Override
+    public Mono<Void> deleteStatusReactive(int sid, int userId) {
+        return reactiveStringRedisTemplate.delete(CacheKey.ORDER_RESULT.getKey() + "_" + key(sid, userId)).then();
+    }
+
+    @Override
+    public OrderStatus getStatus(int sid, int userId) {
+        String key = key(sid, userId);
+        OrderStatus status = finalStatusCache.getIfPresent(key);
+        if (status != null) {
+            return status;
+        }
+        String value = stringRedisTemplate.opsForValue().get(CacheKey.ORDER_RESULT.getKey() + "_" + key);
+        if (value == null) {
+            return null;
+        }
+        status = OrderStatus.valueOf(value);
+        if (status.isFinal()) {
+            finalStatusCache.put(key, status);
+        }
+        return status;
+    }
+
+    @Override
+    public CompletableFuture<OrderStatus> awaitFinalStatus(int sid, int userId) {
+        CompletableFuture<OrderStatus> future = new CompletableFuture<>();
+        String key = key(sid, userId);
+        waiters.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(future);
+        // 注册之后再查一次，避免结果恰好在注册之前写入而错过通知
+        OrderStatus status = getStatus(sid, userId);
+        if (status != null && status.isFinal()) {
+            complete(key, status);
+        }
+        return future;
+    }
+
+    @Override
+    public void cancelAwait(int sid, int userId, CompletableFuture<OrderStatus> future) {
+        waiters.computeIfPresent(key(sid, userId), (k, futures) -> {
+            futures.remove(future);
+            return futures.isEmpty() ? null : futures;
+        });
+    }
+
+    @Override
+    public void onStatusNotified(String message) {
+        int index = message.lastIndexOf('_');
+        String key = message.substring(0, index);
+        OrderStatus status = OrderStatus.valueOf(message.substring(index + 1));
+        if (status.isFinal()) {
+            finalStatusCache.put(key, status);
+            complete(key, status);
+        }
+    }
+
+    private void complete(String key, OrderStatus status) {
+        Set<CompletableFuture<OrderStatus>> futures = waiters.remove(key);
+        if (futures != null) {
+            futures.forEach(future -> future.complete(status));
+        }
+    }
+
+    private String key(int sid, int userId) {
+        return sid + "_" + userId;
+    }
+}
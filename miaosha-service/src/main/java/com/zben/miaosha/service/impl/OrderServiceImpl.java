@@ -3,18 +3,43 @@ package com.zben.miaosha.service.impl;
 import com.zben.miaosha.domain.Stock;
 import com.zben.miaosha.domain.StockOrder;
 import com.zben.miaosha.domain.User;
+import com.zben.miaosha.inventory.InventoryEngine;
 import com.zben.miaosha.mapper.StockOrderMapper;
+import com.zben.miaosha.service.IdBloomFilterService;
 import com.zben.miaosha.service.OrderService;
+import com.zben.miaosha.service.StockSegmentService;
 import com.zben.miaosha.service.StockService;
 import com.zben.miaosha.service.utils.CacheKey;
+import com.zben.miaosha.service.utils.OptimisticRetryPolicy;
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.service.utils.VerifyProperties;
+import com.zben.miaosha.service.utils.VerifyTokenSigner;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * @DESC:订单服务
+ * 扣减库存的下单事务使用READ COMMITTED：分段库存从不同分段开始查找，条件不满足的update在该级别下不保留行锁，避免死锁
  * @author: zhouben
  * @date: 2020/9/22 0022 9:27
  */
@@ -28,9 +53,47 @@ public class OrderServiceImpl implements OrderService {
     @Autowired
     StockOrderMapper stockOrderMapper;
 
+    @Autowired
+    IdBloomFilterService idBloomFilterService;
+
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    VerifyProperties verifyProperties;
+
+    @Autowired
+    VerifyTokenSigner verifyTokenSigner;
+
+    @Autowired
+    OptimisticRetryPolicy optimisticRetryPolicy;
+
+    @Autowired
+    StockSegmentService stockSegmentService;
+
+    @Autowired
+    InventoryEngine inventoryEngine;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    /**
+     * 扣库存方式：conditional 单条语句按条件扣减；optimistic 先读取再按版本号更新
+     */
+    @Value("${miaosha.stock.deduct-mode:conditional}")
+    private String deductMode;
+
+    /**
+     * mq下单扣减数据库时的事务，与@Transactional(rollbackFor = Exception.class, isolation = Isolation.READ_COMMITTED)相同
+     */
+    private TransactionTemplate mqTransaction;
+
+    @PostConstruct
+    public void init() {
+        mqTransaction = new TransactionTemplate(transactionManager);
+        mqTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+    }
+
     @Override
     public int createWrongOrder(int sid) {
         //校验库存
@@ -49,7 +112,11 @@ public class OrderServiceImpl implements OrderService {
      * @return
      */
     @Override
+    @Transactional(rollbackFor = Exception.class, isolation = Isolation.READ_COMMITTED)
     public int createOptimisticOrder(int sid) {
+        if (isConditionalDeduct()) {
+            return createConditionalOrder(sid);
+        }
         //校验库存
         Stock stock = checkStock(sid);
         //乐观锁更新库存
@@ -68,19 +135,29 @@ public class OrderServiceImpl implements OrderService {
      * @return
      */
     @Override
+    @Transactional(rollbackFor = Exception.class, isolation = Isolation.READ_COMMITTED)
     public int createVerifiedOrder(Integer sid, Integer userId, String verifyHash) throws Exception {
         //验证是否在抢购时间内
         log.info("请自行验证是否在抢购时间内，假设此处验证成功");
 
         //验证hash值的合法性
-        String hashKey = CacheKey.HASH_KEY.getKey() + "_" + sid + "_" + userId;
-        String verifyHashInRedis = stringRedisTemplate.opsForValue().get(hashKey);
-        if (!verifyHash.equals(verifyHashInRedis)) {
-            throw new Exception("hash与redis中不符合");
+        if (verifyProperties.isHmac()) {
+            if (!verifyTokenSigner.verify(sid, userId, verifyHash)) {
+                throw new Exception("hash校验失败或已过期");
+            }
+        } else {
+            String hashKey = CacheKey.HASH_KEY.getKey() + "_" + sid + "_" + userId;
+            String verifyHashInRedis = stringRedisTemplate.opsForValue().get(hashKey);
+            if (!verifyHash.equals(verifyHashInRedis)) {
+                throw new Exception("hash与redis中不符合");
+            }
         }
         log.info("验证hash值合法性成功");
 
         // 检查商品合法性
+        if (!idBloomFilterService.mightContainStock(sid)) {
+            throw new Exception("商品不存在");
+        }
         Stock stock = stockService.getStockById(sid);
         if (stock == null) {
             throw new Exception("商品不存在");
@@ -106,7 +183,11 @@ public class OrderServiceImpl implements OrderService {
      * @return
      */
     @Override
+    @Transactional(rollbackFor = Exception.class, isolation = Isolation.READ_COMMITTED)
     public int createPessimisticOrder(int sid) {
+        if (isConditionalDeduct()) {
+            return createConditionalOrder(sid);
+        }
         //校验库存
         Stock stock = checkStock(sid);
         //乐观锁更新库存
@@ -132,38 +213,327 @@ public class OrderServiceImpl implements OrderService {
 
     /**
      * mq异步下单
+     * 内存库存引擎扣减不开启事务，不占用数据库连接等待日志刷盘；扣减数据库时在READ COMMITTED事务中执行
      *
      * @param sid
      * @param userId
      */
     @Override
-    @Transactional(rollbackFor = Exception.class)
-    public void createOrderByMq(Integer sid, Integer userId) {
+    public OrderStatus createOrderByMq(Integer sid, Integer userId) {
+        if (inventoryEngine.isEnabled()) {
+            return createOrderByEngine(sid, userId);
+        }
+        return mqTransaction.execute(status -> isConditionalDeduct()
+                ? createConditionalOrderByMq(sid, userId, status)
+                : createOptimisticOrderByMq(sid, userId));
+    }
+
+    /**
+     * mq异步下单：乐观锁扣减库存
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    private OrderStatus createOptimisticOrderByMq(Integer sid, Integer userId) {
         Stock stock;
         //校验库存（不要学我在trycatch中做逻辑处理，这样是不优雅的。这里这样处理是为了兼容之前的秒杀系统文章）
         try {
             stock = checkStock(sid);
         } catch (Exception e) {
             log.info("库存不足！");
-            return;
+            return stockService.isSoldOut(sid) ? soldOutUnlessOrdered(sid, userId) : OrderStatus.FAILED;
+        }
+        //先写订单，唯一索引(sid, user_id)挡住重复投递的消息，扣减库存失败时随事务回滚
+        log.info("写入订单至数据库");
+        if (createOrderWithUserInfoIgnore(stock, userId) == 0) {
+            log.info("用户Id：[{}] 已有商品Id：[{}] 的订单，忽略重复消息", userId, sid);
+            createOrderWithUserInfoInCache(stock, userId);
+            return OrderStatus.SUCCESS;
         }
         //乐观锁更新库存
         boolean updateStock = saleStockOptimistic(stock);
         if (!updateStock) {
             log.warn("扣减库存失败，库存已经为0");
-            return;
+            throw new RuntimeException("扣减库存失败");
         }
 
         log.info("扣减库存成功，剩余库存：[{}]", stock.getCount() - stock.getSale());
         stockService.delStockCountCache(sid);
         log.info("删除库存缓存");
 
-        //创建订单
-        log.info("写入订单至数据库");
-        createOrderWithUserInfo(stock, userId);
         log.info("写入订单至缓存供查询");
         createOrderWithUserInfoInCache(stock, userId);
         log.info("下单完成");
+        return OrderStatus.SUCCESS;
+    }
+
+    /**
+     * mq异步下单：按条件扣减库存
+     *
+     * @param sid
+     * @param userId
+     * @param status 当前事务
+     * @return
+     */
+    private OrderStatus createConditionalOrderByMq(Integer sid, Integer userId, TransactionStatus status) {
+        if (stockService.isSoldOut(sid)) {
+            return soldOutUnlessOrdered(sid, userId);
+        }
+        Stock stock = stockService.getStockInfo(sid);
+        if (stock == null) {
+            log.info("商品id：[{}] 不存在", sid);
+            return OrderStatus.FAILED;
+        }
+        //先写订单，唯一索引(sid, user_id)挡住重复投递的消息
+        if (createOrderWithUserInfoIgnore(stock, userId) == 0) {
+            log.info("用户Id：[{}] 已有商品Id：[{}] 的订单，忽略重复消息", userId, sid);
+            createOrderWithUserInfoInCache(stock, userId);
+            return OrderStatus.SUCCESS;
+        }
+        int remaining = stockService.deductStock(sid, 1);
+        if (remaining < 0) {
+            // 库存不足，回滚刚写入的订单
+            status.setRollbackOnly();
+            stockService.markSoldOut(sid);
+            log.info("商品id：[{}] 库存不足！", sid);
+            return OrderStatus.SOLD_OUT;
+        }
+        if (remaining == 0) {
+            stockService.markSoldOut(sid);
+        }
+        log.info("扣减库存成功，剩余库存：[{}]", remaining);
+        stockService.delStockCountCache(sid);
+        createOrderWithUserInfoInCache(stock, userId);
+        return OrderStatus.SUCCESS;
+    }
+
+    /**
+     * 商品已售罄时区分重复投递的消息：订单已提交但ack之前消费者崩溃，重新投递时仍要返回成功，
+     * 否则接口层会回补预扣、从已抢购set中移除用户并用售罄覆盖成功结果，用户可以再次抢购
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    private OrderStatus soldOutUnlessOrdered(Integer sid, Integer userId) {
+        if (stockOrderMapper.selectOrderedUserIds(sid, Collections.singletonList(userId)).isEmpty()) {
+            return OrderStatus.SOLD_OUT;
+        }
+        log.info("用户Id：[{}] 已有商品Id：[{}] 的订单，忽略重复消息", userId, sid);
+        addUserHasOrderAfterCommit(sid, Collections.singletonList(userId));
+        return OrderStatus.SUCCESS;
+    }
+
+    /**
+     * mq异步下单：内存库存引擎扣减，订单由引擎异步写入数据库
+     * 不检查售罄标记，引擎先按已下单用户判断重复消息（订单可能还没写入数据库），再判断库存
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    private OrderStatus createOrderByEngine(Integer sid, Integer userId) {
+        checkOwnedByEngine(sid);
+        Stock stock = stockService.getStockInfo(sid);
+        if (stock == null) {
+            log.info("商品id：[{}] 不存在", sid);
+            return OrderStatus.FAILED;
+        }
+        boolean success = inventoryEngine.deduct(sid, userId);
+        afterEngineDeduct(sid);
+        if (!success) {
+            log.info("商品id：[{}] 库存不足！", sid);
+            return OrderStatus.SOLD_OUT;
+        }
+        createOrderWithUserInfoInCache(stock, userId);
+        return OrderStatus.SUCCESS;
+    }
+
+    /**
+     * 引擎扣减后同步缓存中的剩余库存和售罄标记
+     *
+     * @param sid
+     */
+    private void afterEngineDeduct(Integer sid) {
+        Integer remaining = inventoryEngine.getRemaining(sid);
+        if (remaining == null) {
+            return;
+        }
+        // 数据库中的已售是异步写入的，缓存以内存库存为准
+        stockService.setStockCountToCache(sid, remaining);
+        if (remaining == 0) {
+            stockService.markSoldOut(sid);
+        }
+    }
+
+    /**
+     * 开启内存库存引擎后只有负责该商品的节点可以扣减
+     *
+     * @param sid
+     */
+    private void checkOwnedByEngine(int sid) {
+        if (inventoryEngine.isEnabled() && !inventoryEngine.owns(sid)) {
+            throw new RuntimeException("商品库存由其他节点的内存库存引擎负责");
+        }
+    }
+
+    /**
+     * 开启内存库存引擎后库存以内存为准，不能直接扣减数据库
+     *
+     * @param sid
+     */
+    private void checkDatabaseDeduct(int sid) {
+        if (inventoryEngine.isEnabled()) {
+            throw new RuntimeException("已开启内存库存引擎，商品id：" + sid + " 只能通过mq下单");
+        }
+    }
+
+    /**
+     * mq批量下单
+     * 每个商品只执行一次按数量扣减库存，所有订单一次批量写入；内存库存引擎扣减同样不开启事务
+     *
+     * @param userIdsBySid
+     */
+    @Override
+    public Map<Integer, List<Integer>> createOrderByMqBatch(Map<Integer, List<Integer>> userIdsBySid) {
+        if (inventoryEngine.isEnabled()) {
+            return createOrderByEngineBatch(userIdsBySid);
+        }
+        return mqTransaction.execute(status -> createOrderByDatabaseBatch(userIdsBySid));
+    }
+
+    /**
+     * mq批量下单：扣减数据库库存，在事务中执行
+     *
+     * @param userIdsBySid
+     * @return 库存不足的用户
+     */
+    private Map<Integer, List<Integer>> createOrderByDatabaseBatch(Map<Integer, List<Integer>> userIdsBySid) {
+        List<StockOrder> orders = new ArrayList<>();
+        Map<Integer, List<Integer>> soldOutUserIds = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<Integer>> entry : userIdsBySid.entrySet()) {
+            Integer sid = entry.getKey();
+            List<Integer> userIds = filterOrderedUsers(sid, entry.getValue());
+            if (userIds.isEmpty()) {
+                continue;
+            }
+            Stock stock;
+            int sold;
+            if (stockSegmentService.isSegmented(sid)) {
+                // 分段后stock表没有剩余，直接从各分段扣减
+                stock = stockService.getStockInfo(sid);
+                sold = stock == null ? 0 : stockSegmentService.deductUpTo(sid, userIds.size());
+            } else {
+                try {
+                    stock = checkStock(sid);
+                } catch (Exception e) {
+                    log.info("商品id：[{}] 库存不足，丢弃 [{}] 个下单请求", sid, userIds.size());
+                    soldOutUserIds.put(sid, userIds);
+                    continue;
+                }
+                // checkStock发现其他节点刚拆分了库存
+                sold = stockSegmentService.isSegmented(sid)
+                        ? stockSegmentService.deductUpTo(sid, userIds.size())
+                        : saleStockByDelta(stock, userIds.size());
+            }
+            if (sold < userIds.size()) {
+                stockService.markSoldOut(sid);
+                log.info("商品id：[{}] 库存不足，[{}] 个下单请求未成功", sid, userIds.size() - sold);
+                soldOutUserIds.put(sid, userIds.subList(sold, userIds.size()));
+            }
+            if (sold == 0) {
+                continue;
+            }
+            log.info("商品id：[{}] 批量扣减库存：[{}]", sid, sold);
+            stockService.delStockCountCache(sid);
+
+            List<Integer> successUserIds = userIds.subList(0, sold);
+            for (Integer userId : successUserIds) {
+                StockOrder order = new StockOrder();
+                order.setSid(sid);
+                order.setName(stock.getName());
+                order.setUserId(userId);
+                orders.add(order);
+            }
+            addUserHasOrderAfterCommit(sid, successUserIds);
+        }
+        if (!orders.isEmpty()) {
+            stockOrderMapper.insertBatch(orders);
+            log.info("批量写入订单：[{}] 条", orders.size());
+        }
+        return soldOutUserIds;
+    }
+
+    /**
+     * mq批量下单：内存库存引擎扣减，每个商品的日志记录一起刷盘
+     *
+     * @param userIdsBySid
+     * @return 库存不足的用户
+     */
+    private Map<Integer, List<Integer>> createOrderByEngineBatch(Map<Integer, List<Integer>> userIdsBySid) {
+        Map<Integer, List<Integer>> soldOutUserIds = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<Integer>> entry : userIdsBySid.entrySet()) {
+            Integer sid = entry.getKey();
+            checkOwnedByEngine(sid);
+            List<Integer> userIds = new ArrayList<>(new LinkedHashSet<>(entry.getValue()));
+            // 不检查售罄标记，重复消息由引擎按已下单用户判断
+            if (stockService.getStockInfo(sid) == null) {
+                soldOutUserIds.put(sid, userIds);
+                continue;
+            }
+            List<Integer> soldOut = inventoryEngine.deduct(sid, userIds);
+            afterEngineDeduct(sid);
+            if (!soldOut.isEmpty()) {
+                log.info("商品id：[{}] 库存不足，[{}] 个下单请求未成功", sid, soldOut.size());
+                soldOutUserIds.put(sid, soldOut);
+                userIds.removeAll(soldOut);
+            }
+            if (!userIds.isEmpty()) {
+                addUserHasOrderAfterCommit(sid, userIds);
+            }
+        }
+        return soldOutUserIds;
+    }
+
+    /**
+     * 去掉批次内重复的用户以及已经下过单的用户（重复投递的消息）
+     *
+     * @param sid
+     * @param userIds
+     * @return
+     */
+    private List<Integer> filterOrderedUsers(Integer sid, List<Integer> userIds) {
+        Set<Integer> distinct = new LinkedHashSet<>(userIds);
+        List<Integer> ordered = stockOrderMapper.selectOrderedUserIds(sid, new ArrayList<>(distinct));
+        if (!ordered.isEmpty()) {
+            log.info("商品id：[{}] 忽略已下单用户的重复消息：[{}] 个", sid, ordered.size());
+            distinct.removeAll(ordered);
+        }
+        return new ArrayList<>(distinct);
+    }
+
+    /**
+     * 按数量扣减库存，其他节点并发扣减导致条件不满足时重新读取剩余库存再试
+     *
+     * @param stock
+     * @param want  期望扣减数量
+     * @return 实际扣减数量
+     */
+    private int saleStockByDelta(Stock stock, int want) {
+        checkDatabaseDeduct(stock.getId());
+        for (int i = 0; i < 3; i++) {
+            int delta = Math.min(want, stock.getCount() - stock.getSale());
+            if (delta <= 0) {
+                return 0;
+            }
+            if (stockService.updateStockSaleByDelta(stock.getId(), delta) > 0) {
+                return delta;
+            }
+            stock = stockService.getStockById(stock.getId());
+        }
+        // 整批回滚，消息重新投递
+        throw new RuntimeException("并发更新库存失败，批量扣减重试次数耗尽");
     }
 
     /**
@@ -172,24 +542,174 @@ public class OrderServiceImpl implements OrderService {
      * @param stock
      * @param userId
      */
-    public Long createOrderWithUserInfoInCache(Stock stock, Integer userId) {
-        String key = CacheKey.USER_HAS_ORDER.getKey() + "_" + stock.getId().toString();
-        log.info("写入用户订单数据Set：[{}] [{}]", key, userId.toString());
-        return stringRedisTemplate.opsForSet().add(key, userId.toString());
+    public void createOrderWithUserInfoInCache(Stock stock, Integer userId) {
+        log.info("写入用户订单数据Set：商品id：[{}] 用户id：[{}]", stock.getId(), userId);
+        addUserHasOrderAfterCommit(stock.getId(), Collections.singletonList(userId));
+    }
+
+    /**
+     * 用户写入已抢购set：在事务中时等事务提交后再写，
+     * 批量写入订单失败、事务回滚时不会在set中留下没有订单的用户
+     *
+     * @param sid
+     * @param userIds
+     */
+    private void addUserHasOrderAfterCommit(Integer sid, List<Integer> userIds) {
+        String key = CacheKey.USER_HAS_ORDER.getKey() + "_" + sid;
+        String[] members = userIds.stream().map(String::valueOf).toArray(String[]::new);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            stringRedisTemplate.opsForSet().add(key, members);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    stringRedisTemplate.opsForSet().add(key, members);
+                } catch (Exception e) {
+                    // 订单已提交，set只用于接口层拦截重复抢购，重复下单由唯一索引兜底
+                    log.error("商品id：[{}] 写入已抢购set失败，用户数：[{}]", sid, members.length, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 按条件扣减库存下单：不读取库存、不比较版本号，商品信息来自缓存
+     *
+     * @param sid
+     * @return 剩余库存
+     */
+    private int createConditionalOrder(int sid) {
+        if (stockService.isSoldOut(sid)) {
+            throw new RuntimeException("库存不足");
+        }
+        Stock stock = stockService.getStockInfo(sid);
+        if (stock == null) {
+            throw new RuntimeException("物品不存在");
+        }
+        int remaining = saleStockConditional(sid);
+        createOrder(stock);
+        return remaining;
+    }
+
+    /**
+     * 按条件扣减一件库存
+     *
+     * @param sid
+     * @return 剩余库存
+     */
+    public int saleStockConditional(int sid) {
+        checkDatabaseDeduct(sid);
+        int remaining = stockService.deductStock(sid, 1);
+        if (remaining < 0) {
+            stockService.markSoldOut(sid);
+            throw new RuntimeException("库存不足");
+        }
+        if (remaining == 0) {
+            stockService.markSoldOut(sid);
+        }
+        return remaining;
+    }
+
+    private boolean isConditionalDeduct() {
+        return "conditional".equals(deductMode);
     }
 
     /**
      * 乐观锁更新库存
+     * 版本号冲突时重新读取库存，退避后重试，库存已售完或重试次数耗尽才失败
      *
-     * @param stock
+     * @param stock 更新成功后为本次扣减后的库存
      */
     public boolean saleStockOptimistic(Stock stock) {
-        log.info("查询数据库，尝试更新库存");
-        int count = stockService.updateStockByOptimistic(stock);
-        if (count == 0) {
-            throw new RuntimeException("并发更新库存失败，version不匹配");
+        int sid = stock.getId();
+        checkDatabaseDeduct(sid);
+        if (stockSegmentService.isSegmented(sid)) {
+            return saleStockSegmented(stock);
+        }
+        for (int attempt = 1; ; attempt++) {
+            log.info("查询数据库，尝试更新库存");
+            optimisticRetryPolicy.recordAttempt(sid);
+            Integer sale = stock.getSale();
+            Integer version = stock.getVersion();
+            if (stockService.updateStockByOptimistic(stock) > 0) {
+                optimisticRetryPolicy.recordSuccess(sid, attempt);
+                return true;
+            }
+            optimisticRetryPolicy.recordConflict(sid);
+            Stock latest = stockService.getStockById(sid);
+            if (latest != null && latest.getSale() >= latest.getCount() && isSegmentedNow(sid)) {
+                // 其他节点拆分了库存，stock表的剩余已转入分段
+                stock.setCount(latest.getCount());
+                stock.setSale(latest.getSale());
+                stock.setVersion(latest.getVersion());
+                return saleStockSegmented(stock);
+            }
+            if (latest == null || latest.getSale() >= latest.getCount()) {
+                // 最后一件已被其他请求抢走
+                stockService.markSoldOut(sid);
+                stock.setSale(sale);
+                stock.setVersion(version);
+                throw new RuntimeException("库存不足");
+            }
+            if (attempt >= optimisticRetryPolicy.getMaxAttempts()) {
+                optimisticRetryPolicy.recordGiveUp(sid);
+                stock.setSale(sale);
+                stock.setVersion(version);
+                throw new RuntimeException("并发更新库存失败，version不匹配");
+            }
+            optimisticRetryPolicy.backoff(attempt);
+            stock.setCount(latest.getCount());
+            stock.setSale(latest.getSale());
+            stock.setVersion(latest.getVersion());
+        }
+    }
+
+    /**
+     * 已分段的商品：stock表的剩余已转入各分段，按条件从分段扣减一件
+     *
+     * @param stock 扣减成功后已售按扣减后的剩余库存设置
+     */
+    private boolean saleStockSegmented(Stock stock) {
+        int sid = stock.getId();
+        int remaining = stockService.deductStock(sid, 1);
+        if (remaining < 0) {
+            stockService.markSoldOut(sid);
+            throw new RuntimeException("库存不足");
+        }
+        if (remaining == 0) {
+            stockService.markSoldOut(sid);
+        }
+        stock.setSale(stock.getCount() - remaining);
+        return true;
+    }
+
+    /**
+     * 商品是否已分段，本节点缓存的分段状态可能落后于其他节点的拆分，未分段时重新读取一次
+     *
+     * @param sid
+     * @return
+     */
+    private boolean isSegmentedNow(int sid) {
+        if (!stockSegmentService.isEnabled()) {
+            return false;
         }
-        return count > 0;
+        if (stockSegmentService.isSegmented(sid)) {
+            return true;
+        }
+        stockSegmentService.refresh(sid);
+        return stockSegmentService.isSegmented(sid);
+    }
+
+    /**
+     * 各商品的乐观锁冲突统计
+     *
+     * @return
+     */
+    @Override
+    public Map<Integer, Map<String, Object>> getStockConflictMetrics() {
+        return optimisticRetryPolicy.getMetrics();
     }
 
     /**
@@ -199,11 +719,19 @@ public class OrderServiceImpl implements OrderService {
      * @return
      */
     public Stock checkStock(int sid) {
+        if (stockService.isSoldOut(sid)) {
+            throw new RuntimeException("库存不足");
+        }
         Stock stock = stockService.getStockById(sid);
         if (stock == null) {
             throw new RuntimeException("物品不存在");
         }
-        if (stock.getSale().equals(stock.getCount())) {
+        if (stock.getSale() >= stock.getCount()) {
+            if (isSegmentedNow(sid)) {
+                // stock表已售等于总数是因为剩余转入了分段，由分段扣减判断是否售罄
+                return stock;
+            }
+            stockService.markSoldOut(sid);
             throw new RuntimeException("库存不足");
         }
         return stock;
@@ -215,6 +743,10 @@ public class OrderServiceImpl implements OrderService {
      * @param stock
      */
     public int saleStock(Stock stock) {
+        checkDatabaseDeduct(stock.getId());
+        if (stockSegmentService.isSegmented(stock.getId())) {
+            return saleStockSegmented(stock) ? 1 : 0;
+        }
         stock.setSale(stock.getSale() + 1);
         return stockService.updateStockById(stock);
     }
@@ -246,4 +778,19 @@ public class OrderServiceImpl implements OrderService {
         order.setUserId(userId);
         return stockOrderMapper.insertSelective(order);
     }
+
+    /**
+     * 创建订单，同一用户同一商品已有订单时忽略
+     *
+     * @param stock
+     * @param userId
+     * @return 写入行数，重复订单为0
+     */
+    public int createOrderWithUserInfoIgnore(Stock stock, Integer userId) {
+        StockOrder order = new StockOrder();
+        order.setSid(stock.getId());
+        order.setName(stock.getName());
+        order.setUserId(userId);
+        return stockOrderMapper.insertIgnore(order);
+    }
 }
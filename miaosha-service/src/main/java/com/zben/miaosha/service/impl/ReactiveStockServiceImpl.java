@@ -0,0 +1,66 @@
+package com.zben.miaosha.service.impl;
+
+import com.zben.miaosha.service.ReactiveStockService;
+import com.zben.miaosha.service.StockService;
+import com.zben.miaosha.service.utils.CacheKey;
+import com.zben.miaosha.service.utils.PreDeductStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @DESC:非阻塞库存服务，基于lettuce reactive执行与StockServiceImpl相同的lua脚本
+ * @author: zhouben
+ * @date: 2020/10/20 0020 9:35
+ */
+@Service
+@Slf4j
+public class ReactiveStockServiceImpl implements ReactiveStockService {
+
+    @Autowired
+    ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    @Autowired
+    StockService stockService;
+
+    @Autowired
+    RedisScript<Long> stockPreDeductScript;
+
+    @Autowired
+    RedisScript<Long> stockPreDeductRollbackScript;
+
+    @Override
+    public Mono<PreDeductStatus> preDeductStock(Integer sid, Integer userId) {
+        return reactiveStringRedisTemplate
+                .execute(stockPreDeductScript, preDeductKeys(sid), Collections.singletonList(userId.toString()))
+                .next()
+                .map(PreDeductStatus::of)
+                .defaultIfEmpty(PreDeductStatus.NOT_READY)
+                .doOnNext(status -> {
+                    if (status == PreDeductStatus.SOLD_OUT) {
+                        stockService.markPreDeductSoldOut(sid);
+                    }
+                });
+    }
+
+    @Override
+    public Mono<Void> rollbackPreDeductStock(Integer sid, Integer userId) {
+        return reactiveStringRedisTemplate
+                .execute(stockPreDeductRollbackScript, preDeductKeys(sid), Collections.singletonList(userId.toString()))
+                .next()
+                .doOnNext(result -> log.info("商品id：[{}] 用户id：[{}] 回滚预扣库存，剩余：[{}]", sid, userId, result))
+                .then();
+    }
+
+    private List<String> preDeductKeys(Integer sid) {
+        return Arrays.asList(CacheKey.SECKILL_STOCK.getKey() + "_" + sid,
+                CacheKey.USER_HAS_ORDER.getKey() + "_" + sid);
+    }
+}
@@ -0,0 +1,49 @@
+package com.zben.miaosha.service.impl;
+
+import com.zben.miaosha.domain.StockSegment;
+import com.zben.miaosha.mapper.StockSegmentMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/**
+ * @DESC:库存分段重新分配
+ * 单独的bean，扣减时从StockSegmentServiceImpl内部调用也经过事务代理：
+ * 在下单事务内调用时加入该事务，没有事务时开启新事务，锁定的分段直到提交才释放
+ * @author: zhouben
+ * @date: 2020/11/5 0005 15:00
+ */
+@Component
+@Slf4j
+public class StockSegmentRebalancer {
+
+    @Autowired
+    StockSegmentMapper stockSegmentMapper;
+
+    /**
+     * 按段号顺序锁定所有分段后按剩余平均分配，已售数量不变
+     *
+     * @param sid
+     * @return 重新分配的库存数量
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public int rebalance(int sid) {
+        List<StockSegment> rows = stockSegmentMapper.selectBySidForUpdate(sid);
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        int remaining = rows.stream().mapToInt(row -> row.getCount() - row.getSale()).sum();
+        for (int i = 0; i < rows.size(); i++) {
+            StockSegment row = rows.get(i);
+            int count = row.getSale() + StockSegmentServiceImpl.share(remaining, rows.size(), i);
+            if (count != row.getCount()) {
+                stockSegmentMapper.updateCount(row.getId(), count);
+            }
+        }
+        log.info("商品id：[{}] 重新分配 [{}] 段，剩余库存：[{}]", sid, rows.size(), remaining);
+        return remaining;
+    }
+}
@@ -0,0 +1,327 @@
+package com.zben.miaosha.service.impl;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.domain.StockDeduction;
+import com.zben.miaosha.domain.StockSegment;
+import com.zben.miaosha.domain.StockSegmentDeduction;
+import com.zben.miaosha.mapper.StockMapper;
+import com.zben.miaosha.mapper.StockSegmentMapper;
+import com.zben.miaosha.service.StockSegmentService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @DESC:库存分段服务
+ * 请求随机或轮询选择起始分段，扣减失败的分段在本节点标记为已空，之后跳过；
+ * 所有分段都标记为空时汇总一次数据库剩余：没有剩余即售罄，还有剩余则按剩余重新平均分配各段后再试。
+ * 下单事务使用READ COMMITTED：条件不满足的update不保留行锁，单件扣减最多持有一个分段的锁，
+ * 从不同起始分段轮换查找不会互相等待；可能持有多个分段锁的批量扣减和重新分配按段号升序加锁
+ * @author: zhouben
+ * @date: 2020/10/28 0028 10:50
+ */
+@Service
+@Slf4j
+public class StockSegmentServiceImpl implements StockSegmentService {
+
+    private static final String ROUTE_ROUND_ROBIN = "round-robin";
+
+    @Autowired
+    StockMapper stockMapper;
+
+    @Autowired
+    StockSegmentMapper stockSegmentMapper;
+
+    @Autowired
+    StockSegmentRebalancer stockSegmentRebalancer;
+
+    @Value("${miaosha.stock.segment.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * random：随机选择起始分段；round-robin：本节点内轮询
+     */
+    @Value("${miaosha.stock.segment.route:random}")
+    private String route;
+
+    /**
+     * 本节点缓存分段数的时间，其他节点拆分或合并后最多这么久生效（扣减失败时会立即重新读取）
+     */
+    @Value("${miaosha.stock.segment.state-expire-seconds:10}")
+    private long stateExpireSeconds;
+
+    /**
+     * 商品id -> 分段状态，分段数为0表示未分段
+     */
+    private LoadingCache<Integer, SegmentState> states;
+
+    @PostConstruct
+    public void init() {
+        states = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(stateExpireSeconds, TimeUnit.SECONDS)
+                .build(sid -> new SegmentState(stockSegmentMapper.countBySid(sid)));
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public boolean isSegmented(int sid) {
+        return enabled && states.get(sid).segments > 0;
+    }
+
+    /**
+     * 拆分库存：先把stock表的剩余一次扣完，再写入各分段，之后stock表上的扣减都会因为库存不足而失败
+     *
+     * @param sid
+     * @param segments 分段数
+     * @return
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public int split(int sid, int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("分段数必须大于0");
+        }
+        if (stockSegmentMapper.countBySid(sid) > 0) {
+            throw new IllegalStateException("商品已分段");
+        }
+        Stock stock = stockMapper.selectByPrimaryKey(sid);
+        if (stock == null) {
+            throw new RuntimeException("物品不存在");
+        }
+        int remaining = Math.max(stock.getCount() - stock.getSale(), 0);
+        if (remaining > 0 && stockMapper.updateSaleByDelta(sid, remaining) == 0) {
+            throw new RuntimeException("拆分库存时库存已变化，请重试");
+        }
+        List<StockSegment> rows = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            StockSegment segment = new StockSegment();
+            segment.setSid(sid);
+            segment.setSegmentNo(i);
+            segment.setCount(share(remaining, segments, i));
+            segment.setSale(0);
+            rows.add(segment);
+        }
+        stockSegmentMapper.insertBatch(rows);
+        states.put(sid, new SegmentState(segments));
+        log.info("商品id：[{}] 剩余库存：[{}] 拆分为 [{}] 段", sid, remaining, segments);
+        return remaining;
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public int merge(int sid) {
+        List<StockSegment> rows = stockSegmentMapper.selectBySidForUpdate(sid);
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        int remaining = rows.stream().mapToInt(row -> row.getCount() - row.getSale()).sum();
+        stockSegmentMapper.deleteBySid(sid);
+        if (remaining > 0) {
+            stockMapper.updateSaleByDelta(sid, -remaining);
+        }
+        states.put(sid, new SegmentState(0));
+        log.info("商品id：[{}] 合并 [{}] 段，剩余库存：[{}]", sid, rows.size(), remaining);
+        return remaining;
+    }
+
+    /**
+     * 重新分配：锁定所有分段后按剩余平均分配，已售数量不变
+     * 在下单事务内调用时加入该事务
+     *
+     * @param sid
+     * @return
+     */
+    @Override
+    public int rebalance(int sid) {
+        int remaining = stockSegmentRebalancer.rebalance(sid);
+        // 各段重新分配后本节点的已空标记失效
+        states.invalidate(sid);
+        return remaining;
+    }
+
+    @Override
+    public int deduct(int sid, int delta) {
+        SegmentState state = states.get(sid);
+        for (int round = 0; round < 2 && state.segments > 0; round++) {
+            int start = state.next();
+            for (int i = 0; i < state.segments; i++) {
+                int segmentNo = (start + i) % state.segments;
+                if (state.isEmpty(segmentNo)) {
+                    continue;
+                }
+                StockSegmentDeduction deduction = deduction(sid, segmentNo, delta);
+                if (stockSegmentMapper.deductSegment(deduction) == 0) {
+                    state.markEmpty(segmentNo);
+                    continue;
+                }
+                // LAST_INSERT_ID为0时驱动不返回生成键，即该段已扣完
+                if (deduction.getResult() != null) {
+                    return deduction.getResult().intValue();
+                }
+                state.markEmpty(segmentNo);
+                return stockSegmentMapper.selectRemainingBySid(sid);
+            }
+            // 本节点看到的分段都已空，以数据库汇总为准
+            int remaining = stockSegmentMapper.selectRemainingBySid(sid);
+            if (remaining < delta) {
+                if (remaining == 0 && stockSegmentMapper.countBySid(sid) == 0) {
+                    // 其他节点已合并回stock表，剩余库存在stock表上，不能判定售罄
+                    states.invalidate(sid);
+                    return deductFromStock(sid, delta);
+                }
+                return -1;
+            }
+            rebalance(sid);
+            state = states.get(sid);
+        }
+        return -1;
+    }
+
+    /**
+     * 批量扣减会在多个分段上扣减成功并持有锁直到提交，按段号升序扣减，避免与其他批次交叉等待
+     */
+    @Override
+    public int deductUpTo(int sid, int want) {
+        SegmentState state = states.get(sid);
+        int taken = 0;
+        for (int round = 0; round < 2 && taken < want && state.segments > 0; round++) {
+            for (int segmentNo = 0; segmentNo < state.segments && taken < want; segmentNo++) {
+                if (state.isEmpty(segmentNo)) {
+                    continue;
+                }
+                StockSegmentDeduction deduction = deduction(sid, segmentNo, want - taken);
+                if (stockSegmentMapper.takeFromSegment(deduction) == 0 || deduction.getResult() == null) {
+                    state.markEmpty(segmentNo);
+                    continue;
+                }
+                taken += deduction.getResult().intValue();
+            }
+            if (taken < want && stockSegmentMapper.selectRemainingBySid(sid) > 0) {
+                // 其他节点重新分配过，本节点的已空标记失效
+                state = new SegmentState(state.segments);
+                states.put(sid, state);
+            }
+        }
+        if (taken < want && stockSegmentMapper.countBySid(sid) == 0) {
+            // 其他节点已合并回stock表
+            states.invalidate(sid);
+            taken += takeFromStock(sid, want - taken);
+        }
+        return taken;
+    }
+
+    /**
+     * 分段已被合并：按条件从stock表扣减，与StockServiceImpl.deductStock相同
+     *
+     * @param sid
+     * @param delta
+     * @return 剩余库存，-1表示库存不足
+     */
+    private int deductFromStock(int sid, int delta) {
+        StockDeduction deduction = new StockDeduction();
+        deduction.setId(sid);
+        deduction.setDelta(delta);
+        if (stockMapper.deductStock(deduction) == 0) {
+            return -1;
+        }
+        // LAST_INSERT_ID为0时驱动不返回生成键，即扣减后没有剩余
+        return deduction.getRemaining() == null ? 0 : deduction.getRemaining().intValue();
+    }
+
+    /**
+     * 分段已被合并：从stock表扣减min(want, 剩余)，其他节点并发扣减导致条件不满足时重新读取再试
+     *
+     * @param sid
+     * @param want
+     * @return 实际扣减数量
+     */
+    private int takeFromStock(int sid, int want) {
+        for (int i = 0; i < 3; i++) {
+            Stock stock = stockMapper.selectByPrimaryKey(sid);
+            int delta = stock == null ? 0 : Math.min(want, stock.getCount() - stock.getSale());
+            if (delta <= 0) {
+                return 0;
+            }
+            if (stockMapper.updateSaleByDelta(sid, delta) > 0) {
+                return delta;
+            }
+        }
+        // 整批回滚，消息重新投递
+        throw new RuntimeException("并发更新库存失败，批量扣减重试次数耗尽");
+    }
+
+    @Override
+    public int getRemaining(int sid) {
+        return stockSegmentMapper.selectRemainingBySid(sid);
+    }
+
+    @Override
+    public List<StockSegment> getSegments(int sid) {
+        StockSegment query = new StockSegment();
+        query.setSid(sid);
+        return stockSegmentMapper.select(query);
+    }
+
+    @Override
+    public void refresh(int sid) {
+        states.invalidate(sid);
+    }
+
+    private static StockSegmentDeduction deduction(int sid, int segmentNo, int delta) {
+        StockSegmentDeduction deduction = new StockSegmentDeduction();
+        deduction.setSid(sid);
+        deduction.setSegmentNo(segmentNo);
+        deduction.setDelta(delta);
+        return deduction;
+    }
+
+    /**
+     * 第index段分到的库存，余数分给前面的段
+     */
+    static int share(int total, int segments, int index) {
+        return total / segments + (index < total % segments ? 1 : 0);
+    }
+
+    private class SegmentState {
+        private final int segments;
+        private final AtomicIntegerArray empty;
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        private SegmentState(int segments) {
+            this.segments = segments;
+            this.empty = new AtomicIntegerArray(Math.max(segments, 1));
+        }
+
+        private int next() {
+            if (ROUTE_ROUND_ROBIN.equals(route)) {
+                return Math.floorMod(cursor.getAndIncrement(), segments);
+            }
+            return ThreadLocalRandom.current().nextInt(segments);
+        }
+
+        private boolean isEmpty(int segmentNo) {
+            return empty.get(segmentNo) == 1;
+        }
+
+        private void markEmpty(int segmentNo) {
+            empty.set(segmentNo, 1);
+        }
+    }
+}
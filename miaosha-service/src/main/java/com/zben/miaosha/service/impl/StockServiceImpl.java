@@ -1,16 +1,36 @@
 package com.zben.miaosha.service.impl;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.domain.StockDeduction;
+import com.zben.miaosha.domain.StockOrder;
 import com.zben.miaosha.mapper.StockMapper;
+import com.zben.miaosha.mapper.StockOrderMapper;
+import com.zben.miaosha.service.IdBloomFilterService;
+import com.zben.miaosha.service.StockSegmentService;
 import com.zben.miaosha.service.StockService;
 import com.zben.miaosha.service.utils.CacheKey;
+import com.zben.miaosha.service.utils.ConcurrentIntBitSet;
+import com.zben.miaosha.service.utils.PreDeductStatus;
+import com.zben.miaosha.service.utils.SingleFlight;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 import tk.mybatis.mapper.entity.Example;
 
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @DESC:库存服务
@@ -24,9 +44,100 @@ public class StockServiceImpl implements StockService {
     @Autowired
     StockMapper stockMapper;
 
+    @Autowired
+    IdBloomFilterService idBloomFilterService;
+
+    @Autowired
+    StockOrderMapper stockOrderMapper;
+
+    @Autowired
+    StockSegmentService stockSegmentService;
+
+    private static final int USER_ORDER_PAGE_SIZE = 1000;
+
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    RedisScript<Long> stockPreDeductScript;
+
+    @Autowired
+    RedisScript<Long> stockPreDeductRollbackScript;
+
+    /**
+     * 本节点的商品售罄标记，售罄后的请求无需访问redis和数据库；只根据数据库（或内存库存引擎）的扣减结果设置
+     */
+    private final ConcurrentIntBitSet soldOutFlags = new ConcurrentIntBitSet();
+
+    /**
+     * 本节点的预扣售罄标记，缓存预扣返回库存不足时设置，只有预扣下单接口使用
+     */
+    private final ConcurrentIntBitSet preDeductSoldOutFlags = new ConcurrentIntBitSet();
+
+    /**
+     * 预热时自动拆分库存的分段数，小于等于1不拆分
+     */
+    @Value("${miaosha.stock.segment.default-segments:0}")
+    private int defaultSegments;
+
+    @Value("${miaosha.cache.local.maximum-size:10000}")
+    private long localCacheMaximumSize;
+
+    @Value("${miaosha.cache.local.expire-millis:1000}")
+    private long localCacheExpireMillis;
+
+    @Value("${miaosha.cache.stock-info.expire-seconds:60}")
+    private long stockInfoExpireSeconds;
+
+    @Value("${miaosha.cache.load-mutex.enabled:true}")
+    private boolean loadMutexEnabled;
+
+    @Value("${miaosha.cache.load-mutex.lock-millis:3000}")
+    private long loadMutexLockMillis;
+
+    @Value("${miaosha.cache.load-mutex.wait-millis:20}")
+    private long loadMutexWaitMillis;
+
+    @Value("${miaosha.cache.load-mutex.max-waits:10}")
+    private int loadMutexMaxWaits;
+
+    /**
+     * 本节点内合并同一商品的并发数据库查询
+     */
+    private final SingleFlight<Integer, Integer> stockCountLoader = new SingleFlight<>();
+
+    /**
+     * 未拿到redis互斥锁、等到其他节点写入缓存的次数
+     */
+    private final LongAdder remoteCoalescedCount = new LongAdder();
+
+    /**
+     * 实际查询数据库的次数
+     */
+    private final LongAdder dbLoadCount = new LongAdder();
+
+    /**
+     * 一级缓存：本地商品信息，未命中时读redis二级缓存，再未命中读数据库，同一商品并发未命中只加载一次
+     */
+    private LoadingCache<Integer, Stock> stockInfoCache;
+
+    /**
+     * 一级缓存：本地库存数量，未命中时读redis
+     */
+    private LoadingCache<Integer, Integer> stockCountCache;
+
+    @PostConstruct
+    public void initLocalCache() {
+        stockInfoCache = Caffeine.newBuilder()
+                .maximumSize(localCacheMaximumSize)
+                .expireAfterWrite(localCacheExpireMillis, TimeUnit.MILLISECONDS)
+                .build(this::loadStockInfo);
+        stockCountCache = Caffeine.newBuilder()
+                .maximumSize(localCacheMaximumSize)
+                .expireAfterWrite(localCacheExpireMillis, TimeUnit.MILLISECONDS)
+                .build(this::loadStockCountFromRedis);
+    }
+
     /**
      * 根据库存 ID 查询数据库库存信息
      *
@@ -67,6 +178,47 @@ public class StockServiceImpl implements StockService {
         return stockMapper.updateByExample(rec, example);
     }
 
+    /**
+     * 按数量扣减库存
+     *
+     * @param sid
+     * @param delta
+     * @return
+     */
+    @Override
+    public int updateStockSaleByDelta(int sid, int delta) {
+        return stockMapper.updateSaleByDelta(sid, delta);
+    }
+
+    /**
+     * 单条语句按条件扣减库存
+     *
+     * @param sid
+     * @param delta
+     * @return
+     */
+    @Override
+    public int deductStock(int sid, int delta) {
+        if (stockSegmentService.isSegmented(sid)) {
+            return stockSegmentService.deduct(sid, delta);
+        }
+        StockDeduction deduction = new StockDeduction();
+        deduction.setId(sid);
+        deduction.setDelta(delta);
+        if (stockMapper.deductStock(deduction) == 0) {
+            if (stockSegmentService.isEnabled()) {
+                // 其他节点刚拆分了库存，本节点还没感知到
+                stockSegmentService.refresh(sid);
+                if (stockSegmentService.isSegmented(sid)) {
+                    return stockSegmentService.deduct(sid, delta);
+                }
+            }
+            return -1;
+        }
+        // LAST_INSERT_ID为0时驱动不返回生成键，即扣减后没有剩余
+        return deduction.getRemaining() == null ? 0 : deduction.getRemaining().intValue();
+    }
+
     /**
      * 从数据库中读取
      *
@@ -76,7 +228,15 @@ public class StockServiceImpl implements StockService {
     @Override
     public int getStockCountByDB(int sid) {
         Stock stock = stockMapper.selectByPrimaryKey(sid);
-        return stock == null ? 0 : stock.getCount() - stock.getSale();
+        if (stock == null) {
+            return 0;
+        }
+        int remaining = stock.getCount() - stock.getSale();
+        // 分段后剩余库存在各分段中
+        if (stockSegmentService.isEnabled()) {
+            remaining += stockSegmentService.getRemaining(sid);
+        }
+        return remaining;
     }
 
     /**
@@ -86,6 +246,10 @@ public class StockServiceImpl implements StockService {
      */
     @Override
     public Integer getStockCountByCache(int sid) {
+        return stockCountCache.get(sid);
+    }
+
+    private Integer loadStockCountFromRedis(Integer sid) {
         String hashKey = CacheKey.STOCK_COUNT.getKey() + "_" + sid;
         String countStr = stringRedisTemplate.opsForValue().get(hashKey);
         if (countStr != null) {
@@ -95,6 +259,84 @@ public class StockServiceImpl implements StockService {
         }
     }
 
+    /**
+     * 查询库存：缓存未命中时合并并发的数据库查询
+     * 本节点内同一商品只有一个线程查询，开启互斥锁时跨节点也只有一个节点查询数据库
+     *
+     * @param sid
+     * @return
+     */
+    @Override
+    public int getStockCountWithLoader(int sid) {
+        Integer count = getStockCountByCache(sid);
+        if (count != null) {
+            return count;
+        }
+        return stockCountLoader.execute(sid, () -> loadStockCountToCache(sid));
+    }
+
+    private Integer loadStockCountToCache(int sid) {
+        // 其他线程刚刚加载完成
+        Integer count = loadStockCountFromRedis(sid);
+        if (count != null) {
+            return count;
+        }
+        if (!loadMutexEnabled) {
+            return loadStockCountFromDB(sid);
+        }
+        String lockKey = CacheKey.STOCK_LOAD_LOCK.getKey() + "_" + sid;
+        String token = UUID.randomUUID().toString();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, loadMutexLockMillis, TimeUnit.MILLISECONDS);
+        if (locked != null && locked) {
+            try {
+                return loadStockCountFromDB(sid);
+            } finally {
+                if (token.equals(stringRedisTemplate.opsForValue().get(lockKey))) {
+                    stringRedisTemplate.delete(lockKey);
+                }
+            }
+        }
+        // 其他节点正在加载，等待其写入缓存
+        for (int i = 0; i < loadMutexMaxWaits; i++) {
+            try {
+                Thread.sleep(loadMutexWaitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            count = loadStockCountFromRedis(sid);
+            if (count != null) {
+                remoteCoalescedCount.increment();
+                return count;
+            }
+        }
+        log.warn("等待其他节点加载商品id：[{}] 库存缓存超时，直接查询数据库", sid);
+        return loadStockCountFromDB(sid);
+    }
+
+    private Integer loadStockCountFromDB(int sid) {
+        dbLoadCount.increment();
+        int count = getStockCountByDB(sid);
+        log.info("缓存未命中，查询数据库，并写入缓存");
+        setStockCountToCache(sid, count);
+        return count;
+    }
+
+    /**
+     * 缓存未命中加载的统计
+     *
+     * @return
+     */
+    @Override
+    public Map<String, Long> getStockLoadMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("loads", stockCountLoader.getLoadCount());
+        metrics.put("localCoalesced", stockCountLoader.getCoalescedCount());
+        metrics.put("remoteCoalesced", remoteCoalescedCount.sum());
+        metrics.put("dbLoads", dbLoadCount.sum());
+        return metrics;
+    }
+
     /**
      * 写入缓存
      * @param sid
@@ -105,6 +347,9 @@ public class StockServiceImpl implements StockService {
         String hashKey = CacheKey.STOCK_COUNT.getKey() + "_" + sid;
         log.info("写入商品库存缓存: [{}] [{}]", hashKey, String.valueOf(count));
         stringRedisTemplate.opsForValue().set(hashKey, String.valueOf(count), 3600, TimeUnit.SECONDS);
+        if (count != null) {
+            stockCountCache.put(sid, count);
+        }
     }
 
     /**
@@ -115,7 +360,10 @@ public class StockServiceImpl implements StockService {
     public boolean delStockCountCache(int sid) {
         String hashKey = CacheKey.STOCK_COUNT.getKey() + "_" + sid;
         try {
+            evictLocalStockCache(sid);
             stringRedisTemplate.delete(hashKey);
+            // 通知其他节点删除本地缓存
+            stringRedisTemplate.convertAndSend(CacheKey.STOCK_CACHE_CHANNEL.getKey(), String.valueOf(sid));
             log.info("删除商品id：[{}] 缓存", sid);
         } catch (Exception e) {
             log.error("删除商品id：[{}] 缓存失败 message: [{}]", sid, e.getMessage());
@@ -133,4 +381,238 @@ public class StockServiceImpl implements StockService {
     public Integer getStockCount(Integer sid) {
         return null;
     }
+
+    /**
+     * 预热秒杀库存
+     * 使用setIfAbsent，节点重启时不会覆盖秒杀进行中的库存
+     *
+     * @return
+     */
+    @Override
+    public int warmUpStock() {
+        List<Stock> stocks = stockMapper.selectAll();
+        int warmed = 0;
+        for (Stock stock : stocks) {
+            idBloomFilterService.putStock(stock.getId());
+            int count = Math.max(stock.getCount() - stock.getSale(), 0);
+            String key = CacheKey.SECKILL_STOCK.getKey() + "_" + stock.getId();
+            Boolean absent = stringRedisTemplate.opsForValue().setIfAbsent(key, String.valueOf(count));
+            if (absent != null && absent) {
+                warmed++;
+                log.info("预热商品id：[{}] 秒杀库存：[{}]", stock.getId(), count);
+            }
+        }
+        return warmed;
+    }
+
+    /**
+     * 秒杀开始前预热单个商品
+     * 已下单用户从订单表加载到redis，重启或redis数据丢失后预扣脚本仍能识别重复抢购
+     *
+     * @param stock
+     */
+    @Override
+    public void warmUpForSale(Stock stock) {
+        int sid = stock.getId();
+        // 过滤器构建之后新增的商品，预热时加入，否则在下次重建之前会被当作不存在
+        idBloomFilterService.putStock(sid);
+        if (stockSegmentService.isEnabled() && defaultSegments > 1 && !stockSegmentService.isSegmented(sid)) {
+            stockSegmentService.split(sid, defaultSegments);
+        }
+        int remaining = Math.max(getStockCountByDB(sid), 0);
+        setStockCountToCache(sid, remaining);
+        // 秒杀库存已存在时不覆盖，其中包含尚未落库的预扣
+        stringRedisTemplate.opsForValue().setIfAbsent(CacheKey.SECKILL_STOCK.getKey() + "_" + sid, String.valueOf(remaining));
+        int users = loadUserOrdersToCache(sid);
+        if (remaining == 0) {
+            markSoldOut(sid);
+        }
+        getStockInfo(sid);
+        log.info("预热商品id：[{}] 剩余库存：[{}] 已下单用户：[{}]", sid, remaining, users);
+    }
+
+    private int loadUserOrdersToCache(int sid) {
+        String key = CacheKey.USER_HAS_ORDER.getKey() + "_" + sid;
+        int total = 0;
+        Integer lastId = 0;
+        List<StockOrder> orders;
+        do {
+            orders = stockOrderMapper.selectUserOrdersAfter(sid, lastId, USER_ORDER_PAGE_SIZE);
+            if (!orders.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(key, orders.stream()
+                        .map(order -> String.valueOf(order.getUserId())).toArray(String[]::new));
+                lastId = orders.get(orders.size() - 1).getId();
+                total += orders.size();
+            }
+        } while (orders.size() == USER_ORDER_PAGE_SIZE);
+        return total;
+    }
+
+    /**
+     * 缓存预扣库存
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    @Override
+    public PreDeductStatus preDeductStock(Integer sid, Integer userId) {
+        Long result = stringRedisTemplate.execute(stockPreDeductScript, preDeductKeys(sid), userId.toString());
+        PreDeductStatus status = PreDeductStatus.of(result);
+        if (status == PreDeductStatus.SOLD_OUT) {
+            // 预扣成功的请求可能还在排队，不能设置消费端使用的售罄标记
+            markPreDeductSoldOut(sid);
+        }
+        log.info("商品id：[{}] 用户id：[{}] 预扣库存结果：[{}] 剩余：[{}]", sid, userId, status, result);
+        return status;
+    }
+
+    /**
+     * 回滚缓存预扣的库存
+     *
+     * @param sid
+     * @param userId
+     */
+    @Override
+    public void rollbackPreDeductStock(Integer sid, Integer userId) {
+        Long result = stringRedisTemplate.execute(stockPreDeductRollbackScript, preDeductKeys(sid), userId.toString());
+        if (result != null && result > 0) {
+            // 归还的库存可以再次预扣
+            preDeductSoldOutFlags.clear(sid);
+        }
+        log.info("商品id：[{}] 用户id：[{}] 回滚预扣库存，剩余：[{}]", sid, userId, result);
+    }
+
+    /**
+     * 库存不足的用户移出已抢购set，可以再次抢购
+     *
+     * @param sid
+     * @param userIds
+     */
+    @Override
+    public void releasePreDeductUsers(Integer sid, List<Integer> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        String key = CacheKey.USER_HAS_ORDER.getKey() + "_" + sid;
+        stringRedisTemplate.opsForSet().remove(key, userIds.stream().map(String::valueOf).toArray());
+        log.info("商品id：[{}] 下单失败，移出已抢购用户：[{}] 个", sid, userIds.size());
+    }
+
+    private List<String> preDeductKeys(Integer sid) {
+        return Arrays.asList(CacheKey.SECKILL_STOCK.getKey() + "_" + sid,
+                CacheKey.USER_HAS_ORDER.getKey() + "_" + sid);
+    }
+
+    /**
+     * 重新从数据库加载秒杀库存
+     *
+     * @param sid
+     */
+    @Override
+    public void refreshSeckillStock(int sid) {
+        if (stockMapper.existsWithPrimaryKey(sid)) {
+            idBloomFilterService.putStock(sid);
+        }
+        int count = getStockCountByDB(sid);
+        String key = CacheKey.SECKILL_STOCK.getKey() + "_" + sid;
+        stringRedisTemplate.opsForValue().set(key, String.valueOf(count));
+        log.info("重新加载商品id：[{}] 秒杀库存：[{}]", sid, count);
+    }
+
+    @Override
+    public boolean isSoldOut(int sid) {
+        return soldOutFlags.get(sid);
+    }
+
+    @Override
+    public void markSoldOut(int sid) {
+        if (!soldOutFlags.get(sid)) {
+            soldOutFlags.set(sid);
+            log.info("标记商品id：[{}] 已售罄", sid);
+        }
+    }
+
+    @Override
+    public void clearSoldOut(int sid) {
+        soldOutFlags.clear(sid);
+        preDeductSoldOutFlags.clear(sid);
+        log.info("清除商品id：[{}] 售罄标记", sid);
+    }
+
+    @Override
+    public boolean isPreDeductSoldOut(int sid) {
+        return preDeductSoldOutFlags.get(sid) || soldOutFlags.get(sid);
+    }
+
+    @Override
+    public void markPreDeductSoldOut(int sid) {
+        if (!preDeductSoldOutFlags.get(sid)) {
+            preDeductSoldOutFlags.set(sid);
+            log.info("标记商品id：[{}] 秒杀库存已预扣完", sid);
+        }
+    }
+
+    /**
+     * 商品信息：本地缓存 -> redis -> 数据库
+     * 只用于展示和合法性校验，其中的已售数量和版本号不是最新的，扣库存仍需使用getStockById
+     *
+     * @param sid
+     * @return
+     */
+    @Override
+    public Stock getStockInfo(int sid) {
+        // 一定不存在的商品不再穿透到redis和数据库
+        if (!idBloomFilterService.mightContainStock(sid)) {
+            return null;
+        }
+        Stock stock = stockInfoCache.get(sid);
+        if (stock == null) {
+            return null;
+        }
+        Stock copy = new Stock();
+        copy.setId(stock.getId());
+        copy.setName(stock.getName());
+        copy.setCount(stock.getCount());
+        copy.setSale(stock.getSale());
+        copy.setVersion(stock.getVersion());
+        return copy;
+    }
+
+    private Stock loadStockInfo(Integer sid) {
+        String key = CacheKey.STOCK_INFO.getKey() + "_" + sid;
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(key);
+        if (!entries.isEmpty()) {
+            Stock stock = new Stock();
+            stock.setId(sid);
+            stock.setName((String) entries.get("name"));
+            stock.setCount(Integer.valueOf((String) entries.get("count")));
+            stock.setSale(Integer.valueOf((String) entries.get("sale")));
+            stock.setVersion(Integer.valueOf((String) entries.get("version")));
+            return stock;
+        }
+        Stock stock = stockMapper.selectByPrimaryKey(sid);
+        if (stock != null) {
+            Map<String, String> fields = new HashMap<>(8);
+            fields.put("name", stock.getName());
+            fields.put("count", String.valueOf(stock.getCount()));
+            fields.put("sale", String.valueOf(stock.getSale()));
+            fields.put("version", String.valueOf(stock.getVersion()));
+            stringRedisTemplate.opsForHash().putAll(key, fields);
+            stringRedisTemplate.expire(key, stockInfoExpireSeconds, TimeUnit.SECONDS);
+            log.info("写入商品信息缓存: [{}]", key);
+        }
+        return stock;
+    }
+
+    /**
+     * 删除本节点的一级缓存
+     *
+     * @param sid
+     */
+    @Override
+    public void evictLocalStockCache(int sid) {
+        stockCountCache.invalidate(sid);
+        stockInfoCache.invalidate(sid);
+    }
 }
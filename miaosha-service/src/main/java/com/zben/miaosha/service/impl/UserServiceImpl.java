@@ -3,16 +3,23 @@ package com.zben.miaosha.service.impl;
 import com.zben.miaosha.domain.Stock;
 import com.zben.miaosha.domain.User;
 import com.zben.miaosha.mapper.UserMapper;
+import com.zben.miaosha.service.IdBloomFilterService;
 import com.zben.miaosha.service.StockService;
 import com.zben.miaosha.service.UserService;
 import com.zben.miaosha.service.utils.CacheKey;
+import com.zben.miaosha.service.utils.VerifyProperties;
+import com.zben.miaosha.service.utils.VerifyTokenSigner;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.util.DigestUtils;
-import org.springframework.util.StringUtils;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,11 +37,30 @@ public class UserServiceImpl implements UserService {
     @Autowired
     UserMapper userMapper;
 
+    @Autowired
+    IdBloomFilterService idBloomFilterService;
+
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    RedisScript<List> userLimitScript;
+
+    @Autowired
+    VerifyProperties verifyProperties;
+
+    @Autowired
+    VerifyTokenSigner verifyTokenSigner;
+
     private static final String SALT = "randomString";
     private static final int ALLOW_COUNT = 5;
+    private static final int LIMIT_WINDOW_SECONDS = 3600;
+    private static final int MAX_BANNED_CACHE_SIZE = 100000;
+
+    /**
+     * 本地缓存已超过频率限制的用户及其解封时间，窗口结束前不再访问redis
+     */
+    private final Map<Integer, Long> bannedUntil = new ConcurrentHashMap<>();
 
     /**
      * 获取用户验证Hash
@@ -50,6 +76,14 @@ public class UserServiceImpl implements UserService {
         log.info("请自行验证是否在抢购时间内");
 
 
+        // 布隆过滤器拦截一定不存在的用户和商品，不再访问缓存和数据库
+        if (!idBloomFilterService.mightContainUser(userId)) {
+            throw new Exception("用户不存在");
+        }
+        if (!idBloomFilterService.mightContainStock(sid)) {
+            throw new Exception("商品不存在");
+        }
+
         // 检查用户合法性
         User user = userMapper.selectByPrimaryKey(userId.longValue());
         if (user == null) {
@@ -58,62 +92,61 @@ public class UserServiceImpl implements UserService {
         log.info("用户信息：[{}]", user.toString());
 
         // 检查商品合法性
-        Stock stock = stockService.getStockById(sid);
+        Stock stock = stockService.getStockInfo(sid);
         if (stock == null) {
             throw new Exception("商品不存在");
         }
         log.info("商品信息：[{}]", stock.toString());
 
+        // hmac模式：签发无状态验证值，无需写入redis
+        if (verifyProperties.isHmac()) {
+            return verifyTokenSigner.sign(sid, userId);
+        }
+
         // 生成hash
         String verify = SALT + sid + userId;
         String verifyHash = DigestUtils.md5DigestAsHex(verify.getBytes());
 
         // 将hash和用户商品信息存入redis
         String hashKey = CacheKey.HASH_KEY.getKey() + "_" + sid + "_" + userId;
-        stringRedisTemplate.opsForValue().set(hashKey, verifyHash, 3600, TimeUnit.SECONDS);
+        stringRedisTemplate.opsForValue().set(hashKey, verifyHash, verifyProperties.getTtlSeconds(), TimeUnit.SECONDS);
         log.info("Redis写入：[{}] [{}]", hashKey, verifyHash);
         return verifyHash;
     }
 
     /**
      * 统计用户的访问次数
+     * 自增和设置窗口过期时间在一次lua调用中原子完成
      *
      * @param userId
      * @return
      */
     @Override
     public boolean addUserCount(Integer userId) {
-        String limitKey = CacheKey.LIMIT_KEY.getKey() + "_" + userId;
-        String limitNum = stringRedisTemplate.opsForValue().get(limitKey);
-        int limit = 0;
-        if (StringUtils.isEmpty(limitNum)) {
-            limit++;
-        } else {
-            limit = Integer.parseInt(limitNum) + 1;
+        long now = System.currentTimeMillis();
+        Long until = bannedUntil.get(userId);
+        if (until != null) {
+            if (until > now) {
+                return true;
+            }
+            bannedUntil.remove(userId, until);
         }
-        stringRedisTemplate.opsForValue().set(limitKey, String.valueOf(limit), 3600, TimeUnit.SECONDS);
+
+        String limitKey = CacheKey.LIMIT_KEY.getKey() + "_" + userId;
+        List<?> result = stringRedisTemplate.execute(userLimitScript, Collections.singletonList(limitKey),
+                String.valueOf(LIMIT_WINDOW_SECONDS));
+        long limit = ((Number) result.get(0)).longValue();
+        long ttlMillis = ((Number) result.get(1)).longValue();
         log.info("用户截至该次的访问次数为: [{}]", limit);
-        return limit > ALLOW_COUNT;
+        if (limit <= ALLOW_COUNT) {
+            return false;
+        }
+        if (bannedUntil.size() >= MAX_BANNED_CACHE_SIZE) {
+            bannedUntil.values().removeIf(time -> time <= now);
+        }
+        if (bannedUntil.size() < MAX_BANNED_CACHE_SIZE) {
+            bannedUntil.put(userId, now + ttlMillis);
+        }
+        return true;
     }
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
@@ -3,8 +3,16 @@ package com.zben.miaosha.service.utils;
 public enum CacheKey {
     HASH_KEY("miaosha_user_hash"),
     LIMIT_KEY("miaosha_user_limit"),
+    RATE_LIMIT("miaosha_rate_limit"),
     STOCK_COUNT("miaosha_stock_count"),
-    USER_HAS_ORDER("miaosha_user_has_order");
+    STOCK_INFO("miaosha_stock_info"),
+    STOCK_LOAD_LOCK("miaosha_stock_load_lock"),
+    STOCK_CACHE_CHANNEL("miaosha_stock_cache_channel"),
+    SECKILL_STOCK("miaosha_seckill_stock"),
+    USER_HAS_ORDER("miaosha_user_has_order"),
+    ORDER_PROCESSED("miaosha_order_processed"),
+    ORDER_RESULT("miaosha_order_result"),
+    ORDER_RESULT_CHANNEL("miaosha_order_result_channel");
 
     private String key;
 
@@ -0,0 +1,50 @@
+package com.zben.miaosha.service.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @DESC:线程安全的int位图，读无锁，写加锁（写很少，只在售罄/补货时发生）
+ * @author: zhouben
+ * @date: 2020/10/10 0010 9:40
+ */
+public class ConcurrentIntBitSet {
+
+    private volatile AtomicLongArray words = new AtomicLongArray(16);
+
+    public boolean get(int index) {
+        if (index < 0) {
+            return false;
+        }
+        AtomicLongArray current = words;
+        int wordIndex = index >>> 6;
+        return wordIndex < current.length() && (current.get(wordIndex) & (1L << index)) != 0;
+    }
+
+    public synchronized void set(int index) {
+        if (index < 0) {
+            return;
+        }
+        int wordIndex = index >>> 6;
+        AtomicLongArray current = words;
+        if (wordIndex >= current.length()) {
+            AtomicLongArray expanded = new AtomicLongArray(Math.max(current.length() * 2, wordIndex + 1));
+            for (int i = 0; i < current.length(); i++) {
+                expanded.set(i, current.get(i));
+            }
+            words = expanded;
+            current = expanded;
+        }
+        current.set(wordIndex, current.get(wordIndex) | (1L << index));
+    }
+
+    public synchronized void clear(int index) {
+        if (index < 0) {
+            return;
+        }
+        AtomicLongArray current = words;
+        int wordIndex = index >>> 6;
+        if (wordIndex < current.length()) {
+            current.set(wordIndex, current.get(wordIndex) & ~(1L << index));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.zben.miaosha.service.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @DESC:乐观锁冲突重试策略
+ * 版本号冲突后在服务内重新读取并重试，退避时间按次数指数增长并随机抖动（0 ~ 上限之间均匀分布），避免冲突的请求再次同时更新；
+ * 同时按商品统计更新次数和冲突次数
+ * @author: zhouben
+ * @date: 2020/10/27 0027 14:00
+ */
+@Component
+public class OptimisticRetryPolicy {
+
+    /**
+     * 最多更新次数（含第一次），1表示不重试
+     */
+    @Value("${miaosha.stock.retry.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${miaosha.stock.retry.base-backoff-micros:50}")
+    private long baseBackoffMicros;
+
+    @Value("${miaosha.stock.retry.max-backoff-micros:5000}")
+    private long maxBackoffMicros;
+
+    private final Map<Integer, Counters> counters = new ConcurrentHashMap<>();
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 第attempt次更新冲突后的退避
+     *
+     * @param attempt 从1开始
+     */
+    public void backoff(int attempt) {
+        long cap = Math.min(maxBackoffMicros, baseBackoffMicros << Math.min(attempt - 1, 20));
+        long micros = ThreadLocalRandom.current().nextLong(cap + 1);
+        if (micros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+    }
+
+    public void recordAttempt(int sid) {
+        counters(sid).attempts.increment();
+    }
+
+    public void recordConflict(int sid) {
+        counters(sid).conflicts.increment();
+    }
+
+    public void recordSuccess(int sid, int attempt) {
+        Counters c = counters(sid);
+        c.successes.increment();
+        if (attempt > 1) {
+            c.retrySuccesses.increment();
+        }
+    }
+
+    public void recordGiveUp(int sid) {
+        counters(sid).giveUps.increment();
+    }
+
+    /**
+     * 各商品的冲突统计，conflictRate = 冲突次数 / 更新次数
+     *
+     * @return
+     */
+    public Map<Integer, Map<String, Object>> getMetrics() {
+        Map<Integer, Map<String, Object>> metrics = new LinkedHashMap<>();
+        counters.forEach((sid, c) -> {
+            long attempts = c.attempts.sum();
+            long conflicts = c.conflicts.sum();
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("attempts", attempts);
+            m.put("conflicts", conflicts);
+            m.put("successes", c.successes.sum());
+            m.put("retrySuccesses", c.retrySuccesses.sum());
+            m.put("giveUps", c.giveUps.sum());
+            m.put("conflictRate", attempts == 0 ? 0D : (double) conflicts / attempts);
+            metrics.put(sid, m);
+        });
+        return metrics;
+    }
+
+    private Counters counters(int sid) {
+        return counters.computeIfAbsent(sid, k -> new Counters());
+    }
+
+    private static class Counters {
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder conflicts = new LongAdder();
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder retrySuccesses = new LongAdder();
+        private final LongAdder giveUps = new LongAdder();
+    }
+}
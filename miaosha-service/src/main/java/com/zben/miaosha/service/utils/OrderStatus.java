@@ -0,0 +1,26 @@
+package com.zben.miaosha.service.utils;
+
+/**
+ * @DESC:异步下单结果
+ * @author: zhouben
+ * @date: 2020/10/23 0023 14:10
+ */
+public enum OrderStatus {
+    // 已提交，排队处理中
+    PENDING,
+    // 下单成功
+    SUCCESS,
+    // 库存不足
+    SOLD_OUT,
+    // 下单失败
+    FAILED;
+
+    /**
+     * 是否为最终结果，最终结果不会再变化
+     *
+     * @return
+     */
+    public boolean isFinal() {
+        return this != PENDING;
+    }
+}
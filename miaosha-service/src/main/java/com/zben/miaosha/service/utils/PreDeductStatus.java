@@ -0,0 +1,36 @@
+package com.zben.miaosha.service.utils;
+
+/**
+ * @DESC:缓存预扣库存结果
+ * @author: zhouben
+ * @date: 2020/10/9 0009 10:20
+ */
+public enum PreDeductStatus {
+    // 预扣成功
+    SUCCESS,
+    // 库存不足
+    SOLD_OUT,
+    // 用户已经抢购过
+    REPEATED,
+    // 库存未预热
+    NOT_READY;
+
+    /**
+     * 根据lua脚本返回值转换
+     *
+     * @param code
+     * @return
+     */
+    public static PreDeductStatus of(Long code) {
+        if (code == null || code == -3) {
+            return NOT_READY;
+        }
+        if (code == -2) {
+            return REPEATED;
+        }
+        if (code == -1) {
+            return SOLD_OUT;
+        }
+        return SUCCESS;
+    }
+}
@@ -0,0 +1,62 @@
+package com.zben.miaosha.service.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * @DESC:合并同一个key的并发加载，同一时刻只有一个线程执行加载，其余线程等待并共享结果
+ * @author: zhouben
+ * @date: 2020/10/16 0016 9:15
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder loadCount = new LongAdder();
+
+    private final LongAdder coalescedCount = new LongAdder();
+
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedCount.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        loadCount.increment();
+        try {
+            V value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 实际执行的加载次数
+     */
+    public long getLoadCount() {
+        return loadCount.sum();
+    }
+
+    /**
+     * 被合并（等待其他线程结果）的加载次数
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+}
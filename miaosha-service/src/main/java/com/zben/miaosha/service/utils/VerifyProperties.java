@@ -0,0 +1,48 @@
+package com.zben.miaosha.service.utils;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @DESC:抢购验证值配置
+ * @author: zhouben
+ * @date: 2020/10/14 0014 9:20
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "miaosha.verify")
+public class VerifyProperties {
+
+    /**
+     * 验证值模式：redis 验证值存入redis；hmac 无状态签名，进程内校验
+     */
+    private String mode = "redis";
+
+    /**
+     * 验证值有效期
+     */
+    private long ttlSeconds = 3600;
+
+    /**
+     * 当前场次标识，参与签名，切换场次后上一场的验证值全部失效
+     */
+    private String saleWindow = "default";
+
+    /**
+     * 签发使用的密钥id
+     */
+    private String activeKeyId;
+
+    /**
+     * 密钥id -> 密钥，轮换时先加入新密钥并切换activeKeyId，旧验证值过期后再删除旧密钥
+     */
+    private Map<String, String> keys = new HashMap<>();
+
+    public boolean isHmac() {
+        return "hmac".equals(mode);
+    }
+}
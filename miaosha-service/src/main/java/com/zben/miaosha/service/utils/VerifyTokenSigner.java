@@ -0,0 +1,110 @@
+package com.zben.miaosha.service.utils;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @DESC:HMAC抢购验证值
+ * 验证值格式：密钥id.过期时间(秒).签名，签名内容为 商品id:用户id:过期时间:场次，校验无需访问redis
+ * @author: zhouben
+ * @date: 2020/10/14 0014 9:45
+ */
+@Component
+public class VerifyTokenSigner {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    @Autowired
+    private VerifyProperties properties;
+
+    private final ThreadLocal<Map<String, Mac>> macs = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * hmac模式下没有配置密钥时启动失败，不使用任何默认密钥
+     */
+    @PostConstruct
+    public void init() {
+        if (!properties.isHmac()) {
+            return;
+        }
+        if (!properties.getKeys().containsKey(properties.getActiveKeyId())) {
+            throw new IllegalStateException("miaosha.verify.keys中缺少签发密钥：" + properties.getActiveKeyId());
+        }
+        for (Map.Entry<String, String> entry : properties.getKeys().entrySet()) {
+            if (entry.getValue() == null || entry.getValue().trim().isEmpty()) {
+                throw new IllegalStateException("miaosha.verify.keys." + entry.getKey() + " 未配置密钥");
+            }
+        }
+    }
+
+    /**
+     * 签发验证值
+     *
+     * @param sid
+     * @param userId
+     * @return
+     */
+    public String sign(Integer sid, Integer userId) {
+        String keyId = properties.getActiveKeyId();
+        long expireAt = System.currentTimeMillis() / 1000 + properties.getTtlSeconds();
+        return keyId + "." + expireAt + "." + signature(keyId, sid, userId, expireAt);
+    }
+
+    /**
+     * 校验验证值
+     *
+     * @param sid
+     * @param userId
+     * @param token
+     * @return
+     */
+    public boolean verify(Integer sid, Integer userId, String token) {
+        if (token == null) {
+            return false;
+        }
+        String[] parts = token.split("\\.");
+        if (parts.length != 3 || !properties.getKeys().containsKey(parts[0])) {
+            return false;
+        }
+        long expireAt;
+        try {
+            expireAt = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis() / 1000) {
+            return false;
+        }
+        String expected = signature(parts[0], sid, userId, expireAt);
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                parts[2].getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String signature(String keyId, Integer sid, Integer userId, long expireAt) {
+        String content = sid + ":" + userId + ":" + expireAt + ":" + properties.getSaleWindow();
+        byte[] digest = mac(keyId).doFinal(content.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    private Mac mac(String keyId) {
+        return macs.get().computeIfAbsent(keyId, id -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(new SecretKeySpec(properties.getKeys().get(id).getBytes(StandardCharsets.UTF_8), ALGORITHM));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("初始化HMAC失败", e);
+            }
+        });
+    }
+}
@@ -0,0 +1,17 @@
+-- 秒杀库存预扣
+-- KEYS[1]: 秒杀库存key  KEYS[2]: 已抢购用户set  ARGV[1]: 用户id
+-- 返回值：>=0 扣减后剩余库存；-1 库存不足；-2 重复抢购；-3 库存未预热
+if redis.call('sismember', KEYS[2], ARGV[1]) == 1 then
+    return -2
+end
+local stock = redis.call('get', KEYS[1])
+if not stock then
+    return -3
+end
+stock = tonumber(stock)
+if stock <= 0 then
+    return -1
+end
+redis.call('decr', KEYS[1])
+redis.call('sadd', KEYS[2], ARGV[1])
+return stock - 1
@@ -0,0 +1,6 @@
+-- 回滚秒杀库存预扣（仅当用户确实在已抢购set中时才归还库存，避免重复回滚）
+-- KEYS[1]: 秒杀库存key  KEYS[2]: 已抢购用户set  ARGV[1]: 用户id
+if redis.call('srem', KEYS[2], ARGV[1]) == 1 then
+    return redis.call('incr', KEYS[1])
+end
+return -1
@@ -0,0 +1,10 @@
+-- 固定窗口计数：窗口内第一次访问时设置过期时间，之后的访问不会重置过期时间
+-- KEYS[1]: 用户访问次数key  ARGV[1]: 窗口时长（秒）
+-- 返回值：{窗口内访问次数, 窗口剩余毫秒数}
+local count = redis.call('incr', KEYS[1])
+local ttl = redis.call('pttl', KEYS[1])
+if count == 1 or ttl < 0 then
+    redis.call('expire', KEYS[1], ARGV[1])
+    ttl = tonumber(ARGV[1]) * 1000
+end
+return {count, ttl}
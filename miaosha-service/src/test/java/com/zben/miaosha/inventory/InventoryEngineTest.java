@@ -0,0 +1,193 @@
+package com.zben.miaosha.inventory;
+
+import com.zben.miaosha.domain.Stock;
+import com.zben.miaosha.mapper.StockMapper;
+import com.zben.miaosha.mapper.StockOrderMapper;
+import com.zben.miaosha.service.StockSegmentService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @DESC:内存库存引擎重新加载：还有未写入数据库的记录时拒绝丢弃内存库存，
+ * 与进行中的扣减并发重新加载时，已刷盘的扣减都计入数据库已售，不会按旧的已售重新卖出；
+ * 与关闭并发的扣减都能拿到结果，不会一直等待日志刷盘
+ * 数据库用桩对象代替：已售 = 写入的记录数
+ * @author: zhouben
+ * @date: 2020/11/6 0006 10:00
+ */
+public class InventoryEngineTest {
+
+    private static final int SID = 1;
+
+    private static final int STOCK = 2000;
+
+    private final AtomicInteger persisted = new AtomicInteger();
+
+    private final AtomicBoolean persistFails = new AtomicBoolean();
+
+    private File dir;
+
+    private InventoryEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("inventory-engine").toFile();
+        StockMapper stockMapper = mock(StockMapper.class);
+        when(stockMapper.selectByPrimaryKey(SID)).thenAnswer(invocation -> {
+            Stock stock = new Stock();
+            stock.setId(SID);
+            stock.setCount(STOCK);
+            stock.setSale(persisted.get());
+            return stock;
+        });
+        StockOrderMapper stockOrderMapper = mock(StockOrderMapper.class);
+        when(stockOrderMapper.selectUserOrdersAfter(anyInt(), anyInt(), anyInt())).thenReturn(Collections.emptyList());
+        InventoryWriter inventoryWriter = mock(InventoryWriter.class);
+        when(inventoryWriter.persist(anyList())).thenAnswer(invocation -> {
+            if (persistFails.get()) {
+                throw new IllegalStateException("database down");
+            }
+            List<?> records = invocation.getArgument(0);
+            persisted.addAndGet(records.size());
+            return records.size();
+        });
+
+        engine = new InventoryEngine();
+        ReflectionTestUtils.setField(engine, "stockMapper", stockMapper);
+        ReflectionTestUtils.setField(engine, "stockOrderMapper", stockOrderMapper);
+        ReflectionTestUtils.setField(engine, "stockSegmentService", mock(StockSegmentService.class));
+        ReflectionTestUtils.setField(engine, "inventoryWriter", inventoryWriter);
+        ReflectionTestUtils.setField(engine, "enabled", true);
+        ReflectionTestUtils.setField(engine, "ownedShards", "");
+        ReflectionTestUtils.setField(engine, "shardCount", 4);
+        ReflectionTestUtils.setField(engine, "journalDir", dir.getAbsolutePath());
+        ReflectionTestUtils.setField(engine, "groupMaxRecords", 1000);
+        ReflectionTestUtils.setField(engine, "journalRollBytes", 64L * 1024 * 1024);
+        ReflectionTestUtils.setField(engine, "flushBatchSize", 500);
+        ReflectionTestUtils.setField(engine, "flushIntervalMillis", 20L);
+        ReflectionTestUtils.setField(engine, "appendTimeoutMillis", 5000L);
+        engine.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        persistFails.set(false);
+        engine.destroy();
+    }
+
+    @Test
+    public void reloadRefusedWhileRecordsFailToPersist() {
+        persistFails.set(true);
+        assertTrue(engine.deduct(SID, 100));
+        try {
+            engine.reload(SID);
+            fail("还有未写入数据库的记录时不能重新加载");
+        } catch (IllegalStateException expected) {
+            // 稍后重试
+        }
+        assertEquals(Integer.valueOf(STOCK - 1), engine.getRemaining(SID));
+
+        persistFails.set(false);
+        engine.reload(SID);
+        assertNull(engine.getRemaining(SID));
+        assertEquals(1, persisted.get());
+    }
+
+    @Test
+    public void reloadDuringDeductsNeverOversells() throws Exception {
+        int threads = 8;
+        AtomicInteger userIds = new AtomicInteger();
+        AtomicInteger successes = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                int userId;
+                while ((userId = userIds.incrementAndGet()) <= STOCK * 2) {
+                    if (engine.deduct(SID, userId)) {
+                        successes.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        Future<?> reloader = executor.submit(() -> {
+            start.await();
+            while (userIds.get() < STOCK * 2) {
+                engine.reload(SID);
+            }
+            return null;
+        });
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        reloader.get(2, TimeUnit.MINUTES);
+        executor.shutdown();
+        engine.flush();
+
+        assertEquals("每个成功的扣减都写入了数据库", successes.get(), persisted.get());
+        assertTrue("超卖：已售 " + persisted.get(), persisted.get() <= STOCK);
+    }
+
+    @Test(timeout = 60000)
+    public void deductsRacingShutdownNeverHang() throws Exception {
+        int threads = 8;
+        AtomicInteger userIds = new AtomicInteger();
+        AtomicInteger successes = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                int userId;
+                while ((userId = userIds.incrementAndGet()) <= STOCK * 2) {
+                    try {
+                        if (engine.deduct(SID, userId)) {
+                            successes.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        // 日志已关闭
+                    }
+                }
+                return null;
+            }));
+        }
+        while (successes.get() == 0) {
+            Thread.sleep(1);
+        }
+        engine.destroy();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertTrue("超卖：已售 " + persisted.get(), persisted.get() <= STOCK);
+        assertEquals("关闭前刷盘的扣减都写入了数据库", successes.get(), persisted.get() + engine.getUnpersistedCount());
+    }
+}
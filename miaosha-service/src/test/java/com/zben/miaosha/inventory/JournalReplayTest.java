@@ -0,0 +1,135 @@
+package com.zben.miaosha.inventory;
+
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:内存库存引擎崩溃恢复
+ * 子进程开启内存库存引擎并发扣减，每个成功的用户输出一行ACK，收到一定数量的ACK后kill -9子进程，
+ * 本进程在同一个数据目录上启动引擎从日志恢复，检查：每个收到成功的用户都有且只有一个订单，已售 = 订单数，已售 <= 库存
+ * @author: zhouben
+ * @date: 2020/11/6 0006 11:00
+ */
+public class JournalReplayTest {
+
+    private static final int SID = 1;
+
+    private static final int STOCK = 100000;
+
+    private static final int KILL_AFTER_ACKS = 3000;
+
+    private static final String ACK = "ACK ";
+
+    @Test
+    public void ackedDeductsSurviveKill() throws Exception {
+        File dir = Files.createTempDirectory("miaosha-replay").toFile();
+
+        Process sale = fork(dir).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<Integer> acked = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(sale.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while (acked.size() < KILL_AFTER_ACKS && (line = reader.readLine()) != null) {
+                if (line.startsWith(ACK)) {
+                    acked.add(Integer.valueOf(line.substring(ACK.length())));
+                }
+            }
+        } finally {
+            // 扣减进行中直接kill -9，不执行任何关闭逻辑
+            sale.destroyForcibly().waitFor(1, TimeUnit.MINUTES);
+        }
+        assertFalse("子进程没有输出任何成功的扣减", acked.isEmpty());
+
+        AnnotationConfigApplicationContext context = startContext(dir);
+        try {
+            // 启动时已重放checkpoint之后的记录
+            assertEquals(0, context.getBean(InventoryEngine.class).getUnpersistedCount());
+            DataSource dataSource = context.getBean(DataSource.class);
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement select = connection.prepareStatement(
+                         "SELECT COUNT(*) FROM stock_order WHERE sid = ? AND user_id = ?")) {
+                for (Integer userId : acked) {
+                    select.setInt(1, SID);
+                    select.setInt(2, userId);
+                    try (ResultSet rs = select.executeQuery()) {
+                        rs.next();
+                        assertEquals("用户Id：" + userId + " 收到成功", 1, rs.getInt(1));
+                    }
+                }
+            }
+            long orders = TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID);
+            long sold = TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID);
+            assertEquals("订单数与已售不一致", orders, sold);
+            assertTrue("超卖：已售 " + sold, sold <= STOCK);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * 子进程入口：并发扣减直到被kill或售罄
+     */
+    public static void main(String[] args) throws Exception {
+        AnnotationConfigApplicationContext context = startContext(new File(args[0]));
+        DataSource dataSource = context.getBean(DataSource.class);
+        TestData.resetStock(dataSource, 1, STOCK);
+        InventoryEngine engine = context.getBean(InventoryEngine.class);
+        AtomicInteger userIds = new AtomicInteger();
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.submit(() -> {
+                int userId;
+                while ((userId = userIds.incrementAndGet()) <= STOCK) {
+                    if (engine.deduct(SID, userId)) {
+                        synchronized (System.out) {
+                            System.out.println(ACK + userId);
+                            System.out.flush();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private static ProcessBuilder fork(File dir) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                JournalReplayTest.class.getName(), dir.getAbsolutePath());
+    }
+
+    private static AnnotationConfigApplicationContext startContext(File dir) {
+        Map<String, Object> properties = new HashMap<>();
+        // 每次提交都写盘，进程被kill后已提交的订单不丢
+        properties.put("miaosha.test.jdbc-url", "jdbc:h2:file:" + new File(dir, "db").getAbsolutePath()
+                + ";MODE=MySQL;WRITE_DELAY=0;LOCK_TIMEOUT=10000");
+        properties.put("miaosha.inventory.enabled", true);
+        properties.put("miaosha.inventory.journal-dir", new File(dir, "journal").getAbsolutePath());
+        return ServiceTestContext.start(properties);
+    }
+}
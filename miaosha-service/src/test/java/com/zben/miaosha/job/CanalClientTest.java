@@ -0,0 +1,261 @@
+package com.zben.miaosha.job;
+
+import com.alibaba.otter.canal.client.CanalConnector;
+import com.alibaba.otter.canal.protocol.CanalEntry.Column;
+import com.alibaba.otter.canal.protocol.CanalEntry.Entry;
+import com.alibaba.otter.canal.protocol.CanalEntry.EntryType;
+import com.alibaba.otter.canal.protocol.CanalEntry.EventType;
+import com.alibaba.otter.canal.protocol.CanalEntry.Header;
+import com.alibaba.otter.canal.protocol.CanalEntry.RowChange;
+import com.alibaba.otter.canal.protocol.CanalEntry.RowData;
+import com.alibaba.otter.canal.protocol.Message;
+import com.alibaba.otter.canal.protocol.exception.CanalClientException;
+import com.zben.miaosha.service.IdBloomFilterService;
+import com.zben.miaosha.service.utils.CacheKey;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisKeyCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @DESC:canal binlog解析：stock表和分段表的变更汇总，以及canal不可用时的重连
+ * @author: zhouben
+ * @date: 2020/11/3 0003 15:00
+ */
+public class CanalClientTest {
+
+    private static final String SCHEMA = "miaosha";
+
+    @Test
+    public void stockUpdateKeepsLastRemaining() {
+        List<Entry> entries = Arrays.asList(
+                stockRow(EventType.UPDATE, 1, 100, 10),
+                stockRow(EventType.UPDATE, 1, 100, 11),
+                stockRow(EventType.INSERT, 2, 50, 0));
+
+        Map<Integer, Integer> changes = CanalClient.collectStockChanges(entries, SCHEMA);
+
+        assertEquals(Integer.valueOf(89), changes.get(1));
+        assertEquals(Integer.valueOf(50), changes.get(2));
+    }
+
+    @Test
+    public void deleteMapsToNullAndOtherSchemaIgnored() {
+        List<Entry> entries = Arrays.asList(
+                entry("other", "stock", EventType.UPDATE, row(false, "id", "3", "count", "10", "sale", "0")),
+                entry(SCHEMA, "stock", EventType.DELETE, row(true, "id", "4", "count", "10", "sale", "0")));
+
+        Map<Integer, Integer> changes = CanalClient.collectStockChanges(entries, SCHEMA);
+
+        assertFalse(changes.containsKey(3));
+        assertTrue(changes.containsKey(4));
+        assertNull(changes.get(4));
+    }
+
+    /**
+     * 拆分：stock表已售改为总数，剩余转入分段，不能按stock表写入0
+     */
+    @Test
+    public void splitMapsToDelete() {
+        List<Entry> entries = Arrays.asList(
+                stockRow(EventType.UPDATE, 1, 100, 100),
+                segmentRow(EventType.INSERT, 1, 0, 50, 0),
+                segmentRow(EventType.INSERT, 1, 1, 50, 0));
+
+        Map<Integer, Integer> changes = CanalClient.collectStockChanges(entries, SCHEMA);
+
+        assertTrue(changes.containsKey(1));
+        assertNull(changes.get(1));
+    }
+
+    @Test
+    public void segmentDeductAndMerge() {
+        Map<Integer, Integer> deduct = CanalClient.collectStockChanges(
+                Collections.singletonList(segmentRow(EventType.UPDATE, 1, 0, 50, 7)), SCHEMA);
+        assertTrue(deduct.containsKey(1));
+        assertNull(deduct.get(1));
+
+        // 合并：删除分段后stock表的剩余恢复，以最后一次变更为准
+        Map<Integer, Integer> merge = CanalClient.collectStockChanges(Arrays.asList(
+                segmentRow(EventType.DELETE, 1, 0, 50, 7),
+                stockRow(EventType.UPDATE, 1, 100, 57)), SCHEMA);
+        assertEquals(Integer.valueOf(43), merge.get(1));
+    }
+
+    @Test
+    public void reconnectsAfterConnectFailure() throws Exception {
+        CanalConnector connector = mock(CanalConnector.class);
+        doThrow(new CanalClientException("connection refused"))
+                .doThrow(new CanalClientException("connection refused"))
+                .doNothing()
+                .when(connector).connect();
+        Message batch = new Message(7, Collections.singletonList(stockRow(EventType.UPDATE, 1, 100, 10)));
+        when(connector.getWithoutAck(anyInt())).thenReturn(batch).thenReturn(new Message(-1));
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.getStringSerializer()).thenReturn(new StringRedisSerializer());
+        IdBloomFilterService idBloomFilterService = mock(IdBloomFilterService.class);
+
+        CanalClient client = client(connector, redis, idBloomFilterService);
+        client.start();
+        try {
+            verify(connector, timeout(5000)).ack(7);
+        } finally {
+            client.stop();
+        }
+        verify(connector, times(3)).connect();
+        verify(redis).executePipelined(any(RedisCallback.class));
+        verify(idBloomFilterService).putStock(1);
+    }
+
+    @Test
+    public void cacheFailureRollsBackBatch() throws Exception {
+        CanalConnector connector = mock(CanalConnector.class);
+        Message batch = new Message(8, Collections.singletonList(stockRow(EventType.UPDATE, 1, 100, 10)));
+        when(connector.getWithoutAck(anyInt())).thenReturn(batch).thenReturn(batch).thenReturn(new Message(-1));
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.getStringSerializer()).thenReturn(new StringRedisSerializer());
+        doThrow(new IllegalStateException("redis down")).doAnswer(invocation -> Collections.emptyList())
+                .when(redis).executePipelined(any(RedisCallback.class));
+
+        CanalClient client = client(connector, redis, mock(IdBloomFilterService.class));
+        client.start();
+        try {
+            verify(connector, timeout(5000)).ack(8);
+        } finally {
+            client.stop();
+        }
+        verify(connector).rollback(8);
+        verify(connector, times(1)).connect();
+    }
+
+    /**
+     * set模式下stock表剩余为0（可能已拆分）时删除缓存而不是写入0
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void setModeDeletesWhenStockRowHasNoRemaining() throws Exception {
+        CanalConnector connector = mock(CanalConnector.class);
+        Message batch = new Message(9, Arrays.asList(
+                stockRow(EventType.UPDATE, 1, 100, 100),
+                stockRow(EventType.UPDATE, 2, 100, 40)));
+        when(connector.getWithoutAck(anyInt())).thenReturn(batch).thenReturn(new Message(-1));
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.getStringSerializer()).thenReturn(new StringRedisSerializer());
+        RedisConnection connection = mock(RedisConnection.class);
+        RedisKeyCommands keyCommands = mock(RedisKeyCommands.class);
+        RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+        when(connection.keyCommands()).thenReturn(keyCommands);
+        when(connection.stringCommands()).thenReturn(stringCommands);
+        when(redis.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            ((RedisCallback<Object>) invocation.getArgument(0)).doInRedis(connection);
+            return Collections.emptyList();
+        });
+
+        CanalClient client = client(connector, redis, mock(IdBloomFilterService.class));
+        client.start();
+        try {
+            verify(connector, timeout(5000)).ack(9);
+        } finally {
+            client.stop();
+        }
+        verify(keyCommands).del(bytes(CacheKey.STOCK_COUNT.getKey() + "_1"));
+        verify(stringCommands).set(eq(bytes(CacheKey.STOCK_COUNT.getKey() + "_2")), eq(bytes("60")),
+                any(Expiration.class), any(RedisStringCommands.SetOption.class));
+        verify(stringCommands, never()).set(eq(bytes(CacheKey.STOCK_COUNT.getKey() + "_1")), any(byte[].class),
+                any(Expiration.class), any(RedisStringCommands.SetOption.class));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static CanalClient client(CanalConnector connector, StringRedisTemplate redis,
+                                      IdBloomFilterService idBloomFilterService) {
+        CanalClient client = new CanalClient() {
+            @Override
+            CanalConnector createConnector() {
+                return connector;
+            }
+        };
+        ReflectionTestUtils.setField(client, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(client, "idBloomFilterService", idBloomFilterService);
+        ReflectionTestUtils.setField(client, "schema", SCHEMA);
+        ReflectionTestUtils.setField(client, "mode", "set");
+        ReflectionTestUtils.setField(client, "batchSize", 1000);
+        ReflectionTestUtils.setField(client, "idleSleepMillis", 10L);
+        ReflectionTestUtils.setField(client, "reconnectBackoffMillis", 10L);
+        ReflectionTestUtils.setField(client, "reconnectMaxBackoffMillis", 20L);
+        return client;
+    }
+
+    private static Entry stockRow(EventType eventType, int id, int count, int sale) {
+        return entry(SCHEMA, "stock", eventType, row(eventType == EventType.DELETE,
+                "id", String.valueOf(id), "count", String.valueOf(count), "sale", String.valueOf(sale)));
+    }
+
+    private static Entry segmentRow(EventType eventType, int sid, int segmentNo, int count, int sale) {
+        return entry(SCHEMA, "stock_segment", eventType, row(eventType == EventType.DELETE,
+                "id", String.valueOf(sid * 100 + segmentNo), "sid", String.valueOf(sid),
+                "segment_no", String.valueOf(segmentNo), "count", String.valueOf(count), "sale", String.valueOf(sale)));
+    }
+
+    private static Entry entry(String schema, String table, EventType eventType, RowData rowData) {
+        RowChange rowChange = RowChange.newBuilder()
+                .setEventType(eventType)
+                .addRowDatas(rowData)
+                .build();
+        return Entry.newBuilder()
+                .setEntryType(EntryType.ROWDATA)
+                .setHeader(Header.newBuilder().setSchemaName(schema).setTableName(table).setEventType(eventType))
+                .setStoreValue(rowChange.toByteString())
+                .build();
+    }
+
+    /**
+     * @param before         删除事件只有变更前的列
+     * @param namesAndValues 列名、列值交替
+     */
+    private static RowData row(boolean before, String... namesAndValues) {
+        RowData.Builder builder = RowData.newBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            Column column = Column.newBuilder()
+                    .setIndex(i / 2)
+                    .setName(namesAndValues[i])
+                    .setValue(namesAndValues[i + 1])
+                    .setIsNull(false)
+                    .build();
+            if (before) {
+                builder.addBeforeColumns(column);
+            } else {
+                builder.addAfterColumns(column);
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,108 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:乐观锁加重试不超卖：多个线程抢同一个商品，请求数大于库存，
+ * 结束后订单数 = 已售 = 返回成功的请求数，已售不超过库存，同一用户只有一个订单
+ * @author: zhouben
+ * @date: 2020/11/5 0005 14:00
+ */
+public class OptimisticNoOversellTest {
+
+    private static final int SID = 1;
+
+    private static final int THREADS = 16;
+
+    private static final int STOCK = 200;
+
+    private static final int REQUESTS = STOCK * 3;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.stock.deduct-mode", "optimistic");
+        context = ServiceTestContext.start(properties);
+        dataSource = context.getBean(DataSource.class);
+        TestData.resetStock(dataSource, 1, STOCK);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void concurrentOrdersNeverOversell() throws Exception {
+        OrderService orderService = context.getBean(OrderService.class);
+        AtomicInteger userIds = new AtomicInteger();
+        Map<OrderStatus, LongAdder> outcomes = new EnumMap<>(OrderStatus.class);
+        for (OrderStatus status : OrderStatus.values()) {
+            outcomes.put(status, new LongAdder());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                int userId;
+                while ((userId = userIds.incrementAndGet()) <= REQUESTS) {
+                    OrderStatus status;
+                    try {
+                        status = orderService.createOrderByMq(SID, userId);
+                    } catch (RuntimeException e) {
+                        // 重试次数用完
+                        status = OrderStatus.FAILED;
+                    }
+                    outcomes.get(status).increment();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        long orders = TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID);
+        long sale = TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID);
+        long duplicates = TestData.queryLong(dataSource, "SELECT COUNT(*) FROM (SELECT user_id FROM stock_order WHERE sid = "
+                + SID + " GROUP BY user_id HAVING COUNT(*) > 1) t");
+
+        assertTrue("超卖：已售 " + sale, sale <= STOCK);
+        assertEquals("订单数与已售不一致", sale, orders);
+        assertEquals("存在重复下单的用户", 0, duplicates);
+        assertEquals("返回成功的请求数与订单数不一致：" + outcomes, orders, outcomes.get(OrderStatus.SUCCESS).sum());
+    }
+}
@@ -0,0 +1,113 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.service.utils.PreDeductStatus;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import com.zben.miaosha.support.TestMysql;
+import com.zben.miaosha.support.TestRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:最后一件库存被预扣后，排队中的预扣成功者仍然都能下单
+ * 预扣返回库存不足只设置预扣售罄标记，消费端以数据库为准；在mysql上执行真实的扣减语句
+ * @author: zhouben
+ * @date: 2020/11/2 0002 14:00
+ */
+@RunWith(Parameterized.class)
+public class QueuedWinnersAfterSellOutTest {
+
+    private static final int SID = 1;
+
+    private static final int STOCK = 20;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Object[] deductModes() {
+        return new Object[]{"conditional", "optimistic"};
+    }
+
+    @Parameterized.Parameter
+    public String deductMode;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    private StockService stockService;
+
+    private OrderService orderService;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> properties = TestMysql.start();
+        properties.put("miaosha.stock.deduct-mode", deductMode);
+        context = ServiceTestContext.start(properties, TestRedis.start());
+        dataSource = context.getBean(DataSource.class);
+        stockService = context.getBean(StockService.class);
+        orderService = context.getBean(OrderService.class);
+        TestData.resetStock(dataSource, 1, STOCK);
+        stockService.warmUpForSale(stockService.getStockById(SID));
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    /**
+     * 预扣到库存不足，返回预扣成功的用户
+     */
+    private List<Integer> preDeductUntilSoldOut() {
+        List<Integer> winners = new ArrayList<>();
+        for (int userId = 1; userId <= STOCK + 5; userId++) {
+            if (stockService.preDeductStock(SID, userId) == PreDeductStatus.SUCCESS) {
+                winners.add(userId);
+            }
+        }
+        assertEquals(STOCK, winners.size());
+        assertTrue("预扣接口快速失败", stockService.isPreDeductSoldOut(SID));
+        assertFalse("预扣售罄不能影响消费端", stockService.isSoldOut(SID));
+        return winners;
+    }
+
+    @Test
+    public void queuedWinnersAllGetOrders() throws Exception {
+        List<Integer> winners = preDeductUntilSoldOut();
+
+        for (Integer userId : winners) {
+            assertEquals("用户 " + userId, OrderStatus.SUCCESS, orderService.createOrderByMq(SID, userId));
+        }
+
+        assertEquals(STOCK, TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID));
+        assertEquals(STOCK, TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID));
+        assertEquals(OrderStatus.SOLD_OUT, orderService.createOrderByMq(SID, STOCK + 100));
+    }
+
+    @Test
+    public void queuedWinnersAllGetOrdersInBatch() throws Exception {
+        List<Integer> winners = preDeductUntilSoldOut();
+
+        Map<Integer, List<Integer>> soldOut = orderService.createOrderByMqBatch(Collections.singletonMap(SID, winners));
+
+        assertTrue("没有预扣成功者被当作库存不足：" + soldOut, soldOut.isEmpty());
+        assertEquals(STOCK, TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID));
+        assertEquals(STOCK, TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID));
+    }
+}
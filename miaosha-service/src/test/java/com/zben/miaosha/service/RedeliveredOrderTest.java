@@ -0,0 +1,92 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.inventory.InventoryEngine;
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import com.zben.miaosha.support.TestMysql;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:售罄后重新投递的消息：订单已提交但ack之前消费者崩溃，消息重新投递时商品已售罄，
+ * 仍要返回成功（接口层按售罄处理会回补预扣并覆盖成功结果），也不能写入第二个订单；
+ * conditional依赖mysql的LAST_INSERT_ID(expr)，没有docker时跳过
+ * @author: zhouben
+ * @date: 2020/11/9 0009 10:00
+ */
+@RunWith(Parameterized.class)
+public class RedeliveredOrderTest {
+
+    private static final int SID = 1;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Object[] modes() {
+        return new Object[]{"optimistic", "conditional", "engine"};
+    }
+
+    @Parameterized.Parameter
+    public String mode;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        if ("conditional".equals(mode)) {
+            properties.putAll(TestMysql.start());
+        }
+        if ("engine".equals(mode)) {
+            properties.put("miaosha.inventory.enabled", true);
+            properties.put("miaosha.inventory.journal-dir", Files.createTempDirectory("miaosha-redelivery").toString());
+        } else {
+            properties.put("miaosha.stock.deduct-mode", mode);
+        }
+        context = ServiceTestContext.start(properties);
+        dataSource = context.getBean(DataSource.class);
+        TestData.resetStock(dataSource, 1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void redeliveryAfterSoldOutStillSucceeds() throws Exception {
+        OrderService orderService = context.getBean(OrderService.class);
+        assertEquals(OrderStatus.SUCCESS, orderService.createOrderByMq(SID, 1));
+        assertEquals(OrderStatus.SOLD_OUT, orderService.createOrderByMq(SID, 2));
+        assertTrue(context.getBean(StockService.class).isSoldOut(SID));
+        if ("engine".equals(mode)) {
+            // 订单写入数据库后重新加载，相当于重启后从数据库恢复已下单用户
+            InventoryEngine inventoryEngine = context.getBean(InventoryEngine.class);
+            while (inventoryEngine.getUnpersistedCount() > 0) {
+                Thread.sleep(20);
+            }
+            inventoryEngine.reload(SID);
+        }
+
+        assertEquals(OrderStatus.SUCCESS, orderService.createOrderByMq(SID, 1));
+        assertEquals(OrderStatus.SOLD_OUT, orderService.createOrderByMq(SID, 2));
+
+        assertEquals(1, TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID + " AND user_id = 1"));
+        assertEquals(1, TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID));
+    }
+}
@@ -0,0 +1,170 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.service.utils.OrderStatus;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import com.zben.miaosha.support.TestMysql;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:分段库存：拆分后stock表已售等于总数，条件扣减和乐观锁都从分段扣减，不会提前售罄也不会超卖；
+ * 在mysql上执行真实的分段扣减语句（READ COMMITTED下并发从不同分段开始查找）
+ * @author: zhouben
+ * @date: 2020/11/5 0005 16:00
+ */
+@RunWith(Parameterized.class)
+public class SegmentedStockOrderTest {
+
+    private static final int SID = 1;
+
+    private static final int STOCK = 40;
+
+    private static final int SEGMENTS = 4;
+
+    private static final int THREADS = 8;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Object[] deductModes() {
+        return new Object[]{"conditional", "optimistic"};
+    }
+
+    @Parameterized.Parameter
+    public String deductMode;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> properties = TestMysql.start();
+        properties.put("miaosha.stock.deduct-mode", deductMode);
+        properties.put("miaosha.stock.segment.enabled", true);
+        properties.put("miaosha.stock.segment.route", "round-robin");
+        context = ServiceTestContext.start(properties);
+        dataSource = context.getBean(DataSource.class);
+        TestData.resetStock(dataSource, 1, STOCK);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void ordersDeductFromSegmentsWithoutOversell() throws Exception {
+        context.getBean(StockSegmentService.class).split(SID, SEGMENTS);
+        OrderService orderService = context.getBean(OrderService.class);
+        // 拆分后stock表已售等于总数，不能因此判定售罄
+        assertEquals(OrderStatus.SUCCESS, orderService.createOrderByMq(SID, STOCK * 10));
+
+        AtomicInteger userIds = new AtomicInteger();
+        Map<OrderStatus, LongAdder> outcomes = new EnumMap<>(OrderStatus.class);
+        for (OrderStatus status : OrderStatus.values()) {
+            outcomes.put(status, new LongAdder());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                int userId;
+                while ((userId = userIds.incrementAndGet()) <= STOCK * 2) {
+                    OrderStatus status;
+                    try {
+                        status = orderService.createOrderByMq(SID, userId);
+                    } catch (RuntimeException e) {
+                        status = OrderStatus.FAILED;
+                    }
+                    outcomes.get(status).increment();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        long orders = TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID);
+        long segmentSale = TestData.queryLong(dataSource, "SELECT SUM(sale) FROM stock_segment WHERE sid = " + SID);
+        assertTrue("超卖：已售 " + segmentSale, segmentSale <= STOCK);
+        assertEquals(segmentSale, orders);
+        assertEquals("返回成功的请求数与订单数不一致：" + outcomes, orders, outcomes.get(OrderStatus.SUCCESS).sum() + 1);
+        assertEquals(STOCK, TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID));
+        assertEquals(0, TestData.queryLong(dataSource,
+                "SELECT COUNT(*) FROM stock_segment WHERE sid = " + SID + " AND sale > count"));
+    }
+
+    /**
+     * 其他节点扣完了分段1，本节点扣完分段0时返回的剩余应当是各段汇总的0，而不是本节点猜测的剩余
+     */
+    @Test
+    public void deductReturnsRealRemainingWhenSegmentEmptied() throws Exception {
+        TestData.resetStock(dataSource, 1, 2);
+        StockSegmentService stockSegmentService = context.getBean(StockSegmentService.class);
+        stockSegmentService.split(SID, 2);
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE stock_segment SET sale = count WHERE sid = " + SID + " AND segment_no = 1");
+        }
+
+        assertEquals(0, stockSegmentService.deduct(SID, 1));
+        assertEquals(-1, stockSegmentService.deduct(SID, 1));
+        assertEquals(0, stockSegmentService.getRemaining(SID));
+    }
+
+    /**
+     * 其他节点合并了分段，本节点缓存的分段状态过期之前扣减应当改为扣stock表，不能误判售罄
+     */
+    @Test
+    public void deductFallsBackToStockAfterMergeOnAnotherNode() throws Exception {
+        StockSegmentService stockSegmentService = context.getBean(StockSegmentService.class);
+        stockSegmentService.split(SID, SEGMENTS);
+        assertTrue(stockSegmentService.deduct(SID, 1) >= 0);
+
+        Map<String, Object> properties = TestMysql.start();
+        properties.put("miaosha.stock.segment.enabled", true);
+        AnnotationConfigApplicationContext otherNode = ServiceTestContext.start(properties);
+        try {
+            assertEquals(STOCK - 1, otherNode.getBean(StockSegmentService.class).merge(SID));
+        } finally {
+            otherNode.close();
+        }
+
+        assertEquals(STOCK - 2, stockSegmentService.deduct(SID, 1));
+        assertEquals(3, stockSegmentService.deductUpTo(SID, 3));
+        assertEquals(OrderStatus.SUCCESS, context.getBean(OrderService.class).createOrderByMq(SID, 1));
+        assertFalse(context.getBean(StockService.class).isSoldOut(SID));
+        assertEquals(6, TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID));
+        assertEquals(0, TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_segment WHERE sid = " + SID));
+    }
+}
@@ -0,0 +1,102 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.service.utils.CacheKey;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:用户访问频率限制：同一用户1000个并发请求（分布在多个节点上），窗口内恰好放行ALLOW_COUNT次，
+ * 计数key的过期时间在第一次访问时设置，之后的访问不会延长窗口
+ * @author: zhouben
+ * @date: 2020/11/3 0003 11:00
+ */
+public class UserLimitTest {
+
+    private static final int ALLOW_COUNT = 5;
+
+    private static final long WINDOW_MILLIS = 3600 * 1000L;
+
+    private static final int NODES = 2;
+
+    private static final int REQUESTS = 1000;
+
+    private final List<AnnotationConfigApplicationContext> nodes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        RedisStandaloneConfiguration redis = TestRedis.start();
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(ServiceTestContext.start(Collections.emptyMap(), redis));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        nodes.forEach(AnnotationConfigApplicationContext::close);
+    }
+
+    @Test
+    public void parallelRequestsAllowedExactlyAllowCount() throws Exception {
+        int userId = 1;
+        ExecutorService executor = Executors.newFixedThreadPool(100);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger allowed = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            UserService userService = nodes.get(i % NODES).getBean(UserService.class);
+            futures.add(executor.submit(() -> {
+                start.await();
+                if (!userService.addUserCount(userId)) {
+                    allowed.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        assertEquals(ALLOW_COUNT, allowed.get());
+        StringRedisTemplate redis = nodes.get(0).getBean(StringRedisTemplate.class);
+        String key = CacheKey.LIMIT_KEY.getKey() + "_" + userId;
+        Long ttlMillis = redis.getExpire(key, TimeUnit.MILLISECONDS);
+        assertTrue("计数key没有过期时间：" + ttlMillis, ttlMillis != null && ttlMillis > 0 && ttlMillis <= WINDOW_MILLIS);
+        // 被限制后由本地缓存直接拒绝，redis中的计数不超过请求数
+        assertTrue(Long.parseLong(redis.opsForValue().get(key)) <= REQUESTS);
+    }
+
+    @Test
+    public void repeatedRequestsDoNotExtendWindow() throws Exception {
+        int userId = 2;
+        UserService userService = nodes.get(0).getBean(UserService.class);
+        StringRedisTemplate redis = nodes.get(0).getBean(StringRedisTemplate.class);
+        String key = CacheKey.LIMIT_KEY.getKey() + "_" + userId;
+        userService.addUserCount(userId);
+        Long first = redis.getExpire(key, TimeUnit.MILLISECONDS);
+        Thread.sleep(1100);
+        userService.addUserCount(userId);
+        Long second = redis.getExpire(key, TimeUnit.MILLISECONDS);
+        assertTrue("第二次访问重置了窗口：" + first + " -> " + second, second < first);
+    }
+}
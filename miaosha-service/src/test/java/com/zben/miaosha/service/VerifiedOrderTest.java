@@ -0,0 +1,67 @@
+package com.zben.miaosha.service;
+
+import com.zben.miaosha.service.utils.VerifyTokenSigner;
+import com.zben.miaosha.support.ServiceTestContext;
+import com.zben.miaosha.support.TestData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @DESC:需要验证的抢单接口：同一用户重复下单时订单唯一索引冲突，已扣减的库存随事务回滚
+ * @author: zhouben
+ * @date: 2020/11/5 0005 10:00
+ */
+public class VerifiedOrderTest {
+
+    private static final int SID = 1;
+
+    private static final int STOCK = 10;
+
+    private AnnotationConfigApplicationContext context;
+
+    private DataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.verify.mode", "hmac");
+        properties.put("miaosha.verify.active-key-id", "k1");
+        properties.put("miaosha.verify.keys.k1", "test-secret");
+        context = ServiceTestContext.start(properties);
+        dataSource = context.getBean(DataSource.class);
+        TestData.resetStock(dataSource, 1, STOCK);
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void duplicateOrderRollsBackDeduction() throws Exception {
+        OrderService orderService = context.getBean(OrderService.class);
+        String verifyHash = context.getBean(VerifyTokenSigner.class).sign(SID, 1);
+
+        assertEquals(STOCK - 1, orderService.createVerifiedOrder(SID, 1, verifyHash));
+        try {
+            orderService.createVerifiedOrder(SID, 1, verifyHash);
+            fail("重复订单应该失败");
+        } catch (Exception expected) {
+            // 订单唯一索引冲突
+        }
+
+        assertEquals(1, TestData.queryLong(dataSource, "SELECT sale FROM stock WHERE id = " + SID));
+        assertEquals(1, TestData.queryLong(dataSource, "SELECT COUNT(*) FROM stock_order WHERE sid = " + SID));
+    }
+}
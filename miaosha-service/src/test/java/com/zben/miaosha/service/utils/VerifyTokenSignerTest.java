@@ -0,0 +1,62 @@
+package com.zben.miaosha.service.utils;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @DESC:HMAC验证值：没有配置密钥时启动失败，签发的验证值只能用于对应的商品和用户
+ * @author: zhouben
+ * @date: 2020/11/3 0003 14:00
+ */
+public class VerifyTokenSignerTest {
+
+    @Test(expected = IllegalStateException.class)
+    public void hmacWithoutKeyFailsAtStartup() {
+        signer("hmac", "");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void hmacWithoutActiveKeyFailsAtStartup() {
+        VerifyProperties properties = properties("hmac");
+        properties.getKeys().put("k0", "old-secret");
+        signer(properties);
+    }
+
+    @Test
+    public void redisModeNeedsNoKey() {
+        signer("redis", "");
+    }
+
+    @Test
+    public void tokenBoundToSidAndUser() {
+        VerifyTokenSigner signer = signer("hmac", "test-secret");
+        String token = signer.sign(1, 100);
+        assertTrue(signer.verify(1, 100, token));
+        assertFalse(signer.verify(2, 100, token));
+        assertFalse(signer.verify(1, 101, token));
+        assertFalse(signer.verify(1, 100, token + "x"));
+    }
+
+    private static VerifyTokenSigner signer(String mode, String key) {
+        VerifyProperties properties = properties(mode);
+        properties.getKeys().put("k1", key);
+        return signer(properties);
+    }
+
+    private static VerifyTokenSigner signer(VerifyProperties properties) {
+        VerifyTokenSigner signer = new VerifyTokenSigner();
+        ReflectionTestUtils.setField(signer, "properties", properties);
+        signer.init();
+        return signer;
+    }
+
+    private static VerifyProperties properties(String mode) {
+        VerifyProperties properties = new VerifyProperties();
+        properties.setMode(mode);
+        properties.setActiveKeyId("k1");
+        return properties;
+    }
+}
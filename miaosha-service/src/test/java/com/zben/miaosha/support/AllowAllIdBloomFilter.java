@@ -0,0 +1,41 @@
+package com.zben.miaosha.support;
+
+import com.zben.miaosha.service.IdBloomFilterService;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @DESC:测试中代替布隆过滤器，所有id都放行
+ * @author: zhouben
+ * @date: 2020/11/2 0002 9:40
+ */
+public class AllowAllIdBloomFilter implements IdBloomFilterService {
+
+    @Override
+    public boolean mightContainUser(long userId) {
+        return true;
+    }
+
+    @Override
+    public boolean mightContainStock(int sid) {
+        return true;
+    }
+
+    @Override
+    public void putUser(long userId) {
+    }
+
+    @Override
+    public void putStock(int sid) {
+    }
+
+    @Override
+    public void rebuild() {
+    }
+
+    @Override
+    public Map<String, Object> getReport() {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,163 @@
+package com.zben.miaosha.support;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zben.miaosha.config.RedisScriptConfig;
+import com.zben.miaosha.inventory.InventoryEngine;
+import com.zben.miaosha.inventory.InventoryWriter;
+import com.zben.miaosha.service.IdBloomFilterService;
+import com.zben.miaosha.service.impl.OrderServiceImpl;
+import com.zben.miaosha.service.impl.StockSegmentRebalancer;
+import com.zben.miaosha.service.impl.StockSegmentServiceImpl;
+import com.zben.miaosha.service.impl.StockServiceImpl;
+import com.zben.miaosha.service.impl.UserServiceImpl;
+import com.zben.miaosha.service.utils.OptimisticRetryPolicy;
+import com.zben.miaosha.service.utils.VerifyProperties;
+import com.zben.miaosha.service.utils.VerifyTokenSigner;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.mybatis.spring.SqlSessionFactoryBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import tk.mybatis.spring.annotation.MapperScan;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * @DESC:测试和基准测试用的spring容器
+ * 使用真实的service、mapper和lua脚本，不启动spring boot自动配置，避免连接rabbitmq和canal；
+ * 数据库默认是H2（MODE=MySQL），miaosha.test.jdbc-url可以换成mysql（见TestMysql）；
+ * redis默认是只返回默认值的桩对象，传入TestRedis.start()时连接真实的redis
+ * @author: zhouben
+ * @date: 2020/11/2 0002 10:00
+ */
+@Configuration
+@EnableTransactionManagement
+@EnableConfigurationProperties
+@MapperScan(basePackages = "com.zben.miaosha.mapper")
+@Import({StockServiceImpl.class, OrderServiceImpl.class, UserServiceImpl.class, StockSegmentServiceImpl.class,
+        StockSegmentRebalancer.class, OptimisticRetryPolicy.class, VerifyProperties.class, VerifyTokenSigner.class,
+        InventoryEngine.class, InventoryWriter.class, RedisScriptConfig.class})
+public class ServiceTestContext {
+
+    private static final AtomicInteger DATABASE_SEQ = new AtomicInteger();
+
+    /**
+     * 启动容器，redis使用桩对象
+     *
+     * @param properties 覆盖的配置，例如 miaosha.stock.deduct-mode
+     * @param components 额外注册的组件，例如controller模块的消费者
+     * @return
+     */
+    public static AnnotationConfigApplicationContext start(Map<String, Object> properties, Class<?>... components) {
+        return start(properties, null, components);
+    }
+
+    /**
+     * 启动容器
+     *
+     * @param properties 覆盖的配置
+     * @param redis      真实redis的地址，为null时使用桩对象
+     * @param components 额外注册的组件
+     * @return
+     */
+    public static AnnotationConfigApplicationContext start(Map<String, Object> properties, RedisStandaloneConfiguration redis,
+                                                           Class<?>... components) {
+        Map<String, Object> merged = new HashMap<>();
+        // 每个容器一个独立的内存库
+        merged.put("miaosha.test.jdbc-url", "jdbc:h2:mem:miaosha_" + DATABASE_SEQ.incrementAndGet()
+                + ";MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+        merged.putAll(properties);
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", merged));
+        if (redis == null) {
+            context.registerBean("stringRedisTemplate", StringRedisTemplate.class, ServiceTestContext::stubRedisTemplate);
+        } else {
+            LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(redis);
+            context.registerBean("redisConnectionFactory", LettuceConnectionFactory.class, () -> connectionFactory);
+            context.registerBean("stringRedisTemplate", StringRedisTemplate.class,
+                    () -> new StringRedisTemplate(connectionFactory));
+            context.registerBean("reactiveStringRedisTemplate", ReactiveStringRedisTemplate.class,
+                    () -> new ReactiveStringRedisTemplate(connectionFactory));
+        }
+        context.register(ServiceTestContext.class);
+        if (components.length > 0) {
+            context.register(components);
+        }
+        context.refresh();
+        return context;
+    }
+
+    @Bean(destroyMethod = "close")
+    public HikariDataSource dataSource(@Value("${miaosha.test.jdbc-url}") String jdbcUrl,
+                                       @Value("${miaosha.test.jdbc-username:sa}") String username,
+                                       @Value("${miaosha.test.jdbc-password:}") String password,
+                                       @Value("${miaosha.test.pool-size:64}") int poolSize) {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl(jdbcUrl);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        dataSource.setMaximumPoolSize(poolSize);
+        new ResourceDatabasePopulator(new ClassPathResource("test-schema.sql")).execute(dataSource);
+        return dataSource;
+    }
+
+    @Bean
+    public SqlSessionFactory sqlSessionFactory(DataSource dataSource) throws Exception {
+        SqlSessionFactoryBean factory = new SqlSessionFactoryBean();
+        factory.setDataSource(dataSource);
+        factory.setMapperLocations(new PathMatchingResourcePatternResolver().getResources("classpath*:mapper/*.xml"));
+        org.apache.ibatis.session.Configuration configuration = new org.apache.ibatis.session.Configuration();
+        configuration.setMapUnderscoreToCamelCase(true);
+        factory.setConfiguration(configuration);
+        return factory.getObject();
+    }
+
+    @Bean
+    public PlatformTransactionManager transactionManager(DataSource dataSource) {
+        return new DataSourceTransactionManager(dataSource);
+    }
+
+    @Bean
+    public IdBloomFilterService idBloomFilterService() {
+        return new AllowAllIdBloomFilter();
+    }
+
+    /**
+     * redis桩对象：读取都未命中，写入直接返回；stubOnly不记录调用，长时间压测不会占满内存
+     */
+    @SuppressWarnings("unchecked")
+    private static StringRedisTemplate stubRedisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class, withSettings().stubOnly());
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class, withSettings().stubOnly());
+        SetOperations<String, String> setOperations = mock(SetOperations.class, withSettings().stubOnly());
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class, withSettings().stubOnly());
+        when(template.opsForValue()).thenReturn(valueOperations);
+        when(template.opsForSet()).thenReturn(setOperations);
+        when(template.opsForHash()).thenReturn(hashOperations);
+        return template;
+    }
+}
@@ -0,0 +1,101 @@
+package com.zben.miaosha.support;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * @DESC:准备和检查测试数据
+ * @author: zhouben
+ * @date: 2020/11/2 0002 10:40
+ */
+public class TestData {
+
+    private TestData() {
+    }
+
+    /**
+     * 清空订单和分段，重建商品 1..sidCount，每个商品库存为count
+     */
+    public static void resetStock(DataSource dataSource, int sidCount, int count) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("TRUNCATE TABLE stock_order");
+            statement.execute("TRUNCATE TABLE stock_segment");
+            statement.execute("DELETE FROM stock");
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO stock (id, name, count, sale, version) VALUES (?, ?, ?, 0, 0)")) {
+                for (int sid = 1; sid <= sidCount; sid++) {
+                    insert.setInt(1, sid);
+                    insert.setString(2, "stock-" + sid);
+                    insert.setInt(3, count);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * 把商品剩余库存平均拆到segments个分段，与StockSegmentServiceImpl.split一致
+     */
+    public static void splitStock(DataSource dataSource, int sid, int segments) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            int remaining;
+            try (PreparedStatement select = connection.prepareStatement("SELECT count - sale FROM stock WHERE id = ?")) {
+                select.setInt(1, sid);
+                try (ResultSet rs = select.executeQuery()) {
+                    rs.next();
+                    remaining = rs.getInt(1);
+                }
+            }
+            try (PreparedStatement update = connection.prepareStatement("UPDATE stock SET sale = count WHERE id = ?")) {
+                update.setInt(1, sid);
+                update.executeUpdate();
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO stock_segment (sid, segment_no, count, sale) VALUES (?, ?, ?, 0)")) {
+                for (int i = 0; i < segments; i++) {
+                    insert.setInt(1, sid);
+                    insert.setInt(2, i);
+                    insert.setInt(3, remaining / segments + (i < remaining % segments ? 1 : 0));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * 写入用户 1..userCount
+     */
+    public static void insertUsers(DataSource dataSource, int userCount) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DELETE FROM user");
+            }
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO user (id, user_name) VALUES (?, ?)")) {
+                for (int id = 1; id <= userCount; id++) {
+                    insert.setLong(1, id);
+                    insert.setString(2, "user-" + id);
+                    insert.addBatch();
+                    if (id % 1000 == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    public static long queryLong(DataSource dataSource, String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
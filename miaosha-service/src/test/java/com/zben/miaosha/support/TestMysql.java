@@ -0,0 +1,46 @@
+package com.zben.miaosha.support;
+
+import org.junit.Assume;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @DESC:测试用的mysql，docker启动，同一个jvm中共用一个容器
+ * StockMapper.deductStock、StockSegmentMapper等依赖mysql的LAST_INSERT_ID(expr)，H2上不能执行，需要在mysql上测试；
+ * 没有docker时跳过测试
+ * @author: zhouben
+ * @date: 2020/11/2 0002 10:30
+ */
+public class TestMysql {
+
+    private static MySQLContainer<?> container;
+
+    private TestMysql() {
+    }
+
+    /**
+     * 启动（或复用）mysql容器
+     *
+     * @return 传给ServiceTestContext.start的数据库配置
+     */
+    public static synchronized Map<String, Object> start() {
+        Assume.assumeTrue("没有可用的docker，跳过需要mysql的测试", DockerClientFactory.instance().isDockerAvailable());
+        if (container == null) {
+            container = new MySQLContainer<>(DockerImageName.parse("mysql:5.7.32"))
+                    .withDatabaseName("miaosha")
+                    .withUrlParam("useUnicode", "true")
+                    .withUrlParam("characterEncoding", "utf-8")
+                    .withUrlParam("serverTimezone", "Asia/Shanghai");
+            container.start();
+        }
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("miaosha.test.jdbc-url", container.getJdbcUrl());
+        properties.put("miaosha.test.jdbc-username", container.getUsername());
+        properties.put("miaosha.test.jdbc-password", container.getPassword());
+        return properties;
+    }
+}
@@ -0,0 +1,45 @@
+package com.zben.miaosha.support;
+
+import org.junit.Assume;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.utility.DockerImageName;
+
+/**
+ * @DESC:测试用的redis，docker启动，同一个jvm中共用一个容器
+ * lua脚本的原子性只能在真实的redis上验证；没有docker时跳过测试
+ * @author: zhouben
+ * @date: 2020/11/2 0002 10:20
+ */
+public class TestRedis {
+
+    private static GenericContainer<?> container;
+
+    private TestRedis() {
+    }
+
+    /**
+     * 启动（或复用）redis容器并清空数据
+     *
+     * @return
+     */
+    public static synchronized RedisStandaloneConfiguration start() {
+        Assume.assumeTrue("没有可用的docker，跳过需要redis的测试", DockerClientFactory.instance().isDockerAvailable());
+        if (container == null) {
+            container = new GenericContainer<>(DockerImageName.parse("redis:5.0.9-alpine")).withExposedPorts(6379);
+            container.start();
+        }
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(container.getHost(), container.getMappedPort(6379));
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.flushAll();
+        } finally {
+            connectionFactory.destroy();
+        }
+        return configuration;
+    }
+}
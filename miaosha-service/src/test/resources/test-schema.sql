@@ -0,0 +1,36 @@
+-- 测试和基准测试使用的表结构，H2（MODE=MySQL）和mysql都可以执行，与线上mysql表保持一致
+CREATE TABLE IF NOT EXISTS stock (
+  id INT NOT NULL,
+  name VARCHAR(50) NOT NULL DEFAULT '',
+  count INT NOT NULL DEFAULT 0,
+  sale INT NOT NULL DEFAULT 0,
+  version INT NOT NULL DEFAULT 0,
+  sale_start_time DATETIME NULL,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS stock_order (
+  id INT NOT NULL AUTO_INCREMENT,
+  sid INT NOT NULL,
+  name VARCHAR(30) NOT NULL DEFAULT '',
+  user_id INT NOT NULL DEFAULT 0,
+  create_time DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id),
+  CONSTRAINT uk_sid_user_id UNIQUE (sid, user_id)
+);
+
+CREATE TABLE IF NOT EXISTS stock_segment (
+  id INT NOT NULL AUTO_INCREMENT,
+  sid INT NOT NULL,
+  segment_no INT NOT NULL,
+  count INT NOT NULL DEFAULT 0,
+  sale INT NOT NULL DEFAULT 0,
+  PRIMARY KEY (id),
+  CONSTRAINT uk_sid_segment_no UNIQUE (sid, segment_no)
+);
+
+CREATE TABLE IF NOT EXISTS user (
+  id BIGINT NOT NULL,
+  user_name VARCHAR(255) NOT NULL DEFAULT '',
+  PRIMARY KEY (id)
+);